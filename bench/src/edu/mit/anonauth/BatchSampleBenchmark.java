@@ -0,0 +1,85 @@
+package edu.mit.anonauth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares evaluating a polynomial at many users' x-coordinates one at a
+ * time with evaluating it across them in HornerLanes, and issuing a batch
+ * of cards one user at a time with issuing them together.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchSampleBenchmark {
+	
+	@Param({ "100", "1000" })
+	int degree;
+	
+	@Param({ "32" })
+	int users;
+	
+	FieldElement[] coefficients;
+	FieldElement[] xs;
+	FieldElement[] ys;
+	ProtocolDoor door;
+	List<Integer> userIds;
+	
+	@Setup
+	public void setUp() {
+		coefficients = Polynomial.toElements(Polynomial.randomPolynomial(degree, Polynomial.randomBigInteger()));
+		xs = new FieldElement[users];
+		ys = new FieldElement[users];
+		userIds = new ArrayList<Integer>();
+		for (int i = 0; i < users; i++) {
+			xs[i] = new FieldElement(degree + 1 + i);
+			ys[i] = new FieldElement();
+			userIds.add(degree + 1 + i);
+		}
+		door = new ProtocolDoor(SecretStore.fromSeed(degree, new byte[SecretStore.SEED_LENGTH], 1));
+	}
+	
+	@Benchmark
+	public FieldElement[] sampleScalar() {
+		for (int i = 0; i < users; i++) {
+			Polynomial.samplePolynomial(coefficients, xs[i], ys[i]);
+		}
+		return ys;
+	}
+	
+	@Benchmark
+	public FieldElement[] sampleLanes() {
+		Polynomial.samplePolynomial(coefficients, xs, ys);
+		return ys;
+	}
+	
+	@Benchmark
+	public List<List<Point>> privatePointsEach() {
+		List<List<Point>> points = new ArrayList<List<Point>>(users);
+		for (int user : userIds) {
+			points.add(door.privatePoints(user));
+		}
+		return points;
+	}
+	
+	@Benchmark
+	public List<List<Point>> privatePointsBatch() {
+		return door.privatePoints(userIds);
+	}
+}
@@ -0,0 +1,83 @@
+package edu.mit.anonauth;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the quadratic methods with the subproduct tree for evaluating a
+ * degree n - 1 polynomial at n points and for the n Lagrange denominators,
+ * which sets FastPolynomial.EVALUATE_THRESHOLD and INTERPOLATE_THRESHOLD.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FastPolynomialBenchmark {
+
+	@Param({ "1024", "2048", "4096", "8192" })
+	int n;
+
+	FieldElement[] coefficients;
+	FieldElement[] xs;
+	FieldElement[] ys;
+
+	@Setup
+	public void setUp() {
+		coefficients = Polynomial.toElements(Polynomial.randomPolynomial(n - 1, Polynomial.randomBigInteger()));
+		xs = new FieldElement[n];
+		ys = new FieldElement[n];
+		for (int i = 0; i < n; i++) {
+			xs[i] = new FieldElement(i + 1);
+			ys[i] = new FieldElement();
+		}
+	}
+
+	@Benchmark
+	public FieldElement[] evaluateLanes() {
+		HornerLanes lanes = new HornerLanes(xs);
+		for (int exp = coefficients.length - 1; exp >= 0; exp--) {
+			lanes.step(coefficients[exp]);
+		}
+		lanes.store(ys);
+		return ys;
+	}
+
+	@Benchmark
+	public FieldElement[] evaluateTree() {
+		FastPolynomial.evaluate(coefficients, xs, ys);
+		return ys;
+	}
+
+	@Benchmark
+	public FieldElement[] denominatorsPairwise() {
+		FieldElement difference = new FieldElement();
+		for (int i = 0; i < n; i++) {
+			ys[i].set(1);
+			for (int j = 0; j < n; j++) {
+				if (i != j) {
+					ys[i].multiply(ys[i], difference.subtract(xs[i], xs[j]));
+				}
+			}
+		}
+		return ys;
+	}
+
+	@Benchmark
+	public FieldElement[] denominatorsTree() {
+		FastPolynomial.lagrangeDenominators(xs, ys);
+		return ys;
+	}
+}
@@ -0,0 +1,186 @@
+package edu.mit.anonauth;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the operations on the authentication path and the door's
+ * administrative operations, over a range of r and blacklist sizes.
+ *
+ * Run with "-prof gc" to report the allocation rate of each operation.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+	
+	/**
+	 * A door with some users already revoked, and a card which is not.
+	 */
+	@State(Scope.Benchmark)
+	public static class DoorState {
+		
+		@Param({ "5", "100", "1000" })
+		int r;
+		
+		/**
+		 * Number of users revoked before measuring, capped at r - 1 so there
+		 * is always room for one more. The ordinary broadcast stores k in one
+		 * byte and cannot be encoded past it, so this stays below 256.
+		 */
+		@Param({ "0", "4", "200" })
+		int revoked;
+		
+		/**
+		 * "list" for polynomials held in memory, "seeded" for polynomials
+		 * derived from a seed.
+		 */
+		@Param({ "list", "seeded" })
+		String store;
+		
+		SecretStore secrets;
+		ProtocolDoor door;
+		ProtocolCard card;
+		int user;
+		byte[] broadcast;
+		byte[] compactBroadcast;
+		byte[] response;
+		List<Point> points;
+		
+		@Setup(Level.Trial)
+		public void setUp() {
+			if (store.equals("seeded")) {
+				secrets = SecretStore.fromSeed(r, new byte[SecretStore.SEED_LENGTH]);
+			} else {
+				secrets = SecretStore.random(r);
+			}
+			door = new ProtocolDoor(secrets);
+			
+			List<Integer> blacklist = new ArrayList<Integer>();
+			for (int i = 0; i < Math.min(revoked, r - 1); i++) {
+				blacklist.add(r + 2 + i);
+			}
+			door.revokeAll(blacklist);
+			
+			user = r + 1;
+			card = new ProtocolCard(door.privatePoints(user));
+			broadcast = door.getBroadcast();
+			compactBroadcast = door.getCompactBroadcast();
+			response = card.authenticate(broadcast);
+			
+			// the points a card interpolates: the public points and its own
+			ProtocolDoor.Epoch epoch = door.currentEpoch();
+			points = new ArrayList<Point>(epoch.publicPoints);
+			points.add(card.privatePoints().get(epoch.polyDegree));
+		}
+	}
+	
+	/**
+	 * A fresh copy of the door for every revocation, so each one starts from
+	 * the same degree.
+	 */
+	@State(Scope.Thread)
+	public static class RevokeState {
+		
+		ProtocolDoor door;
+		int user;
+		
+		@Setup(Level.Invocation)
+		public void setUp(DoorState state) {
+			ProtocolDoor.Epoch epoch = state.door.currentEpoch();
+			door = new ProtocolDoor(state.secrets, epoch.polyDegree, epoch.blacklist, epoch.challenge);
+			user = state.r + 2 + epoch.polyDegree;
+		}
+	}
+	
+	/**
+	 * Direct buffers, as a network layer would hand over.
+	 */
+	@State(Scope.Thread)
+	public static class BufferState {
+		
+		ByteBuffer broadcast;
+		ByteBuffer response;
+		
+		@Setup(Level.Trial)
+		public void setUp(DoorState state) {
+			broadcast = ByteBuffer.allocateDirect(state.door.getBroadcastLength());
+			state.door.writeBroadcast(broadcast);
+			response = ByteBuffer.allocateDirect(SecretBox.HMAC_LENGTH);
+		}
+	}
+	
+	@Benchmark
+	public byte[] getBroadcast(DoorState state) {
+		return state.door.getBroadcast();
+	}
+	
+	/**
+	 * The first call's accepted response moves the door to a new challenge,
+	 * so later calls measure rejection, which makes the same constant-time
+	 * comparison.
+	 */
+	@Benchmark
+	public boolean checkResponse(DoorState state) {
+		return state.door.checkResponse(state.response);
+	}
+	
+	@Benchmark
+	public byte[] authenticate(DoorState state) {
+		return state.card.authenticate(state.broadcast);
+	}
+	
+	@Benchmark
+	public byte[] authenticateCompact(DoorState state) {
+		return state.card.authenticateCompact(state.compactBroadcast);
+	}
+	
+	@Benchmark
+	public ByteBuffer writeBroadcast(DoorState state, BufferState buffers) {
+		buffers.broadcast.clear();
+		state.door.writeBroadcast(buffers.broadcast);
+		return buffers.broadcast;
+	}
+	
+	@Benchmark
+	public ByteBuffer authenticateBuffer(DoorState state, BufferState buffers) {
+		buffers.broadcast.rewind();
+		buffers.response.clear();
+		state.card.authenticate(buffers.broadcast, buffers.response);
+		return buffers.response;
+	}
+	
+	@Benchmark
+	public List<Point> privatePoints(DoorState state) {
+		return state.door.privatePoints(state.user);
+	}
+	
+	@Benchmark
+	public BigInteger interpolate(DoorState state) {
+		return Polynomial.interpolate(BigInteger.ZERO, state.points);
+	}
+	
+	@Benchmark
+	public ProtocolDoor revoke(RevokeState state) {
+		state.door.revoke(state.user);
+		return state.door;
+	}
+}
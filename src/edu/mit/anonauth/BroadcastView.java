@@ -0,0 +1,166 @@
+package edu.mit.anonauth;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A flyweight over a broadcast in a ByteBuffer, in the format described by
+ * ProtocolDoor.getBroadcast(). Fields are read in place with absolute gets,
+ * so wrapping and reading a broadcast copies nothing and leaves the buffer's
+ * position alone. One view can be reused for many broadcasts, but is not
+ * thread-safe.
+ */
+public final class BroadcastView {
+	
+	public static final int POINT_SIZE = 2 + 16;
+	public static final int HASH_SIZE = 32;
+	public static final int CHALLENGE_SIZE = 16;
+	public static final int FLAGS_SIZE = 1;
+	public static final int DOOR_ID_SIZE = 4;
+	
+	/**
+	 * The flags byte which may follow the challenge, when a door ID follows
+	 * it in turn.
+	 */
+	public static final byte FLAG_DOOR_ID = 0x01;
+	
+	private ByteBuffer buffer;
+	private int base;
+	private int k;
+	private boolean hasDoorId;
+	private boolean swap;
+	
+	/**
+	 * View the broadcast starting at the buffer's position. The broadcast
+	 * carries a door ID only if the byte after the challenge is the
+	 * FLAG_DOOR_ID flags byte; a broadcast which ends at the challenge, as
+	 * from a door without an ID or one which predates door IDs, has none,
+	 * and any other bytes after the challenge are ignored. The buffer must
+	 * not be modified while the view is in use.
+	 * @throws IllegalArgumentException if the buffer is too short to hold
+	 *   the broadcast
+	 */
+	public BroadcastView wrap(ByteBuffer broadcast) {
+		if (!broadcast.hasRemaining()) {
+			throw new IllegalArgumentException("Broadcast is empty");
+		}
+		int k = broadcast.get(broadcast.position()) & 0xff;
+		if (broadcast.remaining() < length(k)) {
+			throw new IllegalArgumentException("Broadcast is truncated");
+		}
+		boolean hasDoorId = broadcast.remaining() > length(k)
+				&& broadcast.get(broadcast.position() + length(k)) == FLAG_DOOR_ID;
+		if (hasDoorId && broadcast.remaining() < length(k) + FLAGS_SIZE + DOOR_ID_SIZE) {
+			throw new IllegalArgumentException("Broadcast is truncated");
+		}
+		this.buffer = broadcast;
+		this.base = broadcast.position();
+		this.k = k;
+		this.hasDoorId = hasDoorId;
+		this.swap = broadcast.order() != ByteOrder.BIG_ENDIAN;
+		return this;
+	}
+	
+	/**
+	 * Length in bytes of a broadcast with k points and no door ID.
+	 */
+	public static int length(int k) {
+		return 1 + POINT_SIZE * k + HASH_SIZE + CHALLENGE_SIZE;
+	}
+	
+	/**
+	 * Length in bytes of the viewed broadcast, including any door ID.
+	 */
+	public int length() {
+		return length(k) + (hasDoorId ? FLAGS_SIZE + DOOR_ID_SIZE : 0);
+	}
+	
+	/**
+	 * This is k, the number of public points and the door's current degree.
+	 */
+	public int pointCount() {
+		return k;
+	}
+	
+	public int x(int i) {
+		short x = buffer.getShort(pointIndex(i));
+		return (swap ? Short.reverseBytes(x) : x) & 0xffff;
+	}
+	
+	/**
+	 * Read the y-coordinate of the i-th point into out.
+	 */
+	public void y(int i, FieldElement out) {
+		int index = pointIndex(i) + 2;
+		out.setWords(0, getLong(index), getLong(index + 8));
+	}
+	
+	public Point point(int i) {
+		FieldElement y = new FieldElement();
+		y(i, y);
+		return new Point(BigInteger.valueOf(x(i)), y.toBigInteger());
+	}
+	
+	/**
+	 * Compare the broadcast's secret hash with the given one.
+	 */
+	public boolean secretHashEquals(byte[] hash) {
+		if (hash.length != HASH_SIZE) {
+			return false;
+		}
+		int index = hashIndex();
+		for (int i = 0; i < HASH_SIZE; i++) {
+			if (buffer.get(index + i) != hash[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Read the challenge into out.
+	 */
+	public void challenge(FieldElement out) {
+		int index = challengeIndex();
+		out.setWords(0, getLong(index), getLong(index + 8));
+	}
+	
+	public boolean hasDoorId() {
+		return hasDoorId;
+	}
+	
+	/**
+	 * @throws IllegalStateException if the broadcast has no door ID
+	 */
+	public int doorId() {
+		if (!hasDoorId) {
+			throw new IllegalStateException("Broadcast has no door ID");
+		}
+		int id = buffer.getInt(challengeIndex() + CHALLENGE_SIZE + FLAGS_SIZE);
+		return swap ? Integer.reverseBytes(id) : id;
+	}
+	
+	/**
+	 * Index in the buffer of the 16-byte challenge.
+	 */
+	public int challengeIndex() {
+		return hashIndex() + HASH_SIZE;
+	}
+	
+	private int hashIndex() {
+		return base + 1 + POINT_SIZE * k;
+	}
+	
+	private int pointIndex(int i) {
+		if (i < 0 || i >= k) {
+			throw new IndexOutOfBoundsException("Point " + i + " is outside [0, " + k + ")");
+		}
+		return base + 1 + POINT_SIZE * i;
+	}
+	
+	private long getLong(int index) {
+		long value = buffer.getLong(index);
+		return swap ? Long.reverseBytes(value) : value;
+	}
+}
@@ -0,0 +1,161 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BroadcastViewTest {
+	
+	@Test
+	public void testFields() {
+		int r = 10;
+		ProtocolDoor door = new ProtocolDoor(r);
+		door.revokeAll(Arrays.asList(5001, 5002, 5003));
+		ProtocolDoor.Epoch epoch = door.currentEpoch();
+		
+		for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(7 + door.getBroadcastLength()).order(order);
+			buffer.position(7);
+			door.writeBroadcast(buffer);
+			buffer.position(7);
+			
+			BroadcastView view = new BroadcastView().wrap(buffer);
+			assertEquals(7, buffer.position());
+			assertEquals(door.getBroadcastLength(), view.length());
+			assertEquals(3, view.pointCount());
+			
+			List<Point> points = epoch.publicPoints;
+			FieldElement y = new FieldElement();
+			for (int i = 0; i < 3; i++) {
+				assertEquals(points.get(i).x.intValue(), view.x(i));
+				view.y(i, y);
+				assertEquals(points.get(i).y, y.toBigInteger());
+				assertEquals(points.get(i).toString(), view.point(i).toString());
+			}
+			
+			assertTrue(view.secretHashEquals(epoch.box.secretHash()));
+			assertFalse(view.secretHashEquals(new byte[BroadcastView.HASH_SIZE]));
+			
+			FieldElement challenge = new FieldElement();
+			view.challenge(challenge);
+			assertEquals(epoch.challenge, challenge.toBigInteger());
+		}
+	}
+	
+	@Test
+	public void testBounds() {
+		ProtocolDoor door = new ProtocolDoor(5);
+		door.revoke(5001);
+		byte[] broadcast = door.getBroadcast();
+		
+		BroadcastView view = new BroadcastView().wrap(ByteBuffer.wrap(broadcast));
+		try {
+			view.x(1);
+			fail("Expected IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+		}
+		
+		try {
+			view.wrap(ByteBuffer.wrap(broadcast, 0, broadcast.length - 1));
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			view.wrap(ByteBuffer.allocate(0));
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testDoorIdFlag() {
+		ProtocolDoor door = new ProtocolDoor(5);
+		door.revoke(5001);
+		
+		// trailing bytes after a broadcast are not taken for a door ID
+		ByteBuffer buffer = ByteBuffer.allocate(door.getBroadcastLength() + BroadcastView.DOOR_ID_SIZE);
+		door.writeBroadcast(buffer);
+		buffer.putInt(42);
+		buffer.flip();
+		BroadcastView view = new BroadcastView().wrap(buffer);
+		assertFalse(view.hasDoorId());
+		assertEquals(door.getBroadcastLength(), view.length());
+		
+		door.setDoorId(42);
+		byte[] broadcast = door.getBroadcast();
+		assertEquals(BroadcastView.length(1) + BroadcastView.FLAGS_SIZE + BroadcastView.DOOR_ID_SIZE,
+				broadcast.length);
+		view.wrap(ByteBuffer.wrap(broadcast));
+		assertTrue(view.hasDoorId());
+		assertEquals(42, view.doorId());
+		try {
+			view.wrap(ByteBuffer.wrap(broadcast, 0, broadcast.length - 1));
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testBaselineBroadcast() throws IOException, ClassNotFoundException {
+		// a broadcast, a card's points and its response, all from the
+		// original implementation, before door IDs
+		ObjectInputStream in = new ObjectInputStream(getClass().getResourceAsStream("baseline-door.ser"));
+		try {
+			byte[] broadcast = (byte[]) in.readObject();
+			@SuppressWarnings("unchecked")
+			List<Point> points = (List<Point>) in.readObject();
+			byte[] response = (byte[]) in.readObject();
+			
+			BroadcastView view = new BroadcastView().wrap(ByteBuffer.wrap(broadcast));
+			assertFalse(view.hasDoorId());
+			assertEquals(broadcast.length, view.length());
+			assertArrayEquals(response, new ProtocolCard(points).authenticate(broadcast));
+		} finally {
+			in.close();
+		}
+		
+		// and a door without an ID still sends that format
+		ProtocolDoor door = new ProtocolDoor(3);
+		door.revoke(5002);
+		assertEquals(BroadcastView.length(1), door.getBroadcastLength());
+	}
+	
+	@Test
+	public void testChallengeEncoding() {
+		// the HMAC must match hmac(BigInteger) however many leading zeroes
+		// the fixed-width challenge has, and whatever its top bit
+		SecretBox box = SecretBox.randomSecretBox(3);
+		BigInteger[] challenges = {
+			BigInteger.ZERO,
+			BigInteger.ONE,
+			BigInteger.valueOf(0x80),
+			BigInteger.valueOf(0x7f00),
+			BigInteger.ONE.shiftLeft(127),
+			BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE),
+			Polynomial.randomBigInteger(),
+		};
+		for (BigInteger challenge : challenges) {
+			byte[] field = new byte[BroadcastView.CHALLENGE_SIZE];
+			new FieldElement(challenge).toBytes(field, 0, field.length);
+			
+			ByteBuffer in = ByteBuffer.wrap(field);
+			ByteBuffer out = ByteBuffer.allocateDirect(SecretBox.HMAC_LENGTH);
+			box.hmac(in, out);
+			assertFalse(in.hasRemaining());
+			assertFalse(out.hasRemaining());
+			
+			byte[] hmac = new byte[SecretBox.HMAC_LENGTH];
+			out.flip();
+			out.get(hmac);
+			assertArrayEquals(challenge.toString(), box.hmac(challenge), hmac);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package edu.mit.anonauth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Issues private points for many users at once.
+ *
+ * Users are processed in batches: each batch is sampled in parallel on a
+ * fork-join pool while the previous batch is handed to the sink, so at most
+ * two batches are held in memory regardless of how many users are enrolled.
+ * The sink is always called from the thread which called provision(), in
+ * the order the users were given, so it does not need to be thread-safe.
+ */
+public class CardProvisioner {
+
+	/**
+	 * Receives the private points issued to each user; pass them to
+	 * new ProtocolCard(privatePoints) to build the card.
+	 */
+	public interface CardSink {
+		void accept(int user, List<Point> privatePoints) throws IOException;
+	}
+
+	/**
+	 * Notified after each batch has been handed to the sink.
+	 */
+	public interface ProgressListener {
+		/**
+		 * @param done number of cards issued so far
+		 * @param total number of cards to issue, or -1 if not known in advance
+		 */
+		void progress(long done, long total);
+	}
+
+	/**
+	 * Number of users sampled together, as one batch, by one fork-join task.
+	 */
+	private static final int LEAF_SIZE = 32;
+
+	private final ProtocolDoor door;
+	private final ForkJoinPool pool;
+	private int batchSize = 1024;
+	private ProgressListener listener;
+
+	public CardProvisioner(ProtocolDoor door) {
+		this(door, ForkJoinPool.commonPool());
+	}
+
+	public CardProvisioner(ProtocolDoor door, ForkJoinPool pool) {
+		this.door = door;
+		this.pool = pool;
+	}
+
+	/**
+	 * Set the number of users sampled per batch, which bounds memory use.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive");
+		}
+		this.batchSize = batchSize;
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Issue cards for every user ID in [firstUser, lastUser].
+	 */
+	public void provision(final int firstUser, final int lastUser, CardSink sink) throws IOException {
+		Iterator<Integer> users = new Iterator<Integer>() {
+			private long next = firstUser;
+
+			public boolean hasNext() {
+				return next <= lastUser;
+			}
+
+			public Integer next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return (int) next++;
+			}
+		};
+		provision(users, Math.max(0, (long) lastUser - firstUser + 1), sink);
+	}
+
+	/**
+	 * Issue cards for every user ID produced by an iterator.
+	 */
+	public void provision(Iterator<Integer> users, CardSink sink) throws IOException {
+		provision(users, -1, sink);
+	}
+
+	/**
+	 * Issue cards for every user ID in [firstUser, lastUser], writing them to
+	 * a stream as a ProtocolCodec card stream, which can be read back with
+	 * ProtocolCodec.CardReader. The stream is flushed but not closed.
+	 */
+	public void provision(int firstUser, int lastUser, OutputStream out) throws IOException {
+		final ProtocolCodec.CardWriter writer = new ProtocolCodec.CardWriter(Channels.newChannel(out));
+		provision(firstUser, lastUser, new CardSink() {
+			public void accept(int user, List<Point> privatePoints) throws IOException {
+				writer.write(privatePoints);
+			}
+		});
+		writer.flush();
+		out.flush();
+	}
+
+	private void provision(Iterator<Integer> users, long total, CardSink sink) throws IOException {
+		long done = 0;
+
+		Batch current = nextBatch(users);
+		ForkJoinTask<Void> currentTask = current == null ? null : pool.submit(current);
+		while (current != null) {
+			// start sampling the next batch before handing this one over
+			Batch next = nextBatch(users);
+			ForkJoinTask<Void> nextTask = next == null ? null : pool.submit(next);
+
+			currentTask.join();
+			for (int i = 0; i < current.users.length; i++) {
+				sink.accept(current.users[i], current.points[i]);
+				current.points[i] = null;
+			}
+
+			done = done + current.users.length;
+			if (listener != null) {
+				listener.progress(done, total);
+			}
+
+			current = next;
+			currentTask = nextTask;
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Batch nextBatch(Iterator<Integer> users) {
+		int[] batch = new int[batchSize];
+		int n = 0;
+		while (n < batchSize && users.hasNext()) {
+			batch[n++] = users.next();
+		}
+		if (n == 0) {
+			return null;
+		}
+		if (n < batchSize) {
+			batch = Arrays.copyOf(batch, n);
+		}
+		return new Batch(batch, 0, n, new List[n]);
+	}
+
+	/**
+	 * Samples private points for users[from, to), splitting in half until
+	 * the range is small enough to do sequentially.
+	 */
+	private class Batch extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final int[] users;
+		final List<Point>[] points;
+		private final int from;
+		private final int to;
+
+		Batch(int[] users, int from, int to, List<Point>[] points) {
+			this.users = users;
+			this.from = from;
+			this.to = to;
+			this.points = points;
+		}
+
+		protected void compute() {
+			if (to - from <= LEAF_SIZE) {
+				List<Integer> leaf = new ArrayList<Integer>(to - from);
+				for (int i = from; i < to; i++) {
+					leaf.add(users[i]);
+				}
+				List<List<Point>> issued = door.privatePoints(leaf);
+				for (int i = from; i < to; i++) {
+					points[i] = issued.get(i - from);
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Batch(users, from, mid, points), new Batch(users, mid, to, points));
+		}
+	}
+}
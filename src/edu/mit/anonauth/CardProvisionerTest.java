@@ -0,0 +1,96 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class CardProvisionerTest {
+	
+	@Test
+	public void testProvisionRange() throws IOException {
+		int r = 10;
+		ProtocolDoor door = new ProtocolDoor(r);
+		CardProvisioner provisioner = new CardProvisioner(door);
+		provisioner.setBatchSize(64);
+		
+		final AtomicLong progress = new AtomicLong();
+		provisioner.setProgressListener(new CardProvisioner.ProgressListener() {
+			public void progress(long done, long total) {
+				assertEquals(300, total);
+				assertTrue(done > progress.get());
+				progress.set(done);
+			}
+		});
+		
+		final List<Integer> users = new ArrayList<Integer>();
+		final List<ProtocolCard> cards = new ArrayList<ProtocolCard>();
+		provisioner.provision(5001, 5300, new CardProvisioner.CardSink() {
+			public void accept(int user, List<Point> privatePoints) {
+				users.add(user);
+				cards.add(new ProtocolCard(privatePoints));
+			}
+		});
+		
+		assertEquals(300, progress.get());
+		assertEquals(300, users.size());
+		for (int i = 0; i < users.size(); i++) {
+			assertEquals(5001 + i, (int) users.get(i));
+		}
+		
+		door.revoke(5002);
+		assertTrue(exchange(door, cards.get(0)));
+		assertFalse(exchange(door, cards.get(1)));
+	}
+	
+	@Test
+	public void testProvisionIterator() throws IOException {
+		int r = 5;
+		ProtocolDoor door = new ProtocolDoor(r);
+		final List<Integer> users = new ArrayList<Integer>();
+		new CardProvisioner(door).provision(Arrays.asList(9000, 7000, 8000).iterator(), new CardProvisioner.CardSink() {
+			public void accept(int user, List<Point> privatePoints) {
+				users.add(user);
+			}
+		});
+		assertEquals(Arrays.asList(9000, 7000, 8000), users);
+	}
+	
+	@Test
+	public void testProvisionStream() throws IOException {
+		int r = 5;
+		ProtocolDoor door = new ProtocolDoor(r);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new CardProvisioner(door).provision(5001, 5010, out);
+		assertEquals(3 + 10 * (2 + 4 + 16 * (r + 1)), out.size());
+		
+		ProtocolCodec.CardReader reader = new ProtocolCodec.CardReader(
+				Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+		for (int user = 5001; user <= 5010; user++) {
+			ProtocolCard card = reader.read();
+			assertEquals(door.privatePoints(user).get(r).y, card.privatePoints().get(r).y);
+		}
+		assertNull(reader.read());
+	}
+	
+	@Test(expected = ArithmeticException.class)
+	public void testInvalidUser() throws IOException {
+		new CardProvisioner(new ProtocolDoor(5)).provision(1, 10, new ByteArrayOutputStream());
+	}
+	
+	private boolean exchange(ProtocolDoor door, ProtocolCard card) {
+		try {
+			return door.checkResponse(card.authenticate(door.getBroadcast()));
+		} catch (ArithmeticException e) {
+			return false;
+		}
+	}
+}
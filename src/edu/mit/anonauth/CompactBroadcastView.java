@@ -0,0 +1,261 @@
+package edu.mit.anonauth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A flyweight over a broadcast in the compact format, the counterpart of
+ * BroadcastView. Compact broadcasts carry the same points, hash and
+ * challenge as ordinary ones, so a card's response is the same for both.
+ *
+ * Format:
+ *   varint    k (# points to follow)
+ *   varint    2f + 1 if a door ID follows the challenge, else 2f, where f
+ *             is the # of filler points, whose x-coordinates are 1 to f
+ *
+ *   k - f varints  x-coordinates of the revoked users' points, ascending,
+ *                  each as the difference from the one before
+ *
+ *   k x 16 bytes   y-coordinates, the filler points' first, then the
+ *                  revoked users' in the same order as their x-coordinates
+ *
+ *   16 bytes  first half of the hash of secret
+ *   16 bytes  challenge
+ *
+ *   4 bytes   door ID, only if flagged
+ *
+ * Varints are unsigned, 7 bits per byte, least significant group first,
+ * with the high bit set on every byte but the last. Filler x-coordinates
+ * are implicit, and since revoked users' are sorted their differences are
+ * usually one or two bytes, where ordinary broadcasts spend a fixed two
+ * bytes on every x-coordinate and cannot hold user IDs above 65535. Half
+ * of the secret hash is enough for a card to tell that it reconstructed
+ * the right secret, so the other half is dropped.
+ *
+ * Wrapping scans the header and x-coordinates once; the y-coordinates
+ * and hash are only read if asked for, so a card which already knows the
+ * door's secret just skips to the challenge. One view can be reused for
+ * many broadcasts, but is not thread-safe.
+ */
+public final class CompactBroadcastView {
+
+	public static final int Y_SIZE = 16;
+	public static final int HASH_SIZE = 16;
+
+	private ByteBuffer buffer;
+	private int base;
+	private int k;
+	private long[] xs = new long[16];
+	private int yIndex;
+	private boolean hasDoorId;
+	private boolean swap;
+
+	/**
+	 * Index just after the varint read by readVarint().
+	 */
+	private int varintEnd;
+
+	/**
+	 * View the compact broadcast starting at the buffer's position. The
+	 * buffer must not be modified while the view is in use.
+	 * @throws IllegalArgumentException if the buffer does not hold a whole,
+	 *   well-formed compact broadcast
+	 */
+	public CompactBroadcastView wrap(ByteBuffer broadcast) {
+		this.buffer = broadcast;
+		this.base = broadcast.position();
+		this.swap = broadcast.order() != ByteOrder.BIG_ENDIAN;
+
+		int index = base;
+		if (index >= broadcast.limit()) {
+			throw new IllegalArgumentException("Broadcast is empty");
+		}
+		long k = readVarint(index);
+		index = varintEnd;
+		long fillers = readVarint(index);
+		index = varintEnd;
+		hasDoorId = (fillers & 1) != 0;
+		fillers = fillers >>> 1;
+		if (k > Integer.MAX_VALUE || fillers > k) {
+			throw new IllegalArgumentException("Malformed broadcast header");
+		}
+		if (k > (broadcast.limit() - index) / Y_SIZE) {
+			throw new IllegalArgumentException("Broadcast is truncated");
+		}
+		this.k = (int) k;
+
+		if (xs.length < k) {
+			xs = new long[Integer.highestOneBit((int) k) << 1];
+		}
+		for (int i = 0; i < fillers; i++) {
+			xs[i] = i + 1;
+		}
+		long x = 0;
+		for (int i = (int) fillers; i < k; i++) {
+			x = x + readVarint(index);
+			index = varintEnd;
+			xs[i] = x;
+		}
+		yIndex = index;
+
+		if ((long) broadcast.limit() - base < length()) {
+			throw new IllegalArgumentException("Broadcast is truncated");
+		}
+		return this;
+	}
+
+	/**
+	 * Encode the given broadcast fields in the compact format.
+	 * @param fillers the filler points, whose x-coordinates must be 1 to
+	 *   fillers.size()
+	 * @param revoked the revoked users' points, in any order
+	 */
+	static byte[] encode(List<Point> fillers, List<Point> revoked, byte[] secretHash, byte[] challenge,
+			Integer doorId) {
+		Point[] sorted = revoked.toArray(new Point[revoked.size()]);
+		Arrays.sort(sorted, new Comparator<Point>() {
+			public int compare(Point a, Point b) {
+				return a.x.compareTo(b.x);
+			}
+		});
+
+		int k = fillers.size() + sorted.length;
+		ByteBuffer out = ByteBuffer.allocate(5 + 5 + 5 * sorted.length + Y_SIZE * k
+				+ HASH_SIZE + BroadcastView.CHALLENGE_SIZE + BroadcastView.DOOR_ID_SIZE);
+		putVarint(out, k);
+		putVarint(out, 2L * fillers.size() + (doorId != null ? 1 : 0));
+		long previous = 0;
+		for (Point p : sorted) {
+			long x = p.x.longValue();
+			putVarint(out, x - previous);
+			previous = x;
+		}
+
+		byte[] y = new byte[Y_SIZE];
+		FieldElement element = new FieldElement();
+		for (Point p : fillers) {
+			element.set(p.y).toBytes(y, 0, Y_SIZE);
+			out.put(y);
+		}
+		for (Point p : sorted) {
+			element.set(p.y).toBytes(y, 0, Y_SIZE);
+			out.put(y);
+		}
+
+		out.put(secretHash, 0, HASH_SIZE);
+		out.put(challenge);
+		if (doorId != null) {
+			out.putInt(doorId);
+		}
+		return Arrays.copyOf(out.array(), out.position());
+	}
+
+	private static void putVarint(ByteBuffer out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.put((byte) ((value & 0x7f) | 0x80));
+			value = value >>> 7;
+		}
+		out.put((byte) value);
+	}
+
+	private long readVarint(int index) {
+		long value = 0;
+		for (int shift = 0; shift < 35; shift = shift + 7) {
+			if (index >= buffer.limit()) {
+				throw new IllegalArgumentException("Broadcast is truncated");
+			}
+			int b = buffer.get(index++);
+			value = value | ((long) (b & 0x7f) << shift);
+			if ((b & 0x80) == 0) {
+				varintEnd = index;
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Varint is too long");
+	}
+
+	/**
+	 * Length in bytes of the viewed broadcast, including any door ID.
+	 */
+	public int length() {
+		return challengeIndex() + BroadcastView.CHALLENGE_SIZE + (hasDoorId ? BroadcastView.DOOR_ID_SIZE : 0) - base;
+	}
+
+	/**
+	 * This is k, the number of points and the door's current degree.
+	 */
+	public int pointCount() {
+		return k;
+	}
+
+	public long x(int i) {
+		checkIndex(i);
+		return xs[i];
+	}
+
+	/**
+	 * Read the y-coordinate of the i-th point into out.
+	 */
+	public void y(int i, FieldElement out) {
+		checkIndex(i);
+		int index = yIndex + Y_SIZE * i;
+		out.setWords(0, getLong(index), getLong(index + 8));
+	}
+
+	/**
+	 * Compare the broadcast's half of the secret hash with the start of the
+	 * given full hash.
+	 */
+	public boolean secretHashEquals(byte[] hash) {
+		if (hash.length != BroadcastView.HASH_SIZE) {
+			return false;
+		}
+		int index = hashIndex();
+		for (int i = 0; i < HASH_SIZE; i++) {
+			if (buffer.get(index + i) != hash[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean hasDoorId() {
+		return hasDoorId;
+	}
+
+	/**
+	 * @throws IllegalStateException if the broadcast has no door ID
+	 */
+	public int doorId() {
+		if (!hasDoorId) {
+			throw new IllegalStateException("Broadcast has no door ID");
+		}
+		int id = buffer.getInt(challengeIndex() + BroadcastView.CHALLENGE_SIZE);
+		return swap ? Integer.reverseBytes(id) : id;
+	}
+
+	/**
+	 * Index in the buffer of the 16-byte challenge.
+	 */
+	public int challengeIndex() {
+		return hashIndex() + HASH_SIZE;
+	}
+
+	private int hashIndex() {
+		return yIndex + Y_SIZE * k;
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= k) {
+			throw new IndexOutOfBoundsException("Point " + i + " is outside [0, " + k + ")");
+		}
+	}
+
+	private long getLong(int index) {
+		long value = buffer.getLong(index);
+		return swap ? Long.reverseBytes(value) : value;
+	}
+}
@@ -0,0 +1,180 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CompactBroadcastViewTest {
+	
+	@Test
+	public void testFields() {
+		int r = 10;
+		ProtocolDoor door = new ProtocolDoor(r);
+		door.revokeAll(Arrays.asList(5003, 5001, 300));
+		door.setDoorId(42);
+		byte[] compact = door.getCompactBroadcast();
+		
+		for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(7 + compact.length).order(order);
+			buffer.position(7);
+			door.writeCompactBroadcast(buffer);
+			buffer.position(7);
+			
+			CompactBroadcastView view = new CompactBroadcastView().wrap(buffer);
+			assertEquals(7, buffer.position());
+			assertEquals(compact.length, view.length());
+			assertEquals(3, view.pointCount());
+			assertEquals(42, view.doorId());
+			
+			// revoked users' points are sorted by x
+			long[] xs = { 300, 5001, 5003 };
+			FieldElement y = new FieldElement();
+			for (int i = 0; i < 3; i++) {
+				assertEquals(xs[i], view.x(i));
+				view.y(i, y);
+				assertEquals(publicY(door, xs[i]), y.toBigInteger());
+			}
+			assertTrue(view.secretHashEquals(door.currentEpoch().box.secretHash()));
+		}
+		
+		// k, f and flag, x deltas 300 (2 bytes), 4701 (2 bytes) and 2,
+		// points, half the hash, challenge and door ID
+		assertEquals(1 + 1 + 5 + 3 * 16 + 16 + 16 + 4, compact.length);
+		assertTrue(compact.length < door.getBroadcastLength());
+	}
+	
+	private static BigInteger publicY(ProtocolDoor door, long x) {
+		for (Point p : door.currentEpoch().publicPoints) {
+			if (p.x.longValue() == x) {
+				return p.y;
+			}
+		}
+		throw new AssertionError("No public point at " + x);
+	}
+	
+	@Test
+	public void testFillers() {
+		int r = 10;
+		SecretStore secrets = SecretStore.random(r);
+		ProtocolDoor door = new ProtocolDoor(secrets, 3, Collections.singletonList(BigInteger.valueOf(5001)),
+				BigInteger.ONE);
+		CompactBroadcastView view = new CompactBroadcastView().wrap(ByteBuffer.wrap(door.getCompactBroadcast()));
+		assertEquals(3, view.pointCount());
+		assertEquals(1, view.x(0));
+		assertEquals(2, view.x(1));
+		assertEquals(5001, view.x(2));
+		assertFalse(view.hasDoorId());
+		
+		// no bytes are spent on the fillers' x-coordinates
+		assertEquals(1 + 1 + 2 + 3 * 16 + 16 + 16, view.length());
+	}
+	
+	@Test
+	public void testExchange() {
+		int r = 10;
+		ProtocolDoor door = new ProtocolDoor(r);
+		ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+		ProtocolCard revoked = new ProtocolCard(door.privatePoints(5001));
+		ProtocolCard stranger = new ProtocolCard(new ProtocolDoor(r).privatePoints(5000));
+		door.revoke(5001);
+		door.revoke(5002);
+		
+		// the same response as the ordinary broadcast
+		byte[] response = card.authenticateCompact(door.getCompactBroadcast());
+		assertArrayEquals(card.authenticate(door.getBroadcast()), response);
+		assertTrue(door.checkResponse(response));
+		
+		ByteBuffer broadcast = ByteBuffer.allocateDirect(256);
+		door.writeCompactBroadcast(broadcast);
+		broadcast.flip();
+		ByteBuffer out = ByteBuffer.allocate(SecretBox.HMAC_LENGTH);
+		card.authenticateCompact(broadcast, out);
+		assertFalse(broadcast.hasRemaining());
+		out.flip();
+		assertTrue(door.checkResponse(out));
+		
+		try {
+			revoked.authenticateCompact(door.getCompactBroadcast());
+			fail("Expected ArithmeticException");
+		} catch (ArithmeticException e) {
+		}
+		try {
+			stranger.authenticateCompact(door.getCompactBroadcast());
+			fail("Expected BroadcastMismatchException");
+		} catch (ProtocolCard.BroadcastMismatchException e) {
+		}
+	}
+	
+	@Test
+	public void testLargeUserId() {
+		int r = 10;
+		ProtocolDoor door = new ProtocolDoor(r);
+		ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+		ProtocolCard revoked = new ProtocolCard(door.privatePoints(70000));
+		door.revoke(70000);
+		
+		// only the compact broadcast can carry the revoked user's x-coordinate
+		try {
+			door.getBroadcast();
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+		assertTrue(door.checkResponse(card.authenticateCompact(door.getCompactBroadcast())));
+		try {
+			revoked.authenticateCompact(door.getCompactBroadcast());
+			fail("Expected ArithmeticException");
+		} catch (ArithmeticException e) {
+		}
+	}
+	
+	@Test
+	public void testManyRevocations() {
+		int r = 300;
+		ProtocolDoor door = new ProtocolDoor(SecretStore.fromSeed(r, SecretStore.randomSeed()));
+		ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+		List<Integer> users = new ArrayList<Integer>();
+		for (int i = 1; i <= 256; i++) {
+			users.add(5000 + i);
+		}
+		door.revokeAll(users);
+		
+		// k no longer fits in the ordinary broadcast's one byte
+		try {
+			door.openSession();
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+		assertTrue(door.checkResponse(card.authenticateCompact(door.getCompactBroadcast())));
+	}
+	
+	@Test
+	public void testMalformed() {
+		ProtocolDoor door = new ProtocolDoor(10);
+		door.revoke(5001);
+		byte[] compact = door.getCompactBroadcast();
+		
+		for (int length : new int[] { 0, 1, 2, 5, compact.length - 1 }) {
+			try {
+				new CompactBroadcastView().wrap(ByteBuffer.wrap(compact, 0, length));
+				fail("Expected IllegalArgumentException for length " + length);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		
+		// an absurd point count is refused before anything is allocated
+		byte[] huge = { (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f, 0 };
+		try {
+			new CompactBroadcastView().wrap(ByteBuffer.wrap(huge));
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
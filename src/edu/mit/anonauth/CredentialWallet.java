@@ -0,0 +1,166 @@
+package edu.mit.anonauth;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds one user's cards for many doors.
+ *
+ * Doors which broadcast an ID (see ProtocolDoor.setDoorId()) are matched to
+ * their card with a single lookup, so an authentication costs at most one
+ * interpolation. For a broadcast without an ID, every card is tried in turn;
+ * the card that succeeds is remembered by the broadcast's secret hash, so
+ * later attempts at the same door go straight to it until the door revokes
+ * someone.
+ *
+ * A wallet is safe to share between threads.
+ */
+public class CredentialWallet implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Number of secret hashes remembered for doors without IDs.
+	 */
+	static final int LEARNED_SIZE = 64;
+	
+	private final Map<Integer, ProtocolCard> cards = new ConcurrentHashMap<Integer, ProtocolCard>();
+	
+	/**
+	 * Cards matched to broadcasts without door IDs, keyed by the
+	 * broadcast's secret hash. Guarded by this.
+	 */
+	private transient Map<ByteBuffer, ProtocolCard> learned;
+	
+	/**
+	 * Thrown when the wallet has no card which works at a door.
+	 */
+	public static class UnknownDoorException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		public UnknownDoorException(String message) { super(message); }
+	}
+	
+	/**
+	 * Add the card for a door, replacing any card already held for it.
+	 */
+	public void put(int doorId, ProtocolCard card) {
+		if (card == null) {
+			throw new NullPointerException("card");
+		}
+		cards.put(doorId, card);
+		forget();
+	}
+	
+	public ProtocolCard get(int doorId) {
+		return cards.get(doorId);
+	}
+	
+	public ProtocolCard remove(int doorId) {
+		ProtocolCard card = cards.remove(doorId);
+		forget();
+		return card;
+	}
+	
+	public Set<Integer> doorIds() {
+		return Collections.unmodifiableSet(cards.keySet());
+	}
+	
+	public int size() {
+		return cards.size();
+	}
+	
+	/**
+	 * Authenticate to whichever door sent the broadcast.
+	 * @throws UnknownDoorException if no card in the wallet works there
+	 */
+	public byte[] authenticate(byte[] broadcast) {
+		ByteBuffer response = ByteBuffer.allocate(SecretBox.HMAC_LENGTH);
+		authenticate(ByteBuffer.wrap(broadcast), response);
+		return response.array();
+	}
+	
+	/**
+	 * Authenticate to whichever door sent the broadcast, which is the
+	 * buffer's remaining bytes, as ProtocolCard.authenticate(ByteBuffer,
+	 * ByteBuffer) does.
+	 * @throws UnknownDoorException if no card in the wallet works there
+	 */
+	public void authenticate(ByteBuffer broadcast, ByteBuffer responseOut) {
+		BroadcastView view = new BroadcastView().wrap(broadcast);
+		if (view.hasDoorId()) {
+			ProtocolCard card = cards.get(view.doorId());
+			if (card == null) {
+				throw new UnknownDoorException("No card for door " + view.doorId());
+			}
+			card.authenticate(broadcast, responseOut);
+			return;
+		}
+		
+		byte[] hash = new byte[BroadcastView.HASH_SIZE];
+		int hashIndex = view.challengeIndex() - BroadcastView.HASH_SIZE;
+		for (int i = 0; i < hash.length; i++) {
+			hash[i] = broadcast.get(hashIndex + i);
+		}
+		ByteBuffer key = ByteBuffer.wrap(hash);
+		
+		ProtocolCard known;
+		synchronized (this) {
+			known = learned().get(key);
+		}
+		if (known != null && tryAuthenticate(known, broadcast, responseOut)) {
+			return;
+		}
+		
+		for (ProtocolCard card : cards.values()) {
+			if (card != known && tryAuthenticate(card, broadcast, responseOut)) {
+				synchronized (this) {
+					learned().put(key, card);
+				}
+				return;
+			}
+		}
+		throw new UnknownDoorException("No card matches the broadcast");
+	}
+	
+	/**
+	 * Authenticate with one card, leaving the broadcast's position alone if
+	 * the card does not belong to the door.
+	 */
+	private static boolean tryAuthenticate(ProtocolCard card, ByteBuffer broadcast, ByteBuffer responseOut) {
+		int position = broadcast.position();
+		try {
+			card.authenticate(broadcast, responseOut);
+			return true;
+		} catch (ProtocolCard.BroadcastMismatchException e) {
+			// the card belongs to another door
+		} catch (ArithmeticException e) {
+			// the card's user is revoked at this door
+		} catch (IndexOutOfBoundsException e) {
+			// the card was issued by a door with a smaller r
+		}
+		broadcast.position(position);
+		return false;
+	}
+	
+	private Map<ByteBuffer, ProtocolCard> learned() {
+		if (learned == null) {
+			learned = new LinkedHashMap<ByteBuffer, ProtocolCard>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				
+				protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ProtocolCard> eldest) {
+					return size() > LEARNED_SIZE;
+				}
+			};
+		}
+		return learned;
+	}
+	
+	private synchronized void forget() {
+		learned = null;
+	}
+}
@@ -0,0 +1,129 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CredentialWalletTest {
+	
+	@After
+	public void tearDown() {
+		Metrics.install(null);
+	}
+	
+	@Test
+	public void testDoorIds() {
+		int doors = 20;
+		List<ProtocolDoor> list = new ArrayList<ProtocolDoor>();
+		CredentialWallet wallet = new CredentialWallet();
+		for (int i = 0; i < doors; i++) {
+			ProtocolDoor door = new ProtocolDoor(SecretStore.fromSeed(5, SecretStore.randomSeed()));
+			door.setDoorId(1000 + i);
+			list.add(door);
+			wallet.put(1000 + i, new ProtocolCard(door.privatePoints(5000)));
+		}
+		assertEquals(doors, wallet.size());
+		
+		// one interpolation per door, whichever door it is
+		MetricsRecorder recorder = new MetricsRecorder();
+		Metrics.install(recorder);
+		for (ProtocolDoor door : list) {
+			assertTrue(door.checkResponse(wallet.authenticate(door.getBroadcast())));
+		}
+		assertEquals(doors, recorder.getHistogram(Metrics.Phase.INTERPOLATE).getCount());
+		assertEquals(0, recorder.getCount(Metrics.Counter.BROADCAST_MISMATCH));
+		
+		// the buffer API consumes the door ID too
+		ProtocolDoor door = list.get(3);
+		ByteBuffer broadcast = ByteBuffer.allocateDirect(door.getBroadcastLength());
+		door.writeBroadcast(broadcast);
+		broadcast.flip();
+		ByteBuffer response = ByteBuffer.allocate(SecretBox.HMAC_LENGTH);
+		wallet.authenticate(broadcast, response);
+		assertFalse(broadcast.hasRemaining());
+		response.flip();
+		assertTrue(door.checkResponse(response));
+		
+		wallet.remove(1003);
+		try {
+			wallet.authenticate(door.getBroadcast());
+			fail("Expected UnknownDoorException");
+		} catch (CredentialWallet.UnknownDoorException e) {
+		}
+	}
+	
+	@Test
+	public void testBroadcastWithoutId() {
+		CredentialWallet wallet = new CredentialWallet();
+		List<ProtocolDoor> list = new ArrayList<ProtocolDoor>();
+		for (int i = 0; i < 5; i++) {
+			ProtocolDoor door = new ProtocolDoor(5);
+			list.add(door);
+			wallet.put(i, new ProtocolCard(door.privatePoints(5000)));
+		}
+		ProtocolDoor door = list.get(4);
+		door.revoke(5001);
+		
+		MetricsRecorder recorder = new MetricsRecorder();
+		Metrics.install(recorder);
+		assertTrue(door.checkResponse(wallet.authenticate(door.getBroadcast())));
+		long tries = recorder.getCount(Metrics.Counter.SECRET_CACHE_MISS);
+		assertTrue(tries >= 1);
+		
+		// the matching card is remembered, so the next attempt is direct
+		recorder.reset();
+		door.generateChallenge();
+		assertTrue(door.checkResponse(wallet.authenticate(door.getBroadcast())));
+		assertEquals(0, recorder.getCount(Metrics.Counter.SECRET_CACHE_MISS));
+		assertEquals(1, recorder.getCount(Metrics.Counter.SECRET_CACHE_HIT));
+		
+		try {
+			wallet.authenticate(new ProtocolDoor(5).getBroadcast());
+			fail("Expected UnknownDoorException");
+		} catch (CredentialWallet.UnknownDoorException e) {
+		}
+	}
+	
+	@Test
+	public void testRevokedCard() {
+		ProtocolDoor door = new ProtocolDoor(5);
+		door.setDoorId(7);
+		CredentialWallet wallet = new CredentialWallet();
+		wallet.put(7, new ProtocolCard(door.privatePoints(5001)));
+		door.revoke(5001);
+		
+		try {
+			wallet.authenticate(door.getBroadcast());
+			fail("Expected ArithmeticException");
+		} catch (ArithmeticException e) {
+		}
+		
+		// without the ID, the revoked card is skipped like a stranger's
+		door.setDoorId(null);
+		try {
+			wallet.authenticate(door.getBroadcast());
+			fail("Expected UnknownDoorException");
+		} catch (CredentialWallet.UnknownDoorException e) {
+		}
+	}
+	
+	@Test
+	public void testLegacyCard() {
+		// a broadcast with an ID still works with a plain card
+		ProtocolDoor door = new ProtocolDoor(5);
+		door.setDoorId(42);
+		assertEquals(Integer.valueOf(42), door.getDoorId());
+		ProtocolCard card = new ProtocolCard(door.privatePoints(5001));
+		assertTrue(door.checkResponse(card.authenticate(door.getBroadcast())));
+		
+		BroadcastView view = new BroadcastView().wrap(ByteBuffer.wrap(door.getBroadcast()));
+		assertTrue(view.hasDoorId());
+		assertEquals(42, view.doorId());
+		assertEquals(door.getBroadcastLength(), view.length());
+	}
+}
@@ -0,0 +1,219 @@
+package edu.mit.anonauth;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Talks to a DoorServer on behalf of a card or wallet, over TCP or UDP.
+ * A client is not thread-safe; use one per thread.
+ */
+public class DoorClient implements Closeable {
+	
+	private final SocketChannel tcp;
+	private final DatagramSocket udp;
+	private final SocketAddress server;
+	
+	private final byte[] datagram = new byte[DoorServer.FRAME_HEADER_SIZE + DoorServer.MAX_REPLY_SIZE];
+	
+	/**
+	 * Size to pad UDP requests for broadcasts and sessions to, as last
+	 * required by the server.
+	 */
+	private int paddedSize = DoorServer.PADDING_REQUIRED_SIZE;
+	
+	private DoorClient(SocketChannel tcp, DatagramSocket udp, SocketAddress server) {
+		this.tcp = tcp;
+		this.udp = udp;
+		this.server = server;
+	}
+	
+	/**
+	 * Connect to a server's TCP port.
+	 */
+	public static DoorClient connectTcp(SocketAddress server) throws IOException {
+		SocketChannel channel = SocketChannel.open(server);
+		channel.socket().setTcpNoDelay(true);
+		return new DoorClient(channel, null, server);
+	}
+	
+	/**
+	 * Talk to a server's UDP port. A lost datagram makes a request fail
+	 * with SocketTimeoutException after the given time; the caller may
+	 * retry.
+	 */
+	public static DoorClient openUdp(SocketAddress server, int timeoutMillis) throws IOException {
+		DatagramSocket socket = new DatagramSocket();
+		socket.setSoTimeout(timeoutMillis);
+		return new DoorClient(null, socket, server);
+	}
+	
+	/**
+	 * Fetch the door's current broadcast.
+	 */
+	public byte[] requestBroadcast() throws IOException {
+		return exchange(DoorServer.REQUEST_BROADCAST, new byte[0], DoorServer.BROADCAST);
+	}
+	
+	/**
+	 * Send a response to the door.
+	 * @return true iff the door accepted it
+	 */
+	public boolean sendResponse(byte[] response) throws IOException {
+		byte[] result = exchange(DoorServer.RESPONSE, response, DoorServer.RESULT);
+		return result.length == 1 && result[0] == 1;
+	}
+	
+	/**
+	 * Open a session with the door.
+	 * @return the session's ID followed by its broadcast, as sent by the door
+	 */
+	public byte[] requestSession() throws IOException {
+		byte[] session = exchange(DoorServer.REQUEST_SESSION, new byte[0], DoorServer.SESSION_BROADCAST);
+		if (session.length < DoorServer.SESSION_ID_SIZE) {
+			throw new IOException("Unexpected reply from door");
+		}
+		return session;
+	}
+	
+	/**
+	 * Send a response to a session's broadcast.
+	 * @return true iff the door accepted it
+	 */
+	public boolean sendSessionResponse(long session, byte[] response) throws IOException {
+		ByteBuffer payload = ByteBuffer.allocate(DoorServer.SESSION_ID_SIZE + response.length);
+		payload.putLong(session);
+		payload.put(response);
+		byte[] result = exchange(DoorServer.SESSION_RESPONSE, payload.array(), DoorServer.RESULT);
+		return result.length == 1 && result[0] == 1;
+	}
+	
+	/**
+	 * Open a session, answer its broadcast with the card and send the
+	 * response. Unlike authenticate(), this cannot fail because another
+	 * reader's authentication changed the door's challenge in between.
+	 * @return true iff the door accepted the card
+	 */
+	public boolean authenticateSession(ProtocolCard card) throws IOException {
+		ByteBuffer session = ByteBuffer.wrap(requestSession());
+		long id = session.getLong();
+		ByteBuffer response = ByteBuffer.allocate(SecretBox.HMAC_LENGTH);
+		card.authenticate(session, response);
+		return sendSessionResponse(id, response.array());
+	}
+	
+	/**
+	 * Authenticate with the card, in a session of its own as
+	 * authenticateSession() does.
+	 * @return true iff the door accepted the card
+	 */
+	public boolean authenticate(ProtocolCard card) throws IOException {
+		return authenticateSession(card);
+	}
+	
+	/**
+	 * Open a session, answer its broadcast with the matching card from the
+	 * wallet and send the response.
+	 * @return true iff the door accepted the card
+	 */
+	public boolean authenticate(CredentialWallet wallet) throws IOException {
+		ByteBuffer session = ByteBuffer.wrap(requestSession());
+		long id = session.getLong();
+		ByteBuffer response = ByteBuffer.allocate(SecretBox.HMAC_LENGTH);
+		wallet.authenticate(session, response);
+		return sendSessionResponse(id, response.array());
+	}
+	
+	private byte[] exchange(byte type, byte[] payload, byte expected) throws IOException {
+		byte[] reply;
+		if (tcp != null) {
+			reply = exchangeTcp(frame(type, payload));
+		} else if (type == DoorServer.REQUEST_BROADCAST || type == DoorServer.REQUEST_SESSION) {
+			reply = exchangePadded(type);
+		} else {
+			reply = exchangeUdp(frame(type, payload));
+		}
+		if (reply.length < DoorServer.FRAME_HEADER_SIZE || reply[0] != expected) {
+			throw new IOException("Unexpected reply from door");
+		}
+		return Arrays.copyOfRange(reply, DoorServer.FRAME_HEADER_SIZE, reply.length);
+	}
+	
+	private static ByteBuffer frame(byte type, byte[] payload) {
+		ByteBuffer frame = ByteBuffer.allocate(DoorServer.FRAME_HEADER_SIZE + payload.length);
+		frame.put(type);
+		frame.putShort((short) payload.length);
+		frame.put(payload);
+		frame.flip();
+		return frame;
+	}
+	
+	/**
+	 * Send a request padded to paddedSize, growing it and retrying for as
+	 * long as the server requires more padding.
+	 */
+	private byte[] exchangePadded(byte type) throws IOException {
+		while (true) {
+			byte[] reply = exchangeUdp(frame(type, new byte[paddedSize - DoorServer.FRAME_HEADER_SIZE]));
+			if (reply[0] != DoorServer.PADDING_REQUIRED) {
+				return reply;
+			}
+			int required = reply.length == DoorServer.PADDING_REQUIRED_SIZE
+					? ((reply[3] & 0xff) << 8) | (reply[4] & 0xff) : 0;
+			if (required <= paddedSize || required > datagram.length) {
+				throw new IOException("Unexpected reply from door");
+			}
+			paddedSize = required;
+		}
+	}
+	
+	private byte[] exchangeTcp(ByteBuffer frame) throws IOException {
+		while (frame.hasRemaining()) {
+			tcp.write(frame);
+		}
+		
+		ByteBuffer header = ByteBuffer.allocate(DoorServer.FRAME_HEADER_SIZE);
+		readFully(header);
+		int length = header.getShort(1) & 0xffff;
+		ByteBuffer reply = ByteBuffer.allocate(DoorServer.FRAME_HEADER_SIZE + length);
+		header.flip();
+		reply.put(header);
+		readFully(reply);
+		return reply.array();
+	}
+	
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (tcp.read(buffer) < 0) {
+				throw new EOFException("Door closed the connection");
+			}
+		}
+	}
+	
+	private byte[] exchangeUdp(ByteBuffer frame) throws IOException {
+		udp.send(new DatagramPacket(frame.array(), frame.limit(), server));
+		DatagramPacket packet = new DatagramPacket(datagram, datagram.length);
+		udp.receive(packet);
+		int length = packet.getLength();
+		if (length < DoorServer.FRAME_HEADER_SIZE
+				|| length != DoorServer.FRAME_HEADER_SIZE + (((datagram[1] & 0xff) << 8) | (datagram[2] & 0xff))) {
+			throw new IOException("Malformed datagram from door");
+		}
+		return Arrays.copyOf(datagram, length);
+	}
+	
+	public void close() throws IOException {
+		if (tcp != null) {
+			tcp.close();
+		}
+		if (udp != null) {
+			udp.close();
+		}
+	}
+}
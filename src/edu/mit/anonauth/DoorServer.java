@@ -0,0 +1,455 @@
+package edu.mit.anonauth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves a door's broadcast and checks responses over TCP and UDP, on a
+ * single thread running a non-blocking selector loop.
+ *
+ * Every message, in either direction and on either transport, is a frame:
+ *   1 byte    type
+ *   2 bytes   payload length
+ *   payload
+ *
+ * A reader sends REQUEST_BROADCAST with no payload and gets BROADCAST back
+ * with the broadcast as payload; it then sends RESPONSE with the card's
+ * response and gets RESULT back, whose one-byte payload is 1 if the door
+ * should open. An accepted response changes the door's challenge, so it
+ * cannot be replayed, but readers sharing the broadcast race each other.
+ *
+ * Alternatively a reader sends REQUEST_SESSION and gets SESSION_BROADCAST
+ * back, whose payload is an 8-byte session ID followed by a broadcast with
+ * a challenge of its own (see ProtocolDoor.openSession()); it then sends
+ * SESSION_RESPONSE with the session ID followed by the response, and gets
+ * RESULT back. Sessions let many readers authenticate at once without
+ * sharing a challenge, and are what DoorClient.authenticate() uses.
+ *
+ * Over UDP each datagram holds one frame; over TCP a reader may
+ * pipeline any number of frames, and all complete frames are answered
+ * together with one write. A REQUEST_BROADCAST or REQUEST_SESSION frame
+ * may carry padding as its payload, which is ignored. Over UDP it must:
+ * a request datagram shorter than the reply it asks for is not answered,
+ * so a forged sender address cannot make the server send more bytes to a
+ * victim than the forger sent to the server. Instead the server replies
+ * with PADDING_REQUIRED, whose 2-byte payload is the datagram size the
+ * request needs, or drops the request if it is shorter than that reply.
+ * DoorClient starts small and pads to the size it was last told.
+ *
+ * Backpressure: a TCP connection whose replies are not being read stops
+ * being read from once maxPendingOutput bytes are queued for it, and the
+ * server stops accepting connections while maxConnections are open.
+ */
+public class DoorServer implements Closeable {
+	
+	public static final byte REQUEST_BROADCAST = 1;
+	public static final byte BROADCAST = 2;
+	public static final byte RESPONSE = 3;
+	public static final byte RESULT = 4;
+	public static final byte REQUEST_SESSION = 5;
+	public static final byte SESSION_BROADCAST = 6;
+	public static final byte SESSION_RESPONSE = 7;
+	public static final byte PADDING_REQUIRED = 8;
+	
+	static final int SESSION_ID_SIZE = 8;
+	
+	static final int FRAME_HEADER_SIZE = 3;
+	
+	/**
+	 * Length of a PADDING_REQUIRED frame, and so of the shortest request
+	 * datagram the server answers.
+	 */
+	static final int PADDING_REQUIRED_SIZE = FRAME_HEADER_SIZE + 2;
+	
+	/**
+	 * Largest broadcast a door can produce: 255 points and a door ID.
+	 */
+	static final int MAX_BROADCAST_SIZE = BroadcastView.length(255) + BroadcastView.FLAGS_SIZE
+			+ BroadcastView.DOOR_ID_SIZE;
+	
+	/**
+	 * Largest payload the server sends, a session broadcast.
+	 */
+	static final int MAX_REPLY_SIZE = SESSION_ID_SIZE + MAX_BROADCAST_SIZE;
+	
+	/**
+	 * Requests are small, so each connection buffers at most this much
+	 * unprocessed input.
+	 */
+	private static final int INPUT_BUFFER_SIZE = 1024;
+	
+	/**
+	 * Most datagrams handled per selector wakeup, so UDP cannot starve TCP.
+	 */
+	private static final int DATAGRAM_BATCH = 64;
+	
+	private static final Logger log = Logger.getLogger(DoorServer.class.getName());
+	
+	private final ProtocolDoor door;
+	private final Selector selector;
+	private ServerSocketChannel tcp;
+	private DatagramChannel udp;
+	private SelectionKey acceptKey;
+	
+	private int maxConnections = 1024;
+	private int maxPendingOutput = 64 * 1024;
+	private int connections;
+	
+	private final ByteBuffer datagramIn = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE + MAX_REPLY_SIZE);
+	private final ByteBuffer datagramOut = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE + MAX_REPLY_SIZE);
+	
+	private Thread thread;
+	private volatile boolean running;
+	
+	/**
+	 * One TCP connection's buffers.
+	 */
+	private static final class Connection {
+		final SocketChannel channel;
+		final ByteBuffer in = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+		final ByteBuffer out;
+		
+		Connection(SocketChannel channel, int outputSize) {
+			this.channel = channel;
+			this.out = ByteBuffer.allocateDirect(outputSize);
+		}
+	}
+	
+	public DoorServer(ProtocolDoor door) throws IOException {
+		this.door = door;
+		this.selector = Selector.open();
+	}
+	
+	/**
+	 * Set the most TCP connections served at once. Call before start().
+	 */
+	public void setMaxConnections(int maxConnections) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("Max connections must be positive");
+		}
+		this.maxConnections = maxConnections;
+	}
+	
+	/**
+	 * Set how many bytes of replies may be queued for one connection before
+	 * the server stops reading its requests. Call before start().
+	 */
+	public void setMaxPendingOutput(int maxPendingOutput) {
+		if (maxPendingOutput < FRAME_HEADER_SIZE + MAX_REPLY_SIZE) {
+			throw new IllegalArgumentException("Pending output must fit at least one session broadcast");
+		}
+		this.maxPendingOutput = maxPendingOutput;
+	}
+	
+	/**
+	 * Listen for TCP connections. Call before start().
+	 * @param address the address to bind, e.g. with port 0 for any port
+	 * @return the bound address
+	 */
+	public InetSocketAddress bindTcp(SocketAddress address) throws IOException {
+		tcp = ServerSocketChannel.open();
+		tcp.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		tcp.bind(address);
+		tcp.configureBlocking(false);
+		acceptKey = tcp.register(selector, SelectionKey.OP_ACCEPT);
+		return (InetSocketAddress) tcp.getLocalAddress();
+	}
+	
+	/**
+	 * Listen for UDP datagrams. Call before start().
+	 * @return the bound address
+	 */
+	public InetSocketAddress bindUdp(SocketAddress address) throws IOException {
+		udp = DatagramChannel.open();
+		udp.bind(address);
+		udp.configureBlocking(false);
+		udp.register(selector, SelectionKey.OP_READ);
+		return (InetSocketAddress) udp.getLocalAddress();
+	}
+	
+	/**
+	 * Start serving on a new daemon thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			throw new IllegalStateException("Server already started");
+		}
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				serve();
+			}
+		}, "DoorServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Stop serving and close every channel.
+	 */
+	public synchronized void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+	}
+	
+	private void serve() {
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				break;
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.channel() == udp) {
+					receiveDatagrams();
+					continue;
+				}
+				try {
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						Connection connection = (Connection) key.attachment();
+						if (key.isWritable()) {
+							// write what is queued, then answer anything the
+							// full output left waiting
+							process(key, connection);
+						}
+						if (key.isValid() && key.isReadable()) {
+							read(key, connection);
+						}
+					}
+				} catch (IOException e) {
+					disconnect(key);
+				} catch (CancelledKeyException e) {
+					disconnect(key);
+				} catch (RuntimeException e) {
+					// a bug in handling one request must not stop the server
+					log.log(Level.WARNING, "Dropping connection after failed request", e);
+					disconnect(key);
+				}
+			}
+		}
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel channel = tcp.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		channel.register(selector, SelectionKey.OP_READ, new Connection(channel, maxPendingOutput));
+		connections++;
+		if (connections >= maxConnections) {
+			acceptKey.interestOps(0);
+		}
+	}
+	
+	private void disconnect(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// nothing more to do
+		}
+		if (key.attachment() instanceof Connection) {
+			connections--;
+			if (acceptKey != null && acceptKey.isValid()) {
+				acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+			}
+		}
+	}
+	
+	private void read(SelectionKey key, Connection connection) throws IOException {
+		int n = connection.channel.read(connection.in);
+		if (n < 0) {
+			disconnect(key);
+			return;
+		}
+		process(key, connection);
+	}
+	
+	/**
+	 * Answer every complete frame in the connection's input for which there
+	 * is room in its output, then write the replies out together.
+	 */
+	private void process(SelectionKey key, Connection connection) throws IOException {
+		ByteBuffer in = connection.in;
+		in.flip();
+		boolean blocked = false;
+		while (in.remaining() >= FRAME_HEADER_SIZE) {
+			int length = in.getShort(in.position() + 1) & 0xffff;
+			if (length > in.capacity() - FRAME_HEADER_SIZE) {
+				throw new IOException("Frame too long");
+			}
+			if (in.remaining() < FRAME_HEADER_SIZE + length) {
+				break;
+			}
+			if (connection.out.remaining() < FRAME_HEADER_SIZE + MAX_REPLY_SIZE) {
+				blocked = true;
+				break;
+			}
+			if (!handle(in, connection.out)) {
+				throw new IOException("Bad frame");
+			}
+		}
+		in.compact();
+		
+		ByteBuffer out = connection.out;
+		if (out.position() > 0) {
+			out.flip();
+			connection.channel.write(out);
+			out.compact();
+		}
+		
+		// stop reading while replies back up; the next OP_WRITE resumes
+		int ops = out.position() > 0 || blocked ? SelectionKey.OP_WRITE : 0;
+		if (!blocked && out.position() < maxPendingOutput / 2) {
+			ops |= SelectionKey.OP_READ;
+		}
+		key.interestOps(ops);
+	}
+	
+	/**
+	 * Handle the frame at the input's position, which must be complete,
+	 * putting any reply into out.
+	 * @return false if the frame is not valid
+	 */
+	private boolean handle(ByteBuffer in, ByteBuffer out) {
+		byte type = in.get();
+		int length = in.getShort() & 0xffff;
+		int end = in.position() + length;
+		
+		if (type == REQUEST_BROADCAST) {
+			in.position(end);
+			int start = out.position();
+			out.put(BROADCAST);
+			out.putShort((short) 0);
+			door.writeBroadcast(out);
+			out.putShort(start + 1, (short) (out.position() - start - FRAME_HEADER_SIZE));
+			return true;
+		}
+		if (type == REQUEST_SESSION) {
+			in.position(end);
+			int start = out.position();
+			out.put(SESSION_BROADCAST);
+			out.putShort((short) 0);
+			int idIndex = out.position();
+			out.putLong(0);
+			out.putLong(idIndex, door.openSession(out));
+			out.putShort(start + 1, (short) (out.position() - start - FRAME_HEADER_SIZE));
+			return true;
+		}
+		if (type == RESPONSE || (type == SESSION_RESPONSE && length >= SESSION_ID_SIZE)) {
+			int limit = in.limit();
+			in.limit(end);
+			boolean valid;
+			if (type == RESPONSE) {
+				valid = door.checkResponse(in);
+			} else {
+				long session = in.getLong();
+				valid = door.checkResponse(session, in);
+			}
+			in.limit(limit);
+			out.put(RESULT);
+			out.putShort((short) 1);
+			out.put((byte) (valid ? 1 : 0));
+			return true;
+		}
+		in.position(end);
+		return false;
+	}
+	
+	/**
+	 * Length of the frame answering a request of the given type, or 0 if the
+	 * reply is no longer than any request.
+	 */
+	private int replySize(byte type) {
+		if (type == REQUEST_BROADCAST) {
+			return FRAME_HEADER_SIZE + door.getBroadcastLength();
+		}
+		if (type == REQUEST_SESSION) {
+			return FRAME_HEADER_SIZE + SESSION_ID_SIZE + door.getBroadcastLength();
+		}
+		return 0;
+	}
+	
+	private void receiveDatagrams() {
+		for (int i = 0; i < DATAGRAM_BATCH; i++) {
+			datagramIn.clear();
+			SocketAddress sender;
+			try {
+				sender = udp.receive(datagramIn);
+			} catch (IOException e) {
+				return;
+			}
+			if (sender == null) {
+				return;
+			}
+			datagramIn.flip();
+			if (datagramIn.remaining() < FRAME_HEADER_SIZE
+					|| datagramIn.remaining() != FRAME_HEADER_SIZE + (datagramIn.getShort(1) & 0xffff)) {
+				continue;
+			}
+			int requestSize = datagramIn.remaining();
+			int required;
+			datagramOut.clear();
+			try {
+				required = replySize(datagramIn.get(0));
+				if (requestSize >= required) {
+					if (!handle(datagramIn, datagramOut)) {
+						continue;
+					}
+					// the broadcast may have grown since replySize() was checked
+					required = datagramOut.position();
+				}
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "Dropping failed request", e);
+				continue;
+			}
+			if (requestSize < required) {
+				if (requestSize < PADDING_REQUIRED_SIZE) {
+					continue;
+				}
+				datagramOut.clear();
+				datagramOut.put(PADDING_REQUIRED);
+				datagramOut.putShort((short) 2);
+				datagramOut.putShort((short) required);
+			}
+			datagramOut.flip();
+			try {
+				// a full socket buffer drops the reply, as the network might
+				udp.send(datagramOut, sender);
+			} catch (IOException e) {
+				// the reader will retry
+			}
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DoorServerTest {
+	
+	private ProtocolDoor door;
+	private DoorServer server;
+	private InetSocketAddress tcpAddress;
+	private InetSocketAddress udpAddress;
+	
+	@Before
+	public void setUp() throws IOException {
+		door = new ProtocolDoor(10);
+		server = new DoorServer(door);
+		tcpAddress = server.bindTcp(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		udpAddress = server.bindUdp(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.start();
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+	}
+	
+	@Test
+	public void testTcpExchange() throws IOException {
+		ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+		ProtocolCard revoked = new ProtocolCard(door.privatePoints(5001));
+		door.revoke(5001);
+		
+		DoorClient client = DoorClient.connectTcp(tcpAddress);
+		try {
+			assertArrayEquals(door.getBroadcast(), client.requestBroadcast());
+			assertTrue(client.authenticate(card));
+			assertFalse(client.sendResponse(new byte[SecretBox.HMAC_LENGTH]));
+			try {
+				client.authenticate(revoked);
+				fail("Expected ArithmeticException");
+			} catch (ArithmeticException e) {
+			}
+			
+			// the same connection keeps working across revocations
+			door.revoke(5002);
+			assertTrue(client.authenticate(card));
+		} finally {
+			client.close();
+		}
+	}
+	
+	@Test
+	public void testReplay() throws IOException {
+		ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+		DoorClient tcp = DoorClient.connectTcp(tcpAddress);
+		DoorClient udp = DoorClient.openUdp(udpAddress, 5000);
+		try {
+			// a response captured on the wire is good for one use only
+			byte[] response = card.authenticate(tcp.requestBroadcast());
+			assertTrue(tcp.sendResponse(response));
+			assertFalse(tcp.sendResponse(response));
+			assertFalse(udp.sendResponse(response));
+			
+			assertTrue(udp.sendResponse(card.authenticate(udp.requestBroadcast())));
+			assertTrue(tcp.authenticate(card));
+		} finally {
+			tcp.close();
+			udp.close();
+		}
+	}
+	
+	@Test
+	public void testSessions() throws IOException {
+		ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+		
+		DoorClient tcp = DoorClient.connectTcp(tcpAddress);
+		DoorClient udp = DoorClient.openUdp(udpAddress, 5000);
+		try {
+			assertTrue(tcp.authenticateSession(card));
+			assertTrue(udp.authenticateSession(card));
+			
+			// two sessions in flight at once, answered out of order
+			ByteBuffer first = ByteBuffer.wrap(tcp.requestSession());
+			ByteBuffer second = ByteBuffer.wrap(udp.requestSession());
+			long firstId = first.getLong();
+			long secondId = second.getLong();
+			byte[] secondResponse = card.authenticate(rest(second));
+			byte[] firstResponse = card.authenticate(rest(first));
+			assertTrue(tcp.sendSessionResponse(secondId, secondResponse));
+			assertTrue(udp.sendSessionResponse(firstId, firstResponse));
+			assertFalse(tcp.sendSessionResponse(firstId, firstResponse));
+		} finally {
+			tcp.close();
+			udp.close();
+		}
+	}
+	
+	private static byte[] rest(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+	
+	@Test
+	public void testUdpExchange() throws IOException {
+		door.setDoorId(99);
+		CredentialWallet wallet = new CredentialWallet();
+		wallet.put(99, new ProtocolCard(door.privatePoints(5000)));
+		
+		DoorClient client = DoorClient.openUdp(udpAddress, 5000);
+		try {
+			assertTrue(client.authenticate(wallet));
+			assertFalse(client.sendResponse(new byte[SecretBox.HMAC_LENGTH]));
+			
+			// the broadcast grows, and the client pads for it
+			door.revoke(5001);
+			assertTrue(client.authenticate(wallet));
+		} finally {
+			client.close();
+		}
+	}
+	
+	@Test
+	public void testUdpAmplification() throws IOException {
+		int replySize = DoorServer.FRAME_HEADER_SIZE + door.getBroadcastLength();
+		DatagramSocket socket = new DatagramSocket();
+		socket.setSoTimeout(500);
+		try {
+			// an unpadded request would get a reply many times its size
+			byte[] request = { DoorServer.REQUEST_BROADCAST, 0, 0 };
+			socket.send(new DatagramPacket(request, request.length, udpAddress));
+			try {
+				socket.receive(new DatagramPacket(new byte[replySize], replySize));
+				fail("Expected SocketTimeoutException");
+			} catch (SocketTimeoutException e) {
+			}
+			
+			// a little padding is told how much it needs
+			byte[] small = { DoorServer.REQUEST_BROADCAST, 0, 2, 0, 0 };
+			socket.send(new DatagramPacket(small, small.length, udpAddress));
+			DatagramPacket required = new DatagramPacket(new byte[replySize], replySize);
+			socket.receive(required);
+			assertEquals(DoorServer.PADDING_REQUIRED_SIZE, required.getLength());
+			ByteBuffer frame = ByteBuffer.wrap(required.getData());
+			assertEquals(DoorServer.PADDING_REQUIRED, frame.get());
+			assertEquals(2, frame.getShort());
+			assertEquals(replySize, frame.getShort() & 0xffff);
+			
+			// padded to the reply's size, it is answered
+			ByteBuffer padded = ByteBuffer.allocate(replySize);
+			padded.put(DoorServer.REQUEST_BROADCAST);
+			padded.putShort((short) (replySize - DoorServer.FRAME_HEADER_SIZE));
+			socket.send(new DatagramPacket(padded.array(), replySize, udpAddress));
+			DatagramPacket reply = new DatagramPacket(new byte[replySize], replySize);
+			socket.receive(reply);
+			assertEquals(replySize, reply.getLength());
+			assertEquals(DoorServer.BROADCAST, reply.getData()[0]);
+		} finally {
+			socket.close();
+		}
+	}
+	
+	@Test
+	public void testFailedRequest() throws IOException {
+		server.close();
+		server = new DoorServer(new ProtocolDoor(10) {
+			@Override
+			public boolean checkResponse(ByteBuffer response) {
+				throw new IllegalStateException("Broken door");
+			}
+		});
+		tcpAddress = server.bindTcp(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		udpAddress = server.bindUdp(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.start();
+		
+		DoorClient tcp = DoorClient.connectTcp(tcpAddress);
+		try {
+			tcp.sendResponse(new byte[SecretBox.HMAC_LENGTH]);
+			fail("Expected EOFException");
+		} catch (EOFException e) {
+		} finally {
+			tcp.close();
+		}
+		DoorClient udp = DoorClient.openUdp(udpAddress, 500);
+		try {
+			udp.sendResponse(new byte[SecretBox.HMAC_LENGTH]);
+			fail("Expected SocketTimeoutException");
+		} catch (SocketTimeoutException e) {
+		}
+		
+		// the server carries on
+		try {
+			assertNotNull(udp.requestBroadcast());
+		} finally {
+			udp.close();
+		}
+		tcp = DoorClient.connectTcp(tcpAddress);
+		try {
+			assertNotNull(tcp.requestBroadcast());
+		} finally {
+			tcp.close();
+		}
+	}
+	
+	@Test
+	public void testConcurrentClients() throws Exception {
+		final ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+		ExecutorService pool = Executors.newFixedThreadPool(16);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int c = 0; c < 64; c++) {
+			final boolean udp = c % 4 == 0;
+			results.add(pool.submit(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					DoorClient client = udp ? DoorClient.openUdp(udpAddress, 5000) : DoorClient.connectTcp(tcpAddress);
+					try {
+						int accepted = 0;
+						for (int i = 0; i < 10; i++) {
+							if (client.authenticate(card)) {
+								accepted++;
+							}
+						}
+						return accepted;
+					} finally {
+						client.close();
+					}
+				}
+			}));
+		}
+		for (Future<Integer> result : results) {
+			assertEquals(Integer.valueOf(10), result.get());
+		}
+		pool.shutdown();
+	}
+	
+	@Test
+	public void testPipelinedRequests() throws IOException {
+		// far more replies than the server will queue, sent before any are read
+		int requests = 2000;
+		ByteBuffer frames = ByteBuffer.allocate(requests * DoorServer.FRAME_HEADER_SIZE);
+		for (int i = 0; i < requests; i++) {
+			frames.put(DoorServer.REQUEST_BROADCAST);
+			frames.putShort((short) 0);
+		}
+		frames.flip();
+		
+		byte[] broadcast = door.getBroadcast();
+		SocketChannel channel = SocketChannel.open(tcpAddress);
+		try {
+			while (frames.hasRemaining()) {
+				channel.write(frames);
+			}
+			
+			ByteBuffer reply = ByteBuffer.allocate(DoorServer.FRAME_HEADER_SIZE + broadcast.length);
+			for (int i = 0; i < requests; i++) {
+				reply.clear();
+				while (reply.hasRemaining()) {
+					assertTrue(channel.read(reply) >= 0);
+				}
+				assertEquals(DoorServer.BROADCAST, reply.get(0));
+				assertEquals(broadcast.length, reply.getShort(1));
+			}
+		} finally {
+			channel.close();
+		}
+	}
+	
+	@Test
+	public void testBadFrameClosesConnection() throws IOException {
+		SocketChannel channel = SocketChannel.open(tcpAddress);
+		try {
+			channel.write(ByteBuffer.wrap(new byte[] { 42, 0, 0 }));
+			assertEquals(-1, channel.read(ByteBuffer.allocate(16)));
+		} finally {
+			channel.close();
+		}
+		
+		// the server carries on
+		DoorClient client = DoorClient.connectTcp(tcpAddress);
+		try {
+			assertArrayEquals(door.getBroadcast(), client.requestBroadcast());
+		} finally {
+			client.close();
+		}
+	}
+	
+	@Test
+	public void testConnectionLimit() throws IOException {
+		server.close();
+		server = new DoorServer(door);
+		server.setMaxConnections(1);
+		tcpAddress = server.bindTcp(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.start();
+		
+		ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+		DoorClient first = DoorClient.connectTcp(tcpAddress);
+		assertTrue(first.authenticate(card));
+		first.close();
+		
+		// the slot is freed when the first client leaves
+		DoorClient second = DoorClient.connectTcp(tcpAddress);
+		try {
+			assertTrue(second.authenticate(card));
+		} finally {
+			second.close();
+		}
+	}
+}
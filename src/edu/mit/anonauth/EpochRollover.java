@@ -0,0 +1,446 @@
+package edu.mit.anonauth;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves a door to a new generation of polynomials without taking it down.
+ *
+ * A door can revoke at most r users. To keep revoking after that, it needs
+ * new polynomials, and every user who is not revoked needs a new card. A
+ * rollover does this in stages while the current door keeps serving:
+ *
+ *   1. The next generation's door is built on an executor.
+ *   2. reissue() streams private points from the next generation for every
+ *      enrolled user who is not revoked. It can checkpoint its progress, so
+ *      an interrupted job picks up where it left off.
+ *   3. beginOverlap() serves both generations for a while. getBroadcasts()
+ *      offers the new broadcast first, and checkResponse() accepts a
+ *      response to either. When the window ends the old generation is
+ *      retired.
+ *
+ * Revocations made during a rollover must go through revoke(), which
+ * applies them to both generations: to the old door at once, and to the
+ * next one as soon as it has been built. If the old door has no room left
+ * for a revocation, it is retired at once, since it could otherwise still
+ * admit the revoked user; users not yet reissued then lose access. Start a
+ * rollover while remainingRevocations() leaves some headroom.
+ */
+public class EpochRollover {
+
+	public enum State {
+		/** The next generation is still being built. */
+		PREPARING,
+		/** The next generation is ready; only the old one is served. */
+		READY,
+		/** Both generations are served. */
+		OVERLAP,
+		/** Only the next generation is served. */
+		COMPLETE
+	}
+
+	/**
+	 * Checkpoint format: the next generation's degree-0 secret hash, which
+	 * identifies it, then the number of users processed.
+	 */
+	private static final int CHECKPOINT_SIZE = 32 + 8;
+
+	private final ProtocolDoor current;
+	private final FutureTask<ProtocolDoor> next;
+
+	/**
+	 * Users revoked before or during the rollover, who are not reissued.
+	 */
+	private final Set<Integer> revoked = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	/**
+	 * Revocations not yet applied to the next door, because it was still
+	 * being built.
+	 */
+	private final Queue<Integer> pending = new ConcurrentLinkedQueue<Integer>();
+
+	private volatile boolean overlapping;
+	private volatile long overlapDeadline;
+	private volatile boolean retired;
+
+	private Path checkpoint;
+	private int batchSize = 1024;
+
+	/**
+	 * Start a rollover, building the next generation from the given
+	 * polynomials on the executor.
+	 * @param nextSecrets produces the next generation's polynomials, e.g.
+	 *   SecretStore.random(r), which takes O(r^2) time
+	 */
+	public EpochRollover(ProtocolDoor current, final Callable<SecretStore> nextSecrets, Executor executor) {
+		this.current = current;
+		for (BigInteger user : current.currentEpoch().blacklist) {
+			revoked.add(user.intValue());
+		}
+
+		final Integer doorId = current.getDoorId();
+		next = new FutureTask<ProtocolDoor>(new Callable<ProtocolDoor>() {
+			public ProtocolDoor call() throws Exception {
+				ProtocolDoor door = new ProtocolDoor(nextSecrets.call());
+				door.setDoorId(doorId);
+				return door;
+			}
+		}) {
+			protected void done() {
+				ProtocolDoor door = builtNextDoor();
+				if (door != null) {
+					try {
+						applyPending(door);
+					} catch (RuntimeException e) {
+						// left pending, to be retried by the next caller
+					}
+				}
+			}
+		};
+		executor.execute(next);
+	}
+
+	/**
+	 * Start a rollover to polynomials which are already available, such as
+	 * a seeded store, building the next door on the calling thread.
+	 */
+	public EpochRollover(ProtocolDoor current, final SecretStore nextSecrets) {
+		this(current, new Callable<SecretStore>() {
+			public SecretStore call() {
+				return nextSecrets;
+			}
+		}, new Executor() {
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+	}
+
+	/**
+	 * Save reissue() progress to this file, and resume from it if it exists.
+	 * Resuming only makes sense with the same next generation, e.g. one
+	 * rebuilt from a saved seed; a checkpoint from a different generation is
+	 * refused.
+	 */
+	public void setCheckpoint(Path checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Set the number of users issued between checkpoints; see
+	 * CardProvisioner.setBatchSize().
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive");
+		}
+		this.batchSize = batchSize;
+	}
+
+	public ProtocolDoor oldDoor() {
+		return current;
+	}
+
+	/**
+	 * Get the next generation's door, waiting for it to be built.
+	 * @throws IllegalStateException if building it failed
+	 */
+	public ProtocolDoor nextDoor() throws InterruptedException {
+		try {
+			return applyPending(next.get());
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Unable to build the next generation", e.getCause());
+		}
+	}
+
+	public State getState() {
+		if (!next.isDone()) {
+			return State.PREPARING;
+		}
+		if (!overlapping) {
+			return State.READY;
+		}
+		if (!retired && System.nanoTime() - overlapDeadline >= 0) {
+			retired = true;
+		}
+		return retired ? State.COMPLETE : State.OVERLAP;
+	}
+
+	/**
+	 * Issue next-generation private points to every user the iterator
+	 * produces, in order, except those who are revoked. With a checkpoint
+	 * set, users processed by an earlier, interrupted call are skipped;
+	 * the iterator must produce the same users in the same order each time.
+	 * @return the number of cards issued by this call
+	 */
+	public long reissue(Iterator<Integer> users, final CardProvisioner.CardSink sink)
+			throws IOException, InterruptedException {
+		final ProtocolDoor nextDoor = nextDoor();
+		final byte[] generation = nextDoor.secretStore().get(0).secretHash();
+
+		final long resumeFrom = readCheckpoint(generation);
+		final EligibleUsers eligible = new EligibleUsers(users, resumeFrom);
+		final long[] issued = new long[1];
+
+		CardProvisioner provisioner = new CardProvisioner(nextDoor);
+		provisioner.setBatchSize(batchSize);
+		provisioner.setProgressListener(new CardProvisioner.ProgressListener() {
+			public void progress(long done, long total) {
+				try {
+					writeCheckpoint(generation, eligible.delivered);
+				} catch (IOException e) {
+					// an older checkpoint only means redoing some work
+				}
+			}
+		});
+		provisioner.provision(eligible, new CardProvisioner.CardSink() {
+			public void accept(int user, List<Point> privatePoints) throws IOException {
+				sink.accept(user, privatePoints);
+				eligible.delivered = eligible.positions.remove() + 1;
+				issued[0]++;
+			}
+		});
+
+		writeCheckpoint(generation, eligible.delivered);
+		return issued[0];
+	}
+
+	/**
+	 * Filters out revoked users and remembers the position of each user it
+	 * yields, so the checkpoint can record how far the sink has got even
+	 * though the provisioner reads ahead.
+	 */
+	private class EligibleUsers implements Iterator<Integer> {
+		private final Iterator<Integer> users;
+		private long position;
+		private Integer nextUser;
+		final ArrayDeque<Long> positions = new ArrayDeque<Long>();
+		long delivered;
+
+		EligibleUsers(Iterator<Integer> users, long skip) {
+			this.users = users;
+			while (position < skip && users.hasNext()) {
+				users.next();
+				position++;
+			}
+			this.delivered = position;
+		}
+
+		public boolean hasNext() {
+			while (nextUser == null && users.hasNext()) {
+				Integer user = users.next();
+				position++;
+				if (!revoked.contains(user)) {
+					nextUser = user;
+					positions.add(position - 1);
+				} else if (positions.isEmpty()) {
+					delivered = position;
+				}
+			}
+			return nextUser != null;
+		}
+
+		public Integer next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Integer user = nextUser;
+			nextUser = null;
+			return user;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private long readCheckpoint(byte[] generation) throws IOException {
+		if (checkpoint == null || !Files.exists(checkpoint)) {
+			return 0;
+		}
+		ByteBuffer saved = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+		if (saved.remaining() != CHECKPOINT_SIZE) {
+			throw new IOException("Not a rollover checkpoint");
+		}
+		byte[] hash = new byte[32];
+		saved.get(hash);
+		if (!MessageDigest.isEqual(hash, generation)) {
+			throw new IllegalStateException("Checkpoint belongs to a different generation");
+		}
+		return saved.getLong();
+	}
+
+	private void writeCheckpoint(byte[] generation, long position) throws IOException {
+		if (checkpoint == null) {
+			return;
+		}
+		ByteBuffer saved = ByteBuffer.allocate(CHECKPOINT_SIZE);
+		saved.put(generation);
+		saved.putLong(position);
+		saved.flip();
+
+		Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+		FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (saved.hasRemaining()) {
+				channel.write(saved);
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Serve both generations until the window ends, then only the next.
+	 */
+	public void beginOverlap(long window, TimeUnit unit) throws InterruptedException {
+		nextDoor();
+		overlapDeadline = System.nanoTime() + unit.toNanos(window);
+		overlapping = true;
+	}
+
+	/**
+	 * Stop serving the old generation now.
+	 */
+	public void retire() throws InterruptedException {
+		nextDoor();
+		overlapping = true;
+		retired = true;
+	}
+
+	/**
+	 * Revoke a user in both generations. The old door is revoked or retired
+	 * first, without waiting for the next generation; if that is still being
+	 * built, the revocation is applied to it once it is ready.
+	 */
+	public synchronized void revoke(int user) throws InterruptedException {
+		if (getState() != State.COMPLETE) {
+			if (current.remainingRevocations() > 0) {
+				current.revokeAll(Collections.singleton(user));
+			} else {
+				retired = true;
+				overlapping = true;
+			}
+		}
+		revoked.add(user);
+		pending.add(user);
+		ProtocolDoor nextDoor = builtNextDoor();
+		if (nextDoor != null) {
+			applyPending(nextDoor);
+		}
+	}
+
+	/**
+	 * Apply queued revocations to the next door.
+	 * @return nextDoor
+	 */
+	private ProtocolDoor applyPending(ProtocolDoor nextDoor) {
+		if (!pending.isEmpty()) {
+			synchronized (this) {
+				List<Integer> users = new ArrayList<Integer>(pending);
+				nextDoor.revokeAll(users);
+				pending.removeAll(users);
+			}
+		}
+		return nextDoor;
+	}
+
+	/**
+	 * The broadcasts being served, newest generation first. A reader offers
+	 * each to the card in turn; a card from the other generation fails with
+	 * a hash mismatch.
+	 */
+	public List<byte[]> getBroadcasts() {
+		List<byte[]> broadcasts = new ArrayList<byte[]>(2);
+		switch (getState()) {
+		case OVERLAP:
+			broadcasts.add(applyPending(doneNextDoor()).getBroadcast());
+			broadcasts.add(current.getBroadcast());
+			break;
+		case COMPLETE:
+			broadcasts.add(applyPending(doneNextDoor()).getBroadcast());
+			break;
+		default:
+			broadcasts.add(current.getBroadcast());
+		}
+		return broadcasts;
+	}
+
+	/**
+	 * Check a response to any of the broadcasts being served. As with
+	 * ProtocolDoor.checkResponse(), the door whose broadcast was answered
+	 * moves to a new challenge, so the response cannot be replayed.
+	 */
+	public boolean checkResponse(byte[] response) {
+		State state = getState();
+		boolean valid = false;
+		if (response != null) {
+			if (state == State.OVERLAP || state == State.COMPLETE) {
+				valid = applyPending(doneNextDoor()).acceptResponse(response);
+			}
+			if (!valid && state != State.COMPLETE) {
+				valid = current.acceptResponse(response);
+			}
+		}
+		Metrics.installed().increment(valid ? Metrics.Counter.RESPONSE_ACCEPTED : Metrics.Counter.RESPONSE_REJECTED);
+		return valid;
+	}
+
+	/**
+	 * The next door if it has been built, or null if it is still being built
+	 * or building it failed.
+	 */
+	private ProtocolDoor builtNextDoor() {
+		if (!next.isDone()) {
+			return null;
+		}
+		try {
+			return next.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			return null;
+		} catch (CancellationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The next door, once next.isDone(), without applying queued revocations.
+	 */
+	private ProtocolDoor doneNextDoor() {
+		try {
+			return next.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Unable to build the next generation", e.getCause());
+		}
+	}
+}
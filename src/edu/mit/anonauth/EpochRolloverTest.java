@@ -0,0 +1,250 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EpochRolloverTest {
+	
+	private static final int R = 3;
+	
+	private static List<Integer> users() {
+		List<Integer> users = new ArrayList<Integer>();
+		for (int user = 1000; user < 1010; user++) {
+			users.add(user);
+		}
+		return users;
+	}
+	
+	private static Map<Integer, ProtocolCard> issue(EpochRollover rollover, Iterator<Integer> users)
+			throws IOException, InterruptedException {
+		final Map<Integer, ProtocolCard> cards = new HashMap<Integer, ProtocolCard>();
+		rollover.reissue(users, new CardProvisioner.CardSink() {
+			public void accept(int user, List<Point> privatePoints) {
+				cards.put(user, new ProtocolCard(privatePoints));
+			}
+		});
+		return cards;
+	}
+	
+	/**
+	 * Offer each broadcast to the card in turn, as a reader would.
+	 */
+	private static boolean exchange(EpochRollover rollover, ProtocolCard card) {
+		for (byte[] broadcast : rollover.getBroadcasts()) {
+			byte[] response;
+			try {
+				response = card.authenticate(broadcast);
+			} catch (RuntimeException e) {
+				// a card from the other generation, or a revoked one
+				continue;
+			}
+			return rollover.checkResponse(response);
+		}
+		return false;
+	}
+	
+	@Test
+	public void testRollover() throws Exception {
+		ProtocolDoor door = new ProtocolDoor(R);
+		Map<Integer, ProtocolCard> oldCards = new HashMap<Integer, ProtocolCard>();
+		for (int user : users()) {
+			oldCards.put(user, new ProtocolCard(door.privatePoints(user)));
+		}
+		door.revoke(1001);
+		door.revoke(1002);
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			EpochRollover rollover = new EpochRollover(door, new Callable<SecretStore>() {
+				public SecretStore call() {
+					return SecretStore.random(R);
+				}
+			}, executor);
+			rollover.nextDoor();
+			assertEquals(EpochRollover.State.READY, rollover.getState());
+			
+			Map<Integer, ProtocolCard> newCards = issue(rollover, users().iterator());
+			assertEquals(8, newCards.size());
+			assertFalse(newCards.containsKey(1001));
+			assertFalse(newCards.containsKey(1002));
+			
+			// only the old generation is served until the overlap
+			assertEquals(1, rollover.getBroadcasts().size());
+			assertTrue(exchange(rollover, oldCards.get(1000)));
+			assertFalse(exchange(rollover, newCards.get(1000)));
+			assertFalse(exchange(rollover, oldCards.get(1001)));
+			
+			rollover.beginOverlap(1, TimeUnit.HOURS);
+			assertEquals(EpochRollover.State.OVERLAP, rollover.getState());
+			assertEquals(2, rollover.getBroadcasts().size());
+			assertTrue(exchange(rollover, oldCards.get(1000)));
+			assertTrue(exchange(rollover, newCards.get(1000)));
+			assertFalse(exchange(rollover, oldCards.get(1001)));
+			
+			// a revocation reaches both generations
+			rollover.revoke(1003);
+			assertFalse(exchange(rollover, oldCards.get(1003)));
+			assertFalse(exchange(rollover, newCards.get(1003)));
+			assertTrue(exchange(rollover, newCards.get(1004)));
+			
+			// the old door is now full, so the next revocation retires it
+			assertEquals(0, door.remainingRevocations());
+			rollover.revoke(1005);
+			assertEquals(EpochRollover.State.COMPLETE, rollover.getState());
+			assertFalse(exchange(rollover, oldCards.get(1000)));
+			assertTrue(exchange(rollover, newCards.get(1000)));
+			assertFalse(exchange(rollover, newCards.get(1005)));
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	@Test
+	public void testOverlapExpires() throws Exception {
+		ProtocolDoor door = new ProtocolDoor(R);
+		ProtocolCard oldCard = new ProtocolCard(door.privatePoints(1000));
+		
+		EpochRollover rollover = new EpochRollover(door, SecretStore.fromSeed(R, SecretStore.randomSeed()));
+		ProtocolCard newCard = issue(rollover, users().iterator()).get(1000);
+		rollover.beginOverlap(20, TimeUnit.MILLISECONDS);
+		assertTrue(exchange(rollover, oldCard));
+		Thread.sleep(50);
+		
+		assertEquals(EpochRollover.State.COMPLETE, rollover.getState());
+		assertFalse(exchange(rollover, oldCard));
+		assertTrue(exchange(rollover, newCard));
+	}
+	
+	@Test
+	public void testRevokeWhilePreparing() throws Exception {
+		ProtocolDoor door = new ProtocolDoor(R);
+		ProtocolCard oldCard = new ProtocolCard(door.privatePoints(1003));
+		
+		// an executor which only runs the build when told to
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		EpochRollover rollover = new EpochRollover(door, new Callable<SecretStore>() {
+			public SecretStore call() {
+				return SecretStore.random(R);
+			}
+		}, new Executor() {
+			public void execute(Runnable command) {
+				tasks.add(command);
+			}
+		});
+		assertEquals(EpochRollover.State.PREPARING, rollover.getState());
+		
+		// the old door revokes at once, without waiting for the build
+		rollover.revoke(1003);
+		assertEquals(1, door.currentEpoch().polyDegree);
+		assertFalse(exchange(rollover, oldCard));
+		
+		// and the next door has the revocation as soon as it is built
+		tasks.get(0).run();
+		assertEquals(1, rollover.nextDoor().currentEpoch().polyDegree);
+		rollover.retire();
+		ProtocolCard newCard = new ProtocolCard(rollover.nextDoor().privatePoints(1003));
+		assertFalse(exchange(rollover, newCard));
+	}
+	
+	@Test
+	public void testBuildFails() throws Exception {
+		ProtocolDoor door = new ProtocolDoor(R);
+		ProtocolCard card = new ProtocolCard(door.privatePoints(1003));
+		EpochRollover rollover = new EpochRollover(door, new Callable<SecretStore>() {
+			public SecretStore call() throws IOException {
+				throw new IOException("No space left on device");
+			}
+		}, Executors.newSingleThreadExecutor());
+		
+		// a revocation still reaches the door being served
+		rollover.revoke(1003);
+		assertFalse(exchange(rollover, card));
+		try {
+			rollover.nextDoor();
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+	
+	@Test
+	public void testFullDoor() {
+		ProtocolDoor door = new ProtocolDoor(1);
+		door.revoke(1000);
+		assertEquals(0, door.remainingRevocations());
+		try {
+			door.revoke(1001);
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+	}
+	
+	@Test
+	public void testResume() throws Exception {
+		Path dir = Files.createTempDirectory("rollover");
+		Path checkpoint = dir.resolve("checkpoint");
+		byte[] seed = SecretStore.randomSeed();
+		ProtocolDoor door = new ProtocolDoor(R);
+		door.revoke(1001);
+		
+		// the first attempt fails partway through
+		EpochRollover first = new EpochRollover(door, SecretStore.fromSeed(R, seed));
+		first.setCheckpoint(checkpoint);
+		first.setBatchSize(2);
+		final List<Integer> issued = new ArrayList<Integer>();
+		try {
+			first.reissue(users().iterator(), new CardProvisioner.CardSink() {
+				public void accept(int user, List<Point> privatePoints) throws IOException {
+					if (issued.size() == 5) {
+						throw new IOException("Disk full");
+					}
+					issued.add(user);
+				}
+			});
+			fail("Expected IOException");
+		} catch (IOException e) {
+		}
+		
+		// the second picks up after the last completed batch
+		EpochRollover second = new EpochRollover(door, SecretStore.fromSeed(R, seed));
+		second.setCheckpoint(checkpoint);
+		second.setBatchSize(2);
+		Map<Integer, ProtocolCard> rest = issue(second, users().iterator());
+		assertEquals(5, rest.size());
+		assertFalse(rest.containsKey(issued.get(3)));
+		assertTrue(rest.containsKey(issued.get(4)));
+		assertTrue(rest.containsKey(1009));
+		
+		// cards issued by either attempt work
+		second.retire();
+		assertTrue(exchange(second, rest.get(1009)));
+		assertTrue(exchange(second, new ProtocolCard(second.nextDoor().privatePoints(issued.get(0)))));
+		
+		// a checkpoint is tied to its generation
+		EpochRollover other = new EpochRollover(door, SecretStore.fromSeed(R, SecretStore.randomSeed()));
+		other.setCheckpoint(checkpoint);
+		try {
+			issue(other, users().iterator());
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+		
+		Files.delete(checkpoint);
+		Files.delete(dir);
+	}
+}
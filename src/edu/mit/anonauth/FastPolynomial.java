@@ -0,0 +1,299 @@
+package edu.mit.anonauth;
+
+import java.util.Arrays;
+
+/**
+ * Subquadratic polynomial arithmetic over the field, for large degrees.
+ *
+ * Polynomials are arrays of coefficients, constant term first. Products
+ * use Karatsuba's method above a small size, and division uses a Newton
+ * iteration for the reciprocal of the divisor, so both take O(M(n)) time
+ * where M(n) = n^1.58 is the cost of a multiplication. A subproduct tree
+ * over n points, the products prod (x - x_i) over halves, quarters and so
+ * on of the points, then gives multipoint evaluation by taking remainders
+ * down the tree, in O(M(n) log n) rather than the O(n^2) of evaluating
+ * at each point separately. The field has no large power-of-two roots of
+ * unity (p - 1 is twice an odd number), so an NTT is not available.
+ *
+ * Polynomial.samplePolynomial() and Interpolator switch to these methods
+ * at EVALUATE_THRESHOLD and INTERPOLATE_THRESHOLD points respectively;
+ * below those the quadratic methods are faster (see FastPolynomialBenchmark).
+ */
+final class FastPolynomial {
+
+	/**
+	 * Number of points, and of coefficients, from which multipoint
+	 * evaluation uses the subproduct tree rather than HornerLanes.
+	 */
+	static final int EVALUATE_THRESHOLD = 4096;
+
+	/**
+	 * Number of points from which Interpolator finds its weights with the
+	 * subproduct tree.
+	 */
+	static final int INTERPOLATE_THRESHOLD = 2048;
+
+	/**
+	 * Products of polynomials shorter than this are done by schoolbook
+	 * multiplication.
+	 */
+	private static final int KARATSUBA_THRESHOLD = 48;
+
+	/**
+	 * Subtrees with at most this many points are evaluated by Horner's rule
+	 * rather than split further.
+	 */
+	private static final int LEAF_SIZE = 256;
+
+	private FastPolynomial() { }
+
+	/**
+	 * The product prod (x - xs[i]) over a subset of the points, and its
+	 * children for the two halves of the subset.
+	 */
+	private static final class Node {
+		final int from;
+		final int to;
+		final FieldElement[] product;
+		final Node left;
+		final Node right;
+
+		Node(int from, int to, FieldElement[] product, Node left, Node right) {
+			this.from = from;
+			this.to = to;
+			this.product = product;
+			this.left = left;
+			this.right = right;
+		}
+	}
+
+	/**
+	 * Evaluate a polynomial at each of xs, storing the results in the
+	 * corresponding elements of ys.
+	 */
+	static void evaluate(FieldElement[] coefficients, FieldElement[] xs, FieldElement[] ys) {
+		if (xs.length == 0) {
+			return;
+		}
+		evaluate(buildTree(xs, 0, xs.length), coefficients, xs, ys);
+	}
+
+	/**
+	 * Compute prod_{j != i} (xs[i] - xs[j]) for every i, the denominators of
+	 * the Lagrange basis, as the derivative of prod (x - xs[j]) evaluated at
+	 * each xs[i].
+	 */
+	static void lagrangeDenominators(FieldElement[] xs, FieldElement[] out) {
+		if (xs.length == 0) {
+			return;
+		}
+		Node root = buildTree(xs, 0, xs.length);
+		evaluate(root, derivative(root.product), xs, out);
+	}
+
+	private static Node buildTree(FieldElement[] xs, int from, int to) {
+		if (to - from <= LEAF_SIZE) {
+			// multiply in one linear factor at a time
+			FieldElement[] product = zeros(to - from + 1);
+			product[0].set(1);
+			FieldElement term = new FieldElement();
+			for (int i = from; i < to; i++) {
+				int degree = i - from;
+				product[degree + 1].set(product[degree]);
+				for (int j = degree; j > 0; j--) {
+					product[j].subtract(product[j - 1], term.multiply(product[j], xs[i]));
+				}
+				product[0].negate(term.multiply(product[0], xs[i]));
+			}
+			return new Node(from, to, product, null, null);
+		}
+		int mid = (from + to) >>> 1;
+		Node left = buildTree(xs, from, mid);
+		Node right = buildTree(xs, mid, to);
+		return new Node(from, to, multiply(left.product, right.product), left, right);
+	}
+
+	private static void evaluate(Node node, FieldElement[] f, FieldElement[] xs, FieldElement[] ys) {
+		FieldElement[] r = remainder(f, node.product);
+		if (node.left == null) {
+			Polynomial.samplePolynomial(r, Arrays.copyOfRange(xs, node.from, node.to),
+					Arrays.copyOfRange(ys, node.from, node.to));
+			return;
+		}
+		evaluate(node.left, r, xs, ys);
+		evaluate(node.right, r, xs, ys);
+	}
+
+	/**
+	 * The product of two polynomials.
+	 */
+	static FieldElement[] multiply(FieldElement[] a, FieldElement[] b) {
+		if (a.length == 0 || b.length == 0) {
+			return new FieldElement[0];
+		}
+		FieldElement[] out = zeros(a.length + b.length - 1);
+		multiplyInto(a, b, out, 0);
+		return out;
+	}
+
+	/**
+	 * Add a*b to out, shifted up by offset.
+	 */
+	private static void multiplyInto(FieldElement[] a, FieldElement[] b, FieldElement[] out, int offset) {
+		int la = a.length;
+		int lb = b.length;
+		if (la == 0 || lb == 0) {
+			return;
+		}
+		if (Math.min(la, lb) < KARATSUBA_THRESHOLD) {
+			// schoolbook, a whole coefficient of the product at a time
+			for (int k = 0; k < la + lb - 1; k++) {
+				int from = Math.max(0, k - lb + 1);
+				int to = Math.min(k, la - 1);
+				out[offset + k].addProducts(a, from, b, k - from, to - from + 1);
+			}
+			return;
+		}
+
+		int h = (Math.max(la, lb) + 1) / 2;
+		if (lb <= h) {
+			// too unbalanced to split b; split only a
+			multiplyInto(Arrays.copyOfRange(a, 0, h), b, out, offset);
+			multiplyInto(Arrays.copyOfRange(a, h, la), b, out, offset + h);
+			return;
+		}
+		if (la <= h) {
+			multiplyInto(a, Arrays.copyOfRange(b, 0, h), out, offset);
+			multiplyInto(a, Arrays.copyOfRange(b, h, lb), out, offset + h);
+			return;
+		}
+
+		// (a0 + a1 x^h)(b0 + b1 x^h) = z0 + z1 x^h + z2 x^2h, where
+		// z1 = (a0 + a1)(b0 + b1) - z0 - z2
+		FieldElement[] a0 = Arrays.copyOfRange(a, 0, h);
+		FieldElement[] a1 = Arrays.copyOfRange(a, h, la);
+		FieldElement[] b0 = Arrays.copyOfRange(b, 0, h);
+		FieldElement[] b1 = Arrays.copyOfRange(b, h, lb);
+		FieldElement[] z0 = multiply(a0, b0);
+		FieldElement[] z2 = multiply(a1, b1);
+		FieldElement[] z1 = multiply(add(a0, a1), add(b0, b1));
+		for (int i = 0; i < z0.length; i++) {
+			z1[i].subtract(z1[i], z0[i]);
+		}
+		for (int i = 0; i < z2.length; i++) {
+			z1[i].subtract(z1[i], z2[i]);
+		}
+		addInto(z0, out, offset);
+		addInto(z1, out, offset + h);
+		addInto(z2, out, offset + 2 * h);
+	}
+
+	/**
+	 * The remainder of a divided by a monic polynomial b.
+	 */
+	static FieldElement[] remainder(FieldElement[] a, FieldElement[] b) {
+		int m = b.length - 1;
+		if (a.length <= m) {
+			return a;
+		}
+
+		// the reversed quotient is rev(a) / rev(b) mod x^(deg a - m + 1),
+		// and rev(b) has constant term 1 since b is monic
+		int quotientLength = a.length - m;
+		FieldElement[] reciprocal = reciprocal(reverse(b), quotientLength);
+		FieldElement[] quotient = reverse(truncate(multiply(truncate(reverse(a), quotientLength), reciprocal),
+				quotientLength));
+
+		// only the low m coefficients of a - q*b are nonzero
+		FieldElement[] product = multiply(quotient, b);
+		FieldElement[] r = zeros(m);
+		for (int i = 0; i < m; i++) {
+			r[i].subtract(a[i], product[i]);
+		}
+		return r;
+	}
+
+	/**
+	 * The power series g with f*g = 1 (mod x^n), by Newton's iteration
+	 * g = g(2 - fg), which doubles the number of correct terms each time.
+	 * f[0] must not be zero.
+	 */
+	static FieldElement[] reciprocal(FieldElement[] f, int n) {
+		FieldElement[] g = { new FieldElement().invert(f[0]) };
+		while (g.length < n) {
+			int h = g.length;
+			int k = Math.min(2 * h, n);
+
+			// fg = 1 + x^h t (mod x^k) since g is right to h terms, so the
+			// next g is g - x^h gt and only the low k - h terms of gt count
+			FieldElement[] fg = multiply(truncate(f, k), g);
+			FieldElement[] t = Arrays.copyOfRange(fg, h, k);
+			FieldElement[] gt = multiply(g, t);
+			FieldElement[] next = Arrays.copyOf(g, k);
+			for (int i = h; i < k; i++) {
+				next[i] = new FieldElement().negate(gt[i - h]);
+			}
+			g = next;
+		}
+		return g;
+	}
+
+	static FieldElement[] derivative(FieldElement[] f) {
+		if (f.length <= 1) {
+			return new FieldElement[0];
+		}
+		FieldElement[] d = new FieldElement[f.length - 1];
+		FieldElement i = new FieldElement();
+		for (int k = 1; k < f.length; k++) {
+			d[k - 1] = new FieldElement().multiply(f[k], i.set(k));
+		}
+		return d;
+	}
+
+	private static FieldElement[] add(FieldElement[] a, FieldElement[] b) {
+		FieldElement[] longer = a.length >= b.length ? a : b;
+		FieldElement[] shorter = a.length >= b.length ? b : a;
+		FieldElement[] sum = new FieldElement[longer.length];
+		for (int i = 0; i < sum.length; i++) {
+			sum[i] = i < shorter.length ? new FieldElement().add(longer[i], shorter[i]) : new FieldElement(longer[i]);
+		}
+		return sum;
+	}
+
+	private static void addInto(FieldElement[] a, FieldElement[] out, int offset) {
+		for (int i = 0; i < a.length; i++) {
+			FieldElement sum = out[offset + i];
+			sum.add(sum, a[i]);
+		}
+	}
+
+	/**
+	 * The first n coefficients of f, padded with zeroes if f is shorter.
+	 */
+	private static FieldElement[] truncate(FieldElement[] f, int n) {
+		if (f.length == n) {
+			return f;
+		}
+		FieldElement[] t = Arrays.copyOf(f, n);
+		for (int i = f.length; i < n; i++) {
+			t[i] = new FieldElement();
+		}
+		return t;
+	}
+
+	private static FieldElement[] reverse(FieldElement[] f) {
+		FieldElement[] r = new FieldElement[f.length];
+		for (int i = 0; i < f.length; i++) {
+			r[i] = f[f.length - 1 - i];
+		}
+		return r;
+	}
+
+	private static FieldElement[] zeros(int n) {
+		FieldElement[] z = new FieldElement[n];
+		for (int i = 0; i < n; i++) {
+			z[i] = new FieldElement();
+		}
+		return z;
+	}
+}
@@ -0,0 +1,110 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FastPolynomialTest {
+
+	private static FieldElement[] random(int n) {
+		FieldElement[] elements = new FieldElement[n];
+		for (int i = 0; i < n; i++) {
+			elements[i] = RandomPool.randomElement(new FieldElement());
+		}
+		return elements;
+	}
+
+	private static FieldElement[] zeros(int n) {
+		FieldElement[] elements = new FieldElement[n];
+		for (int i = 0; i < n; i++) {
+			elements[i] = new FieldElement();
+		}
+		return elements;
+	}
+
+	private static FieldElement[] schoolbook(FieldElement[] a, FieldElement[] b) {
+		FieldElement[] out = zeros(a.length + b.length - 1);
+		FieldElement term = new FieldElement();
+		for (int i = 0; i < a.length; i++) {
+			for (int j = 0; j < b.length; j++) {
+				out[i + j].add(out[i + j], term.multiply(a[i], b[j]));
+			}
+		}
+		return out;
+	}
+
+	@Test
+	public void testMultiply() {
+		int[][] sizes = { { 1, 1 }, { 3, 50 }, { 24, 24 }, { 100, 100 }, { 101, 37 }, { 30, 257 } };
+		for (int[] size : sizes) {
+			FieldElement[] a = random(size[0]);
+			FieldElement[] b = random(size[1]);
+			assertArrayEquals(schoolbook(a, b), FastPolynomial.multiply(a, b));
+			assertArrayEquals(schoolbook(a, b), FastPolynomial.multiply(b, a));
+		}
+	}
+
+	@Test
+	public void testRemainder() {
+		for (int m : new int[] { 1, 20, 90 }) {
+			FieldElement[] b = random(m + 1);
+			b[m].set(1);
+			FieldElement[] q = random(200);
+			FieldElement[] r = random(m);
+			FieldElement[] a = FastPolynomial.multiply(q, b);
+			for (int i = 0; i < m; i++) {
+				a[i].add(a[i], r[i]);
+			}
+			assertArrayEquals(r, FastPolynomial.remainder(a, b));
+		}
+
+		FieldElement[] f = random(77);
+		FieldElement[] g = FastPolynomial.multiply(f, FastPolynomial.reciprocal(f, 77));
+		assertEquals(new FieldElement(1), g[0]);
+		for (int i = 1; i < 77; i++) {
+			assertTrue(g[i].isZero());
+		}
+	}
+
+	@Test
+	public void testEvaluate() {
+		for (int[] size : new int[][] { { 0, 5 }, { 10, 1 }, { 300, 500 }, { 700, 150 } }) {
+			FieldElement[] coefficients = random(size[0]);
+			FieldElement[] xs = random(size[1]);
+			xs[0].set(0);
+			FieldElement[] expected = zeros(xs.length);
+			for (int i = 0; i < xs.length; i++) {
+				Polynomial.samplePolynomial(coefficients, xs[i], expected[i]);
+			}
+			FieldElement[] ys = zeros(xs.length);
+			FastPolynomial.evaluate(coefficients, xs, ys);
+			assertArrayEquals(expected, ys);
+		}
+	}
+
+	@Test
+	public void testInterpolatorAboveThreshold() {
+		int n = FastPolynomial.INTERPOLATE_THRESHOLD;
+		FieldElement[] coefficients = random(n);
+		FieldElement[] xs = random(n);
+		FieldElement[] ys = zeros(n);
+		Polynomial.samplePolynomial(coefficients, xs, ys);
+
+		FieldElement y = new FieldElement();
+		new Interpolator(xs).interpolateAtZero(ys, y);
+		assertEquals(coefficients[0], y);
+
+		FieldElement at = RandomPool.randomElement(new FieldElement());
+		FieldElement expected = new FieldElement();
+		Polynomial.samplePolynomial(coefficients, at, expected);
+		new Interpolator(xs).interpolate(at, ys, y);
+		assertEquals(expected, y);
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void testRepeatedX() {
+		FieldElement[] xs = random(FastPolynomial.INTERPOLATE_THRESHOLD);
+		xs[7].set(xs[1900]);
+		new Interpolator(xs);
+	}
+}
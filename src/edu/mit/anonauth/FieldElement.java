@@ -0,0 +1,378 @@
+package edu.mit.anonauth;
+
+import java.math.BigInteger;
+
+/**
+ * A mutable element of the prime field GF(2^128 + 51).
+ *
+ * Values are kept in canonical form, in [0, p), as five 26-bit limbs held in
+ * primitive longs (least significant first). Every arithmetic operation
+ * writes its result into the receiver and returns it, so that loops over the
+ * polynomial hot paths can reuse a handful of instances instead of
+ * allocating a BigInteger per step. Operands may alias the receiver.
+ *
+ * Reduction relies on p being a pseudo-Mersenne prime: since
+ * 2^128 = -51 (mod p), anything above bit 128 is folded back into the low
+ * limbs with a small multiplier instead of a division.
+ */
+public final class FieldElement {
+
+	private static final long MASK = (1L << 26) - 1;
+	private static final long TOP_MASK = (1L << 24) - 1;
+
+	/**
+	 * 2^128 mod p is -51, so 2^130 mod p is -204.
+	 */
+	private static final long FOLD_128 = -51;
+	private static final long FOLD_130 = -204;
+
+	/**
+	 * The top limb of p; the bottom limb is 51 and the others are zero.
+	 */
+	private static final long P4 = 1L << 24;
+
+	private long n0, n1, n2, n3, n4;
+
+	/**
+	 * Create a new element equal to zero.
+	 */
+	public FieldElement() { }
+
+	public FieldElement(long x) {
+		set(x);
+	}
+
+	public FieldElement(BigInteger x) {
+		set(x);
+	}
+
+	public FieldElement(FieldElement x) {
+		set(x);
+	}
+
+	public FieldElement set(FieldElement x) {
+		n0 = x.n0;
+		n1 = x.n1;
+		n2 = x.n2;
+		n3 = x.n3;
+		n4 = x.n4;
+		return this;
+	}
+
+	/**
+	 * Set this element to x (mod p). Negative values are supported.
+	 */
+	public FieldElement set(long x) {
+		if (x >= 0) {
+			return setWords(0, 0, x);
+		}
+		// -Long.MIN_VALUE overflows back to itself, which reads as 2^63
+		// unsigned, so this is correct for every long
+		setWords(0, 0, -x);
+		return negate(this);
+	}
+
+	/**
+	 * Set this element to x (mod p).
+	 */
+	public FieldElement set(BigInteger x) {
+		if (x.signum() < 0 || x.compareTo(Polynomial.PRIME) >= 0) {
+			x = x.mod(Polynomial.PRIME);
+		}
+		return setWords(x.shiftRight(128).longValue(), x.shiftRight(64).longValue(), x.longValue());
+	}
+
+	/**
+	 * Set this element from an unsigned big-endian integer, which must be at
+	 * most 16 bytes long (and so is always smaller than p).
+	 * @param bytes the array to read from
+	 * @param offset index of the most significant byte
+	 * @param len number of bytes to read
+	 */
+	public FieldElement setBytes(byte[] bytes, int offset, int len) {
+		if (len > 16) {
+			throw new ArithmeticException("setBytes supports at most 16 bytes");
+		}
+		long hi = 0;
+		long lo = 0;
+		for (int i = 0; i < len; i++) {
+			hi = (hi << 8) | (lo >>> 56);
+			lo = (lo << 8) | (bytes[offset + i] & 0xff);
+		}
+		return setWords(0, hi, lo);
+	}
+
+	/**
+	 * Set this element to top * 2^128 + hi * 2^64 + lo, where hi and lo are
+	 * read as unsigned and the value must already be smaller than p.
+	 */
+	FieldElement setWords(long top, long hi, long lo) {
+		n0 = lo & MASK;
+		n1 = (lo >>> 26) & MASK;
+		n2 = ((lo >>> 52) | (hi << 12)) & MASK;
+		n3 = (hi >>> 14) & MASK;
+		n4 = (hi >>> 40) | (top << 24);
+		return this;
+	}
+
+	/**
+	 * One of the five 26-bit limbs, least significant first.
+	 */
+	long limb(int i) {
+		switch (i) {
+		case 0: return n0;
+		case 1: return n1;
+		case 2: return n2;
+		case 3: return n3;
+		case 4: return n4;
+		default: throw new IndexOutOfBoundsException("Limb " + i);
+		}
+	}
+
+	/**
+	 * Set this element to the canonical form of d0 + d1*2^26 + ... +
+	 * d4*2^104, where the limbs need not be reduced; see reduce().
+	 */
+	FieldElement setLimbs(long d0, long d1, long d2, long d3, long d4) {
+		return reduce(d0, d1, d2, d3, d4);
+	}
+
+	/**
+	 * The low 64 bits of this element.
+	 */
+	long lowWord() {
+		return n0 | (n1 << 26) | (n2 << 52);
+	}
+
+	/**
+	 * Bits 64 to 127 of this element.
+	 */
+	long highWord() {
+		return (n2 >>> 12) | (n3 << 14) | (n4 << 40);
+	}
+
+	/**
+	 * Bit 128 of this element, which is only set for the 51 values in
+	 * [2^128, p).
+	 */
+	long topWord() {
+		return n4 >>> 24;
+	}
+
+	public boolean isZero() {
+		return (n0 | n1 | n2 | n3 | n4) == 0;
+	}
+
+	public FieldElement add(FieldElement a, FieldElement b) {
+		return reduce(a.n0 + b.n0, a.n1 + b.n1, a.n2 + b.n2, a.n3 + b.n3, a.n4 + b.n4);
+	}
+
+	public FieldElement subtract(FieldElement a, FieldElement b) {
+		return reduce(a.n0 - b.n0, a.n1 - b.n1, a.n2 - b.n2, a.n3 - b.n3, a.n4 - b.n4);
+	}
+
+	public FieldElement negate(FieldElement a) {
+		return reduce(-a.n0, -a.n1, -a.n2, -a.n3, -a.n4);
+	}
+
+	public FieldElement multiply(FieldElement a, FieldElement b) {
+		return multiply(a.n0, a.n1, a.n2, a.n3, a.n4, b.n0, b.n1, b.n2, b.n3, b.n4);
+	}
+
+	public FieldElement square(FieldElement a) {
+		return multiply(a.n0, a.n1, a.n2, a.n3, a.n4, a.n0, a.n1, a.n2, a.n3, a.n4);
+	}
+
+	/**
+	 * Most terms addProducts() accepts; each adds under 2^55 to a column.
+	 */
+	static final int MAX_PRODUCTS = 64;
+
+	/**
+	 * Add a[i] * b[j] + a[i + 1] * b[j - 1] + ... (n terms) to this element,
+	 * as one coefficient of a polynomial product. The column sums of all n
+	 * products are accumulated before reducing once, rather than reducing
+	 * every product and every partial sum.
+	 * @param n the number of terms, at most MAX_PRODUCTS
+	 */
+	FieldElement addProducts(FieldElement[] a, int i, FieldElement[] b, int j, int n) {
+		long c0 = n0, c1 = n1, c2 = n2, c3 = n3, c4 = n4, c5 = 0, c6 = 0, c7 = 0, c8 = 0;
+		for (int t = 0; t < n; t++) {
+			FieldElement x = a[i + t];
+			FieldElement y = b[j - t];
+			long a0 = x.n0, a1 = x.n1, a2 = x.n2, a3 = x.n3, a4 = x.n4;
+			long b0 = y.n0, b1 = y.n1, b2 = y.n2, b3 = y.n3, b4 = y.n4;
+			c0 += a0*b0;
+			c1 += a0*b1 + a1*b0;
+			c2 += a0*b2 + a1*b1 + a2*b0;
+			c3 += a0*b3 + a1*b2 + a2*b1 + a3*b0;
+			c4 += a0*b4 + a1*b3 + a2*b2 + a3*b1 + a4*b0;
+			c5 += a1*b4 + a2*b3 + a3*b2 + a4*b1;
+			c6 += a2*b4 + a3*b3 + a4*b2;
+			c7 += a3*b4 + a4*b3;
+			c8 += a4*b4;
+		}
+
+		// the columns may be near 2^62, too large to fold directly, so carry
+		// them down to 26 bits first; column 9 sits at 2^234 = 2^104 * 2^130
+		long c;
+		c = c0 >> 26; c0 &= MASK; c1 += c;
+		c = c1 >> 26; c1 &= MASK; c2 += c;
+		c = c2 >> 26; c2 &= MASK; c3 += c;
+		c = c3 >> 26; c3 &= MASK; c4 += c;
+		c = c4 >> 26; c4 &= MASK; c5 += c;
+		c = c5 >> 26; c5 &= MASK; c6 += c;
+		c = c6 >> 26; c6 &= MASK; c7 += c;
+		c = c7 >> 26; c7 &= MASK; c8 += c;
+		c = c8 >> 26; c8 &= MASK;
+		return reduce(c0 + FOLD_130*c5, c1 + FOLD_130*c6, c2 + FOLD_130*c7, c3 + FOLD_130*c8, c4 + FOLD_130*c);
+	}
+
+	/**
+	 * Set this element to the multiplicative inverse of a, computed as
+	 * a^(p-2) by Fermat's little theorem.
+	 */
+	public FieldElement invert(FieldElement a) {
+		if (a.isZero()) {
+			throw new ArithmeticException("Zero has no inverse");
+		}
+		long a0 = a.n0, a1 = a.n1, a2 = a.n2, a3 = a.n3, a4 = a.n4;
+
+		// p - 2 = 2^128 + 49: a leading one, then only bits 5, 4 and 0
+		set(a);
+		for (int bit = 127; bit >= 0; bit--) {
+			square(this);
+			if (bit == 5 || bit == 4 || bit == 0) {
+				multiply(n0, n1, n2, n3, n4, a0, a1, a2, a3, a4);
+			}
+		}
+		return this;
+	}
+
+	private FieldElement multiply(long a0, long a1, long a2, long a3, long a4,
+			long b0, long b1, long b2, long b3, long b4) {
+		// schoolbook product; every limb product is below 2^52, so the column
+		// sums fit comfortably in a signed long
+		long c0 = a0*b0;
+		long c1 = a0*b1 + a1*b0;
+		long c2 = a0*b2 + a1*b1 + a2*b0;
+		long c3 = a0*b3 + a1*b2 + a2*b1 + a3*b0;
+		long c4 = a0*b4 + a1*b3 + a2*b2 + a3*b1 + a4*b0;
+		long c5 = a1*b4 + a2*b3 + a3*b2 + a4*b1;
+		long c6 = a2*b4 + a3*b3 + a4*b2;
+		long c7 = a3*b4 + a4*b3;
+		long c8 = a4*b4;
+
+		// fold columns 5..8 (at 2^130 and up) back onto columns 0..3
+		return reduce(c0 + FOLD_130*c5, c1 + FOLD_130*c6, c2 + FOLD_130*c7, c3 + FOLD_130*c8, c4);
+	}
+
+	/**
+	 * Store the canonical form of d0 + d1*2^26 + ... + d4*2^104 (mod p) in
+	 * this element. The inputs may be negative and as large as 2^62.
+	 */
+	private FieldElement reduce(long d0, long d1, long d2, long d3, long d4) {
+		long c;
+		while (true) {
+			c = d0 >> 26; d0 &= MASK; d1 += c;
+			c = d1 >> 26; d1 &= MASK; d2 += c;
+			c = d2 >> 26; d2 &= MASK; d3 += c;
+			c = d3 >> 26; d3 &= MASK; d4 += c;
+			c = d4 >> 24; d4 &= TOP_MASK;
+			if (c >= -1 && c <= 1) {
+				break;
+			}
+			d0 += FOLD_128 * c;
+		}
+
+		// the value is now L + c*2^128 with 0 <= L < 2^128
+		if (c == 1 && (d1 | d2 | d3 | d4) == 0 && d0 < 51) {
+			// already in [2^128, p)
+			d4 = P4;
+		} else if (c != 0) {
+			// subtract p when c = 1, add p when c = -1
+			d0 += FOLD_128 * c;
+			c = d0 >> 26; d0 &= MASK; d1 += c;
+			c = d1 >> 26; d1 &= MASK; d2 += c;
+			c = d2 >> 26; d2 &= MASK; d3 += c;
+			c = d3 >> 26; d3 &= MASK; d4 += c;
+		}
+
+		n0 = d0;
+		n1 = d1;
+		n2 = d2;
+		n3 = d3;
+		n4 = d4;
+		return this;
+	}
+
+	/**
+	 * Number of bits in the minimal representation of this element, as
+	 * defined by BigInteger.bitLength().
+	 */
+	public int bitLength() {
+		if (topWord() != 0) {
+			return 129;
+		}
+		long hi = highWord();
+		if (hi != 0) {
+			return 128 - Long.numberOfLeadingZeros(hi);
+		}
+		return 64 - Long.numberOfLeadingZeros(lowWord());
+	}
+
+	/**
+	 * Write this element as an unsigned big-endian integer into the given
+	 * position in an array, right-aligned and padded with zeroes.
+	 * @param array array to modify
+	 * @param offset index in array at which to place the integer
+	 * @param len number of bytes to write
+	 */
+	public void toBytes(byte[] array, int offset, int len) {
+		if (bitLength() > 8 * len) {
+			throw new ArithmeticException("x is too long to fit in len bytes");
+		}
+		long lo = lowWord();
+		long hi = highWord();
+		long top = topWord();
+		for (int i = offset + len - 1; i >= offset; i--) {
+			array[i] = (byte) lo;
+			lo = (lo >>> 8) | (hi << 56);
+			hi = (hi >>> 8) | (top << 56);
+			top = 0;
+		}
+	}
+
+	/**
+	 * Encode this element exactly as BigInteger.toByteArray() would, so that
+	 * hashes and MACs keyed on the encoding stay compatible.
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[bitLength() / 8 + 1];
+		toBytes(bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	public BigInteger toBigInteger() {
+		byte[] bytes = new byte[17];
+		toBytes(bytes, 0, bytes.length);
+		return new BigInteger(1, bytes);
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof FieldElement)) {
+			return false;
+		}
+		FieldElement other = (FieldElement) o;
+		return n0 == other.n0 && n1 == other.n1 && n2 == other.n2 && n3 == other.n3 && n4 == other.n4;
+	}
+
+	public int hashCode() {
+		long h = n0 + 31 * (n1 + 31 * (n2 + 31 * (n3 + 31 * n4)));
+		return (int) (h ^ (h >>> 32));
+	}
+
+	public String toString() {
+		return toBigInteger().toString();
+	}
+}
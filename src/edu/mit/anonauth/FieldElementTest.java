@@ -0,0 +1,215 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Differential tests of the field arithmetic against BigInteger.
+ */
+public class FieldElementTest extends Polynomial {
+
+	private static final BigInteger TWO_128 = BigInteger.ONE.shiftLeft(128);
+
+	private final Random random = new Random(42);
+
+	/**
+	 * Values near the limb and reduction boundaries, which random sampling
+	 * would essentially never hit.
+	 */
+	private List<BigInteger> edgeValues() {
+		List<BigInteger> values = new ArrayList<BigInteger>();
+		for (int i = 0; i <= 52; i++) {
+			values.add(BigInteger.valueOf(i));
+			values.add(PRIME.subtract(BigInteger.valueOf(i + 1)));
+			values.add(TWO_128.subtract(BigInteger.valueOf(i + 1)));
+		}
+		for (int bit = 1; bit < 128; bit += 13) {
+			values.add(BigInteger.ONE.shiftLeft(bit));
+			values.add(BigInteger.ONE.shiftLeft(bit).subtract(BigInteger.ONE));
+		}
+		return values;
+	}
+
+	private List<BigInteger> testValues() {
+		List<BigInteger> values = edgeValues();
+		for (int i = 0; i < 200; i++) {
+			values.add(new BigInteger(129, random).mod(PRIME));
+		}
+		return values;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		for (BigInteger x : testValues()) {
+			assertEquals(x, new FieldElement(x).toBigInteger());
+			assertEquals(x.bitLength(), new FieldElement(x).bitLength());
+		}
+	}
+
+	@Test
+	public void testConversionReduces() {
+		BigInteger x = BigInteger.valueOf(15032);
+		assertEquals(x, new FieldElement(PRIME.add(x)).toBigInteger());
+		assertEquals(PRIME.subtract(x), new FieldElement(x.negate()).toBigInteger());
+		assertEquals(PRIME.subtract(x), new FieldElement(-15032).toBigInteger());
+		assertEquals(BigInteger.valueOf(Long.MIN_VALUE).mod(PRIME),
+				new FieldElement(Long.MIN_VALUE).toBigInteger());
+	}
+
+	@Test
+	public void testArithmetic() {
+		List<BigInteger> values = testValues();
+		FieldElement c = new FieldElement();
+		for (BigInteger a : values) {
+			FieldElement fa = new FieldElement(a);
+			assertEquals(a.negate().mod(PRIME), c.negate(fa).toBigInteger());
+			for (BigInteger b : values) {
+				FieldElement fb = new FieldElement(b);
+				assertEquals(a.add(b).mod(PRIME), c.add(fa, fb).toBigInteger());
+				assertEquals(a.subtract(b).mod(PRIME), c.subtract(fa, fb).toBigInteger());
+				assertEquals(a.multiply(b).mod(PRIME), c.multiply(fa, fb).toBigInteger());
+			}
+		}
+	}
+
+	@Test
+	public void testAliasing() {
+		BigInteger a = new BigInteger(128, random);
+		FieldElement fa = new FieldElement(a);
+		fa.multiply(fa, fa);
+		assertEquals(a.multiply(a).mod(PRIME), fa.toBigInteger());
+		fa.set(a).square(fa);
+		assertEquals(a.multiply(a).mod(PRIME), fa.toBigInteger());
+		fa.set(a).invert(fa);
+		assertEquals(a.modInverse(PRIME), fa.toBigInteger());
+	}
+
+	@Test
+	public void testInvert() {
+		FieldElement c = new FieldElement();
+		for (BigInteger a : testValues()) {
+			if (a.signum() == 0) {
+				continue;
+			}
+			assertEquals(a.modInverse(PRIME), c.invert(new FieldElement(a)).toBigInteger());
+		}
+	}
+
+	@Test
+	public void testAddProducts() {
+		List<BigInteger> values = testValues();
+		int n = FieldElement.MAX_PRODUCTS;
+		for (int start = 0; start + n <= values.size(); start += 17) {
+			FieldElement[] a = new FieldElement[n];
+			FieldElement[] b = new FieldElement[n];
+			BigInteger expected = values.get(values.size() - 1 - start);
+			for (int t = 0; t < n; t++) {
+				a[t] = new FieldElement(values.get(start + t));
+				b[n - 1 - t] = new FieldElement(values.get(start + (t * 7) % n));
+				expected = expected.add(values.get(start + t).multiply(values.get(start + (t * 7) % n)));
+			}
+			FieldElement sum = new FieldElement(values.get(values.size() - 1 - start));
+			assertEquals(expected.mod(PRIME), sum.addProducts(a, 0, b, n - 1, n).toBigInteger());
+		}
+
+		// the largest column sums
+		FieldElement[] top = new FieldElement[n];
+		for (int t = 0; t < n; t++) {
+			top[t] = new FieldElement(PRIME.subtract(BigInteger.ONE));
+		}
+		BigInteger expected = PRIME.subtract(BigInteger.ONE).pow(2).multiply(BigInteger.valueOf(n))
+				.add(PRIME.subtract(BigInteger.ONE));
+		assertEquals(expected.mod(PRIME),
+				new FieldElement(PRIME.subtract(BigInteger.ONE)).addProducts(top, 0, top, n - 1, n).toBigInteger());
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void testInvertZero() {
+		new FieldElement().invert(new FieldElement());
+	}
+
+	@Test
+	public void testByteEncoding() {
+		for (BigInteger x : testValues()) {
+			FieldElement fx = new FieldElement(x);
+			assertArrayEquals(x.toByteArray(), fx.toByteArray());
+
+			if (x.bitLength() <= 128) {
+				byte[] fixed = new byte[16];
+				fx.toBytes(fixed, 0, 16);
+				assertEquals(x, new BigInteger(1, fixed));
+				assertEquals(fx, new FieldElement().setBytes(fixed, 0, 16));
+			}
+		}
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void testByteEncodingTooLong() {
+		new FieldElement(TWO_128).toBytes(new byte[16], 0, 16);
+	}
+
+	@Test
+	public void testSampleMatchesReference() {
+		for (int degree : new int[] { 0, 1, 2, 7, 40 }) {
+			List<BigInteger> coefficients = randomPolynomial(degree, randomBigInteger());
+			for (BigInteger x : edgeValues()) {
+				assertEquals(referenceSample(coefficients, x), samplePolynomial(coefficients, x));
+			}
+		}
+	}
+
+	@Test
+	public void testInterpolateMatchesReference() {
+		for (int degree : new int[] { 0, 1, 4, 30 }) {
+			List<BigInteger> coefficients = randomPolynomial(degree, randomBigInteger());
+			List<Point> points = new ArrayList<Point>();
+			for (int i = 0; i <= degree; i++) {
+				BigInteger x = BigInteger.valueOf(1000 + i);
+				points.add(new Point(x, referenceSample(coefficients, x)));
+			}
+			for (BigInteger at : new BigInteger[] { BigInteger.ZERO, BigInteger.ONE, PRIME.subtract(BigInteger.ONE) }) {
+				assertEquals(referenceInterpolate(at, points), interpolate(at, points));
+			}
+		}
+	}
+
+	/**
+	 * The original BigInteger implementation of samplePolynomial.
+	 */
+	private static BigInteger referenceSample(List<BigInteger> coefficients, BigInteger x) {
+		BigInteger y = BigInteger.ZERO;
+		for (int exp = 0; exp < coefficients.size(); exp++) {
+			BigInteger coeff = coefficients.get(exp);
+			y = y.add(coeff.multiply(x.pow(exp)));
+		}
+		return y.mod(PRIME);
+	}
+
+	/**
+	 * The original BigInteger implementation of interpolate.
+	 */
+	private static BigInteger referenceInterpolate(BigInteger at, List<Point> points) {
+		BigInteger intercept = BigInteger.ZERO;
+		for (Point point : points) {
+			BigInteger numerator = BigInteger.ONE;
+			BigInteger denominator = BigInteger.ONE;
+
+			for (Point other : points) {
+				if (point == other)
+					continue;
+				numerator = numerator.multiply(at.subtract(other.x)).mod(PRIME);
+				denominator = denominator.multiply(point.x.subtract(other.x)).mod(PRIME);
+			}
+
+			BigInteger lagrange = numerator.multiply(denominator.modInverse(PRIME));
+			intercept = PRIME.add(intercept).add(point.y.multiply(lagrange)).mod(PRIME);
+		}
+		return intercept;
+	}
+}
@@ -0,0 +1,127 @@
+package edu.mit.anonauth;
+
+/**
+ * Evaluates one polynomial at many x-coordinates at once, by Horner's rule
+ * run in lock step across lanes, one lane per x-coordinate.
+ *
+ * The lanes' limbs are kept as a structure of arrays, one long[] per limb,
+ * so each Horner step is a single branch-free loop over primitive arrays
+ * with no per-element objects. Between steps the values are only partly
+ * reduced: two fixed carry passes leave every limb small enough for the
+ * next multiplication, and the canonical form is produced once, by
+ * store(). Compared with calling FieldElement.multiply() per element this
+ * removes the reduction's data-dependent loop and branches from the inner
+ * loop, and lets the JIT unroll it and keep independent lanes in flight
+ * together. Polynomial.samplePolynomial() uses it for batches of at least
+ * MIN_LANES x-coordinates.
+ */
+final class HornerLanes {
+
+	/**
+	 * Smallest batch for which lanes beat the per-element path.
+	 */
+	static final int MIN_LANES = 4;
+
+	private static final long MASK = (1L << 26) - 1;
+	private static final long TOP_MASK = (1L << 24) - 1;
+	private static final long FOLD_128 = -51;
+	private static final long FOLD_130 = -204;
+
+	private final int n;
+	private final long[] x0, x1, x2, x3, x4;
+	private final long[] y0, y1, y2, y3, y4;
+
+	/**
+	 * Start evaluating at the given x-coordinates, with every lane at zero.
+	 */
+	HornerLanes(FieldElement[] xs) {
+		n = xs.length;
+		x0 = new long[n];
+		x1 = new long[n];
+		x2 = new long[n];
+		x3 = new long[n];
+		x4 = new long[n];
+		y0 = new long[n];
+		y1 = new long[n];
+		y2 = new long[n];
+		y3 = new long[n];
+		y4 = new long[n];
+		for (int i = 0; i < n; i++) {
+			x0[i] = xs[i].limb(0);
+			x1[i] = xs[i].limb(1);
+			x2[i] = xs[i].limb(2);
+			x3[i] = xs[i].limb(3);
+			x4[i] = xs[i].limb(4);
+		}
+	}
+
+	/**
+	 * Set every lane back to zero, to evaluate another polynomial.
+	 */
+	void reset() {
+		for (int i = 0; i < n; i++) {
+			y0[i] = 0;
+			y1[i] = 0;
+			y2[i] = 0;
+			y3[i] = 0;
+			y4[i] = 0;
+		}
+	}
+
+	/**
+	 * Apply one step of Horner's rule, y = y*x + c, in every lane. Feed the
+	 * coefficients from the highest degree down.
+	 */
+	void step(FieldElement c) {
+		long k0 = c.limb(0), k1 = c.limb(1), k2 = c.limb(2), k3 = c.limb(3), k4 = c.limb(4);
+		for (int i = 0; i < n; i++) {
+			long a0 = y0[i], a1 = y1[i], a2 = y2[i], a3 = y3[i], a4 = y4[i];
+			long b0 = x0[i], b1 = x1[i], b2 = x2[i], b3 = x3[i], b4 = x4[i];
+
+			// schoolbook product as in FieldElement.multiply(); a0 may be
+			// slightly negative or slightly above 2^26, which the column sums
+			// still absorb
+			long c5 = a1*b4 + a2*b3 + a3*b2 + a4*b1;
+			long c6 = a2*b4 + a3*b3 + a4*b2;
+			long c7 = a3*b4 + a4*b3;
+			long c8 = a4*b4;
+			long d0 = a0*b0 + FOLD_130*c5 + k0;
+			long d1 = a0*b1 + a1*b0 + FOLD_130*c6 + k1;
+			long d2 = a0*b2 + a1*b1 + a2*b0 + FOLD_130*c7 + k2;
+			long d3 = a0*b3 + a1*b2 + a2*b1 + a3*b0 + FOLD_130*c8 + k3;
+			long d4 = a0*b4 + a1*b3 + a2*b2 + a3*b1 + a4*b0 + k4;
+
+			// the first pass leaves a carry below 2^38 out of the top; the
+			// second leaves -1, 0 or 1, so after folding it d0 is in
+			// [-51, 2^26 + 51) and the other limbs are reduced
+			long carry;
+			carry = d0 >> 26; d0 &= MASK; d1 += carry;
+			carry = d1 >> 26; d1 &= MASK; d2 += carry;
+			carry = d2 >> 26; d2 &= MASK; d3 += carry;
+			carry = d3 >> 26; d3 &= MASK; d4 += carry;
+			carry = d4 >> 24; d4 &= TOP_MASK; d0 += FOLD_128 * carry;
+
+			carry = d0 >> 26; d0 &= MASK; d1 += carry;
+			carry = d1 >> 26; d1 &= MASK; d2 += carry;
+			carry = d2 >> 26; d2 &= MASK; d3 += carry;
+			carry = d3 >> 26; d3 &= MASK; d4 += carry;
+			carry = d4 >> 24; d4 &= TOP_MASK; d0 += FOLD_128 * carry;
+
+			y0[i] = d0;
+			y1[i] = d1;
+			y2[i] = d2;
+			y3[i] = d3;
+			y4[i] = d4;
+		}
+	}
+
+	/**
+	 * Store each lane's value, in canonical form, in the corresponding
+	 * element of ys.
+	 */
+	void store(FieldElement[] ys) {
+		for (int i = 0; i < n; i++) {
+			ys[i].setLimbs(y0[i], y1[i], y2[i], y3[i], y4[i]);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HornerLanesTest {
+	
+	private static final BigInteger P_MINUS_1 = Polynomial.PRIME.subtract(BigInteger.ONE);
+	
+	/**
+	 * Evaluate with the per-element path, which the lanes must match.
+	 */
+	private static FieldElement[] scalar(FieldElement[] coefficients, FieldElement[] xs) {
+		FieldElement[] ys = new FieldElement[xs.length];
+		for (int i = 0; i < xs.length; i++) {
+			ys[i] = new FieldElement();
+			Polynomial.samplePolynomial(coefficients, xs[i], ys[i]);
+		}
+		return ys;
+	}
+	
+	private static FieldElement[] lanes(FieldElement[] coefficients, FieldElement[] xs) {
+		FieldElement[] ys = new FieldElement[xs.length];
+		for (int i = 0; i < xs.length; i++) {
+			ys[i] = new FieldElement();
+		}
+		HornerLanes lanes = new HornerLanes(xs);
+		for (int exp = coefficients.length - 1; exp >= 0; exp--) {
+			lanes.step(coefficients[exp]);
+		}
+		lanes.store(ys);
+		return ys;
+	}
+	
+	@Test
+	public void testRandom() {
+		for (int degree : new int[] { 0, 1, 5, 100 }) {
+			List<BigInteger> coefficients = Polynomial.randomPolynomial(degree, Polynomial.randomBigInteger());
+			List<BigInteger> xs = new ArrayList<BigInteger>();
+			for (int i = 0; i < 37; i++) {
+				xs.add(Polynomial.randomBigInteger());
+			}
+			xs.addAll(Arrays.asList(BigInteger.ZERO, BigInteger.ONE, P_MINUS_1, BigInteger.valueOf(5001)));
+			
+			FieldElement[] c = Polynomial.toElements(coefficients);
+			FieldElement[] x = Polynomial.toElements(xs);
+			assertArrayEquals(scalar(c, x), lanes(c, x));
+		}
+	}
+	
+	@Test
+	public void testExtremes() {
+		// all-maximal operands push the partly reduced limbs to their bounds
+		FieldElement[] c = new FieldElement[50];
+		Arrays.fill(c, new FieldElement(P_MINUS_1));
+		FieldElement[] x = {
+			new FieldElement(P_MINUS_1), new FieldElement(Polynomial.PRIME.subtract(BigInteger.valueOf(51))),
+			new FieldElement(BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE)),
+			new FieldElement(BigInteger.ONE.shiftLeft(128)), new FieldElement(0),
+		};
+		assertArrayEquals(scalar(c, x), lanes(c, x));
+	}
+	
+	@Test
+	public void testReset() {
+		FieldElement[] x = Polynomial.toElements(Arrays.asList(BigInteger.valueOf(2), BigInteger.valueOf(3)));
+		FieldElement[] y = { new FieldElement(), new FieldElement() };
+		HornerLanes lanes = new HornerLanes(x);
+		lanes.step(new FieldElement(7));
+		lanes.reset();
+		
+		// 1*x + 1
+		lanes.step(new FieldElement(1));
+		lanes.step(new FieldElement(1));
+		lanes.store(y);
+		assertEquals(new FieldElement(3), y[0]);
+		assertEquals(new FieldElement(4), y[1]);
+	}
+}
@@ -0,0 +1,162 @@
+package edu.mit.anonauth;
+
+/**
+ * Lagrange interpolation over a fixed set of x-coordinates.
+ *
+ * The barycentric weights w_i = 1 / prod_{j != i} (x_i - x_j) depend only on
+ * the x-coordinates, so they are computed once, with a single field
+ * inversion (Montgomery's batch-inversion trick), and reused for every set
+ * of y-values and every evaluation point. Evaluating at zero, which is how
+ * secrets are recovered, additionally caches the Lagrange basis at zero and
+ * then costs one multiplication per point.
+ *
+ * From FastPolynomial.INTERPOLATE_THRESHOLD points on, the products in the
+ * weights are found with a subproduct tree rather than pair by pair, so
+ * preparing for thousands of points takes well under quadratic time.
+ */
+public final class Interpolator {
+
+	private final FieldElement[] xs;
+	private final FieldElement[] weights;
+
+	/**
+	 * The Lagrange basis polynomials evaluated at zero, computed on first use.
+	 */
+	private volatile FieldElement[] zeroBasis;
+
+	/**
+	 * Prepare to interpolate through the given x-coordinates, which must be
+	 * distinct.
+	 * @throws ArithmeticException if two x-coordinates are equal
+	 */
+	public Interpolator(FieldElement[] xs) {
+		this.xs = xs;
+
+		FieldElement[] denominators = new FieldElement[xs.length];
+		if (xs.length >= FastPolynomial.INTERPOLATE_THRESHOLD) {
+			for (int i = 0; i < xs.length; i++) {
+				denominators[i] = new FieldElement();
+			}
+			FastPolynomial.lagrangeDenominators(xs, denominators);
+		} else {
+			FieldElement difference = new FieldElement();
+			for (int i = 0; i < xs.length; i++) {
+				FieldElement denominator = new FieldElement(1);
+				for (int j = 0; j < xs.length; j++) {
+					if (i == j)
+						continue;
+					denominator.multiply(denominator, difference.subtract(xs[i], xs[j]));
+				}
+				denominators[i] = denominator;
+			}
+		}
+
+		weights = new FieldElement[xs.length];
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = new FieldElement();
+		}
+		invertAll(denominators, weights);
+	}
+
+	public int size() {
+		return xs.length;
+	}
+
+	/**
+	 * Evaluate the polynomial through the points (xs[i], ys[i]) at the given
+	 * x-coordinate, storing the result in y. Uses no inversions.
+	 */
+	public void interpolate(FieldElement at, FieldElement[] ys, FieldElement y) {
+		checkLength(ys);
+
+		// accumulate sum_i w_i y_i prod_{j != i} (at - x_j) one point at a
+		// time: multiplying the running sum by (at - x_i) adds the new factor
+		// to every earlier term, and the new term gets the prefix product
+		FieldElement sum = new FieldElement();
+		FieldElement prefix = new FieldElement(1);
+		FieldElement factor = new FieldElement();
+		FieldElement term = new FieldElement();
+		for (int i = 0; i < xs.length; i++) {
+			factor.subtract(at, xs[i]);
+			sum.multiply(sum, factor);
+			term.multiply(weights[i], ys[i]);
+			sum.add(sum, term.multiply(term, prefix));
+			prefix.multiply(prefix, factor);
+		}
+		y.set(sum);
+	}
+
+	/**
+	 * Evaluate the polynomial through the points (xs[i], ys[i]) at zero,
+	 * storing the result in y.
+	 */
+	public void interpolateAtZero(FieldElement[] ys, FieldElement y) {
+		checkLength(ys);
+		FieldElement[] basis = zeroBasis();
+
+		FieldElement term = new FieldElement();
+		y.set(0);
+		for (int i = 0; i < basis.length; i++) {
+			y.add(y, term.multiply(basis[i], ys[i]));
+		}
+	}
+
+	private FieldElement[] zeroBasis() {
+		FieldElement[] basis = zeroBasis;
+		if (basis != null) {
+			return basis;
+		}
+
+		// basis_i = w_i * prod_{j != i} (0 - x_j), using suffix products so
+		// that no x_j has to be divided out
+		basis = new FieldElement[xs.length];
+		FieldElement suffix = new FieldElement(1);
+		FieldElement negated = new FieldElement();
+		for (int i = xs.length - 1; i >= 0; i--) {
+			basis[i] = new FieldElement(suffix);
+			suffix.multiply(suffix, negated.negate(xs[i]));
+		}
+		FieldElement prefix = new FieldElement(1);
+		for (int i = 0; i < xs.length; i++) {
+			basis[i].multiply(basis[i], prefix);
+			basis[i].multiply(basis[i], weights[i]);
+			prefix.multiply(prefix, negated.negate(xs[i]));
+		}
+
+		zeroBasis = basis;
+		return basis;
+	}
+
+	private void checkLength(FieldElement[] ys) {
+		if (ys.length != xs.length) {
+			throw new IllegalArgumentException("Expected " + xs.length + " y-values, got " + ys.length);
+		}
+	}
+
+	/**
+	 * Invert every element of values using a single field inversion, storing
+	 * the results in the corresponding elements of inverses, which must not
+	 * alias values.
+	 * @throws ArithmeticException if any of the values is zero
+	 */
+	public static void invertAll(FieldElement[] values, FieldElement[] inverses) {
+		if (values.length == 0) {
+			return;
+		}
+
+		// inverses[i] temporarily holds the product of values[0..i-1]
+		FieldElement product = new FieldElement(1);
+		for (int i = 0; i < values.length; i++) {
+			inverses[i].set(product);
+			product.multiply(product, values[i]);
+		}
+
+		// product is now the inverse of values[0] * ... * values[i]; peel
+		// off one value at a time
+		product.invert(product);
+		for (int i = values.length - 1; i >= 0; i--) {
+			inverses[i].multiply(inverses[i], product);
+			product.multiply(product, values[i]);
+		}
+	}
+}
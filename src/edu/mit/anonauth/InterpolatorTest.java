@@ -0,0 +1,79 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import org.junit.Test;
+
+public class InterpolatorTest extends Polynomial {
+
+	@Test
+	public void testInvertAll() {
+		int n = 50;
+		FieldElement[] values = new FieldElement[n];
+		FieldElement[] inverses = new FieldElement[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = new FieldElement(randomBigInteger());
+			inverses[i] = new FieldElement();
+		}
+
+		Interpolator.invertAll(values, inverses);
+		FieldElement expected = new FieldElement();
+		for (int i = 0; i < n; i++) {
+			assertEquals(expected.invert(values[i]), inverses[i]);
+		}
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void testInvertAllZero() {
+		FieldElement[] values = { new FieldElement(3), new FieldElement(), new FieldElement(5) };
+		FieldElement[] inverses = { new FieldElement(), new FieldElement(), new FieldElement() };
+		Interpolator.invertAll(values, inverses);
+	}
+
+	@Test
+	public void testInterpolate() {
+		int r = 40;
+		List<BigInteger> coefficients = randomPolynomial(r, randomBigInteger());
+		FieldElement[] poly = toElements(coefficients);
+
+		FieldElement[] xs = new FieldElement[r + 1];
+		FieldElement[] ys = new FieldElement[r + 1];
+		for (int i = 0; i <= r; i++) {
+			xs[i] = new FieldElement(5001 + 7 * i);
+			ys[i] = new FieldElement();
+			samplePolynomial(poly, xs[i], ys[i]);
+		}
+		Interpolator interpolator = new Interpolator(xs);
+
+		FieldElement y = new FieldElement();
+		FieldElement expected = new FieldElement();
+		for (long at : new long[] { 0, 1, 17, 5001, 5008, -1 }) {
+			FieldElement x = new FieldElement(at);
+			samplePolynomial(poly, x, expected);
+			interpolator.interpolate(x, ys, y);
+			assertEquals(expected, y);
+		}
+
+		interpolator.interpolateAtZero(ys, y);
+		assertEquals(coefficients.get(0), y.toBigInteger());
+	}
+
+	@Test
+	public void testInterpolateAtZeroWithZeroCoordinate() {
+		// y = 3x + 9
+		FieldElement[] xs = { new FieldElement(2), new FieldElement(0) };
+		FieldElement[] ys = { new FieldElement(15), new FieldElement(9) };
+		FieldElement y = new FieldElement();
+		new Interpolator(xs).interpolateAtZero(ys, y);
+		assertEquals(new FieldElement(9), y);
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void testDuplicateCoordinates() {
+		FieldElement[] xs = { new FieldElement(7), new FieldElement(8), new FieldElement(7) };
+		new Interpolator(xs);
+	}
+}
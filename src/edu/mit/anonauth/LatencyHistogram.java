@@ -0,0 +1,115 @@
+package edu.mit.anonauth;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent histogram of non-negative values, such as latencies in
+ * nanoseconds, with bounded relative error.
+ *
+ * Buckets are laid out as in HdrHistogram: each power of two is split into
+ * 2^PRECISION_BITS equal sub-buckets, so a recorded value is reported to
+ * within 1/2^PRECISION_BITS of itself (12.5%) across the whole range of long.
+ * Recording is a single atomic increment and never allocates.
+ */
+public class LatencyHistogram {
+	
+	private static final int PRECISION_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+	
+	/**
+	 * Values below SUB_BUCKETS get a bucket each; every power of two above
+	 * that, up to 2^62, gets SUB_BUCKETS buckets.
+	 */
+	static final int BUCKETS = SUB_BUCKETS * (64 - PRECISION_BITS);
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+	}
+	
+	/**
+	 * Number of values recorded.
+	 */
+	public long getCount() {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total = total + counts.get(i);
+		}
+		return total;
+	}
+	
+	/**
+	 * Get the value at or below which the given percentage of recorded
+	 * values fall, e.g. 99.0 for the 99th percentile. The result is the
+	 * upper bound of that value's bucket.
+	 * @return the value, or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total = total + snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		
+		long rank = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total);
+		rank = Math.max(rank, 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen = seen + snapshot[i];
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+	
+	/**
+	 * Get the upper bound of the bucket holding the largest recorded value.
+	 */
+	public long getMax() {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (counts.get(i) != 0) {
+				return upperBound(i);
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Discard all recorded values. Values recorded concurrently may or may
+	 * not be kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+	}
+	
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		// the top PRECISION_BITS + 1 bits of the value select the bucket
+		int shift = 63 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+		int sub = (int) (value >>> shift) - SUB_BUCKETS;
+		return SUB_BUCKETS * (shift + 1) + sub;
+	}
+	
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		long bound = ((sub + 1) << shift) - 1;
+		return bound < 0 ? Long.MAX_VALUE : bound;
+	}
+}
@@ -0,0 +1,423 @@
+package edu.mit.anonauth;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A store whose coefficients live in a memory-mapped file rather than on
+ * the heap. An explicit store of degree r holds (r+1)(r+2)/2 coefficients;
+ * as BigIntegers inside SecretBoxes that is several gigabytes at r = 5000,
+ * all of it traced by the garbage collector. Here each coefficient takes 16
+ * bytes of page cache, read only when a polynomial is evaluated, and
+ * reopening a door's store is just mapping the file again.
+ *
+ * File format, all little-endian:
+ *   2 bytes   magic "AS"
+ *   1 byte    version
+ *   1 byte    reserved, 0
+ *   4 bytes   r
+ *   8 bytes   reserved, 0
+ *
+ *   for each degree d in [0, r]: d+1 coefficients, constant term first,
+ *   16 bytes each
+ *
+ * So coefficient i of the polynomial of degree d is at byte
+ * 16 + 16 * (d(d+1)/2 + i). Like the broadcast, a coefficient must be below
+ * 2^128 to fit in 16 bytes.
+ *
+ * The store serializes as the file's path, so a serialized door is reopened
+ * from the same file. The file must not be modified while it is mapped.
+ *
+ * The file holds every coefficient in the clear. It is created owner-only
+ * where the file system allows (see SecretFiles); otherwise keep it in a
+ * directory no one else can read.
+ */
+public final class MappedSecretStore extends SecretStore {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final short MAGIC = 0x5341;	// "AS", little-endian
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int ELEMENT_SIZE = 16;
+
+	/**
+	 * A single mapping is limited to 2^31 bytes, so large files are mapped
+	 * in chunks. The chunk size is a multiple of ELEMENT_SIZE and so is the
+	 * header, so no coefficient spans two chunks.
+	 */
+	private static final int CHUNK_BITS = 30;
+	private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+	/**
+	 * Bytes written to the file at a time when creating it.
+	 */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private final String path;
+	private final int maxPolyDegree;
+
+	private transient ByteBuffer[] chunks;
+
+	private MappedSecretStore(Path path) throws IOException {
+		this.path = path.toString();
+		this.maxPolyDegree = map(path);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (map(Paths.get(path)) != maxPolyDegree) {
+			throw new IOException("Secret store " + path + " no longer has r = " + maxPolyDegree);
+		}
+	}
+
+	/**
+	 * Map an existing store file.
+	 * @throws IOException if the file is not a whole secret store
+	 */
+	public static MappedSecretStore open(Path path) throws IOException {
+		return new MappedSecretStore(path);
+	}
+
+	/**
+	 * Write every polynomial of another store, such as a seeded one, to a
+	 * new file and map it. An existing file is replaced.
+	 * @throws IllegalArgumentException if the store's polynomials are not
+	 *   backed by coefficients
+	 * @throws ArithmeticException if a coefficient is 2^128 or more
+	 */
+	public static MappedSecretStore create(Path path, final SecretStore source) throws IOException {
+		final int r = source.maxPolyDegree();
+		write(path, r, new CoefficientSource() {
+			private final byte[] scratch = new byte[ELEMENT_SIZE];
+
+			public void polynomial(int degree, ByteBuffer out, FileChannel channel) throws IOException {
+				List<BigInteger> coefficients;
+				try {
+					coefficients = source.get(degree).getCoefficients();
+				} catch (UnsupportedOperationException e) {
+					throw new IllegalArgumentException("Polynomials must be backed by coefficients", e);
+				}
+				if (coefficients.size() != degree + 1) {
+					throw new IllegalArgumentException("Polynomial " + degree + " has " + coefficients.size()
+							+ " coefficients");
+				}
+				FieldElement element = new FieldElement();
+				for (BigInteger c : coefficients) {
+					element.set(c).toBytes(scratch, 0, ELEMENT_SIZE);
+					putElement(out, channel, scratch);
+				}
+			}
+		});
+		return open(path);
+	}
+
+	/**
+	 * Create a store of random polynomials in a new file and map it. An
+	 * existing file is replaced. Coefficients are drawn uniformly from
+	 * [0, 2^128), which leaves out only 51 of the field's elements.
+	 * @param r the maximum degree, i.e. the number of revocations supported
+	 */
+	public static MappedSecretStore random(Path path, int r) throws IOException {
+		write(path, r, new CoefficientSource() {
+			private final byte[] block = new byte[WRITE_BUFFER_SIZE];
+			private int used = block.length;
+
+			public void polynomial(int degree, ByteBuffer out, FileChannel channel) throws IOException {
+				long remaining = (long) ELEMENT_SIZE * (degree + 1);
+				while (remaining > 0) {
+					if (used == block.length) {
+						RandomPool.nextBytes(block);
+						used = 0;
+					}
+					int n = (int) Math.min(remaining, block.length - used);
+					flushIfFull(out, channel, n);
+					out.put(block, used, n);
+					used = used + n;
+					remaining = remaining - n;
+				}
+			}
+		});
+		return open(path);
+	}
+
+	/**
+	 * Writes the coefficients of one polynomial after another.
+	 */
+	private interface CoefficientSource {
+		void polynomial(int degree, ByteBuffer out, FileChannel channel) throws IOException;
+	}
+
+	/**
+	 * Write a store to a temporary file through source, then move it into
+	 * place, so a crash never leaves a partial store under path. A failed
+	 * write deletes the temporary file.
+	 */
+	private static void write(Path path, int r, CoefficientSource source) throws IOException {
+		if (r < 0) {
+			throw new IllegalArgumentException("Invalid r: " + r);
+		}
+		Path temp = SecretFiles.createTemp(path);
+		boolean moved = false;
+		try {
+			FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+			try {
+				ByteBuffer out = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				out.putShort(MAGIC);
+				out.put((byte) VERSION);
+				out.put((byte) 0);
+				out.putInt(r);
+				out.putLong(0);
+				for (int degree = 0; degree <= r; degree++) {
+					source.polynomial(degree, out, channel);
+				}
+				flushIfFull(out, channel, out.capacity());
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		} finally {
+			if (!moved) {
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+
+	/**
+	 * Write out the buffer's contents if it has less than needed bytes left.
+	 */
+	private static void flushIfFull(ByteBuffer out, FileChannel channel, int needed) throws IOException {
+		if (out.remaining() >= needed) {
+			return;
+		}
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+	/**
+	 * Put a coefficient, given as 16 big-endian bytes, in little-endian
+	 * order.
+	 */
+	private static void putElement(ByteBuffer out, FileChannel channel, byte[] bigEndian) throws IOException {
+		flushIfFull(out, channel, ELEMENT_SIZE);
+		for (int i = ELEMENT_SIZE - 1; i >= 0; i--) {
+			out.put(bigEndian[i]);
+		}
+	}
+
+	/**
+	 * Map the file read-only and check its header and length.
+	 * @return r
+	 */
+	private int map(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				throw new IOException("Not a secret store");
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0) {
+					throw new IOException("Not a secret store");
+				}
+			}
+			header.flip();
+			if (header.getShort() != MAGIC || (header.get() & 0xff) != VERSION) {
+				throw new IOException("Not a secret store, or an unsupported version");
+			}
+			header.get();
+			int r = header.getInt();
+			if (r < 0 || size != offset(r + 1, 0)) {
+				throw new IOException("Secret store is " + size + " bytes, which does not match r = " + r);
+			}
+
+			// the mappings stay valid after the channel is closed
+			ByteBuffer[] mapped = new ByteBuffer[(int) (((size - 1) >>> CHUNK_BITS) + 1)];
+			for (int i = 0; i < mapped.length; i++) {
+				long position = (long) i << CHUNK_BITS;
+				long length = Math.min(size - position, CHUNK_MASK + 1);
+				mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, length)
+						.order(ByteOrder.LITTLE_ENDIAN);
+			}
+			chunks = mapped;
+			return r;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Offset in the file of coefficient index of the polynomial of the given
+	 * degree.
+	 */
+	private static long offset(int degree, int index) {
+		return HEADER_SIZE + ELEMENT_SIZE * ((long) degree * (degree + 1) / 2 + index);
+	}
+
+	/**
+	 * Read the index-th coefficient of the polynomial of the given degree
+	 * into out.
+	 */
+	void coefficient(int degree, int index, FieldElement out) {
+		long offset = offset(degree, index);
+		ByteBuffer chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+		int i = (int) (offset & CHUNK_MASK);
+		out.setWords(0, chunk.getLong(i + 8), chunk.getLong(i));
+	}
+
+	public Path path() {
+		return Paths.get(path);
+	}
+
+	public int maxPolyDegree() {
+		return maxPolyDegree;
+	}
+
+	/**
+	 * Get a view of the polynomial of the given degree, which reads its
+	 * coefficients from the file as it is evaluated.
+	 */
+	public SecretBox get(int degree) {
+		checkDegree(degree);
+		return new MappedSecretBox(this, degree);
+	}
+
+	public List<Point> sampleAll(BigInteger x) {
+		FieldElement xElement = new FieldElement(x);
+		FieldElement y = new FieldElement();
+		FieldElement coefficient = new FieldElement();
+
+		List<Point> points = new ArrayList<Point>(maxPolyDegree + 1);
+		for (int degree = 0; degree <= maxPolyDegree; degree++) {
+			sample(degree, xElement, y, coefficient);
+			points.add(new Point(x, y.toBigInteger()));
+		}
+		return points;
+	}
+
+	/**
+	 * Sample every polynomial at each of xs, streaming each polynomial's
+	 * coefficients through HornerLanes once for the whole batch.
+	 */
+	public List<List<Point>> sampleAll(List<BigInteger> xs) {
+		FieldElement[] xElements = Polynomial.toElements(xs);
+		FieldElement[] ys = new FieldElement[xs.size()];
+		for (int i = 0; i < ys.length; i++) {
+			ys[i] = new FieldElement();
+		}
+		FieldElement coefficient = new FieldElement();
+		HornerLanes lanes = new HornerLanes(xElements);
+
+		List<List<Point>> points = new ArrayList<List<Point>>(xs.size());
+		for (int i = 0; i < xs.size(); i++) {
+			points.add(new ArrayList<Point>(maxPolyDegree + 1));
+		}
+		for (int degree = 0; degree <= maxPolyDegree; degree++) {
+			lanes.reset();
+			for (int i = degree; i >= 0; i--) {
+				coefficient(degree, i, coefficient);
+				lanes.step(coefficient);
+			}
+			lanes.store(ys);
+			for (int i = 0; i < ys.length; i++) {
+				points.get(i).add(new Point(xs.get(i), ys[i].toBigInteger()));
+			}
+		}
+		return points;
+	}
+
+	/**
+	 * Evaluate the polynomial of the given degree at x by Horner's rule,
+	 * reading each coefficient into scratch as it is needed.
+	 */
+	private void sample(int degree, FieldElement x, FieldElement y, FieldElement scratch) {
+		y.set(0);
+		for (int i = degree; i >= 0; i--) {
+			coefficient(degree, i, scratch);
+			y.add(y.multiply(y, x), scratch);
+		}
+	}
+
+	/**
+	 * One polynomial of a mapped store. Holds no coefficients itself.
+	 */
+	static final class MappedSecretBox extends SecretBox {
+
+		private static final long serialVersionUID = 1L;
+
+		private final MappedSecretStore store;
+		private final int degree;
+
+		MappedSecretBox(MappedSecretStore store, int degree) {
+			this.store = store;
+			this.degree = degree;
+		}
+
+		public Point sample(BigInteger x) {
+			FieldElement y = new FieldElement();
+			sample(new FieldElement(x), y);
+			return new Point(x, y.toBigInteger());
+		}
+
+		void sample(FieldElement x, FieldElement y) {
+			store.sample(degree, x, y, new FieldElement());
+		}
+
+		void sample(FieldElement[] xs, FieldElement[] ys) {
+			if (xs.length < HornerLanes.MIN_LANES) {
+				super.sample(xs, ys);
+				return;
+			}
+			if (xs.length >= FastPolynomial.EVALUATE_THRESHOLD && degree + 1 >= FastPolynomial.EVALUATE_THRESHOLD) {
+				// the subproduct tree needs the coefficients in memory
+				Polynomial.samplePolynomial(elements(), xs, ys);
+				return;
+			}
+			FieldElement coefficient = new FieldElement();
+			HornerLanes lanes = new HornerLanes(xs);
+			for (int i = degree; i >= 0; i--) {
+				store.coefficient(degree, i, coefficient);
+				lanes.step(coefficient);
+			}
+			lanes.store(ys);
+		}
+
+		void secret(FieldElement y) {
+			store.coefficient(degree, 0, y);
+		}
+
+		private FieldElement[] elements() {
+			FieldElement[] elements = new FieldElement[degree + 1];
+			for (int i = 0; i <= degree; i++) {
+				elements[i] = new FieldElement();
+				store.coefficient(degree, i, elements[i]);
+			}
+			return elements;
+		}
+
+		public List<BigInteger> getCoefficients() {
+			List<BigInteger> coefficients = new ArrayList<BigInteger>(degree + 1);
+			for (FieldElement e : elements()) {
+				coefficients.add(e.toBigInteger());
+			}
+			return coefficients;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedSecretStoreTest {
+
+	private Path dir;
+	private Path file;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("anonauth");
+		file = dir.resolve("door.secrets");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (Path p : Files.newDirectoryStream(dir)) {
+			Files.delete(p);
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testCopyOfSeededStore() throws IOException {
+		int r = 30;
+		SecretStore seeded = SecretStore.fromSeed(r, SecretStore.randomSeed());
+		MappedSecretStore mapped = MappedSecretStore.create(file, seeded);
+		assertEquals(16 + 16 * (r + 1) * (r + 2) / 2, Files.size(file));
+
+		for (SecretStore store : new SecretStore[] { mapped, MappedSecretStore.open(file) }) {
+			assertEquals(r, store.maxPolyDegree());
+			for (int degree = 0; degree <= r; degree++) {
+				assertEquals(seeded.get(degree).getCoefficients(), store.get(degree).getCoefficients());
+				assertArrayEquals(seeded.get(degree).secretHash(), store.get(degree).secretHash());
+			}
+			BigInteger x = BigInteger.valueOf(5001);
+			assertEquals(seeded.sampleAll(x).toString(), store.sampleAll(x).toString());
+
+			List<BigInteger> xs = new ArrayList<BigInteger>();
+			for (int user = 5001; user <= 5010; user++) {
+				xs.add(BigInteger.valueOf(user));
+			}
+			assertEquals(seeded.sampleAll(xs).toString(), store.sampleAll(xs).toString());
+			assertEquals(seeded.get(r).sample(xs).toString(), store.get(r).sample(xs).toString());
+			assertEquals(seeded.get(r).sample(xs.subList(0, 2)).toString(),
+					store.get(r).sample(xs.subList(0, 2)).toString());
+		}
+	}
+
+	@Test
+	public void testDoorExchange() throws IOException, ClassNotFoundException {
+		ProtocolDoor door = new ProtocolDoor(MappedSecretStore.random(file, 20));
+		ProtocolCard cardA = new ProtocolCard(door.privatePoints(5001));
+		ProtocolCard cardB = new ProtocolCard(door.privatePoints(5002));
+
+		door.revoke(5002);
+		assertTrue(door.checkResponse(cardA.authenticate(door.getBroadcast())));
+		try {
+			assertFalse(door.checkResponse(cardB.authenticate(door.getBroadcast())));
+		} catch (ArithmeticException e) {
+			// expected: the revoked card's point is now public
+		}
+
+		// only the path is serialized; the copy maps the same file
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		ObjectOutputStream so = new ObjectOutputStream(bo);
+		so.writeObject(door);
+		so.flush();
+		assertTrue(bo.size() < 2048);
+		ObjectInputStream si = new ObjectInputStream(new ByteArrayInputStream(bo.toByteArray()));
+		ProtocolDoor copy = (ProtocolDoor) si.readObject();
+		assertArrayEquals(door.getBroadcast(), copy.getBroadcast());
+		assertTrue(copy.checkResponse(cardA.authenticate(copy.getBroadcast())));
+	}
+
+	@Test
+	public void testReplace() throws IOException {
+		MappedSecretStore first = MappedSecretStore.random(file, 5);
+		MappedSecretStore second = MappedSecretStore.random(file, 8);
+		assertEquals(8, MappedSecretStore.open(file).maxPolyDegree());
+		assertEquals(second.get(3).secret(), MappedSecretStore.open(file).get(3).secret());
+		assertNotEquals(first.get(3).secret(), second.get(3).secret());
+	}
+
+	@Test
+	public void testOwnerOnly() throws IOException {
+		Assume.assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+		MappedSecretStore.random(file, 5);
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+
+		// the temporary file was moved into place, not left behind
+		int files = 0;
+		for (Path p : Files.newDirectoryStream(dir)) {
+			files++;
+		}
+		assertEquals(1, files);
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncated() throws IOException {
+		MappedSecretStore.random(file, 10);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+		try {
+			channel.truncate(Files.size(file) - 16);
+		} finally {
+			channel.close();
+		}
+		MappedSecretStore.open(file);
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAStore() throws IOException {
+		Files.write(file, new byte[64]);
+		MappedSecretStore.open(file);
+	}
+}
@@ -0,0 +1,115 @@
+package edu.mit.anonauth;
+
+/**
+ * Receives counts and timings from the door, card and SecretBox, e.g. to
+ * export them to a monitoring system.
+ *
+ * One Metrics instance is installed for the whole library with install().
+ * The default, NONE, discards everything without reading the clock or
+ * allocating. Implementations are called from every thread that uses the
+ * library, so they must be thread-safe and should be cheap; MetricsRecorder
+ * is a ready-made implementation.
+ */
+public abstract class Metrics {
+	
+	/**
+	 * Timed steps. Times are in nanoseconds.
+	 */
+	public enum Phase {
+		/** ProtocolCard.authenticate(), in total */
+		AUTHENTICATE,
+		/** Parsing the broadcast in ProtocolCard.authenticate() */
+		PARSE,
+		/** Interpolating the secret from the broadcast's points */
+		INTERPOLATE,
+		/** Hashing a secret */
+		HASH,
+		/** Computing an HMAC */
+		HMAC,
+		/** ProtocolDoor.revoke() and revokeAll() */
+		REVOKE,
+		/** ProtocolDoor.privatePoints() */
+		PRIVATE_POINTS,
+	}
+	
+	/**
+	 * Counted events.
+	 */
+	public enum Counter {
+		/** ProtocolDoor.checkResponse() accepted a response */
+		RESPONSE_ACCEPTED,
+		/** ProtocolDoor.checkResponse() rejected a response */
+		RESPONSE_REJECTED,
+		/** A card found the broadcast's secret hash did not match */
+		BROADCAST_MISMATCH,
+		/** A user was revoked */
+		USER_REVOKED,
+		/** A user was issued private points */
+		CARD_ISSUED,
+		/** A card reused the secret it reconstructed from an earlier broadcast */
+		SECRET_CACHE_HIT,
+		/** A card had to reconstruct a broadcast's secret */
+		SECRET_CACHE_MISS,
+	}
+	
+	/**
+	 * Discards everything.
+	 */
+	public static final Metrics NONE = new Metrics() {
+		public long start() {
+			return 0;
+		}
+		
+		public void stop(Phase phase, long start) {
+		}
+		
+		public void increment(Counter counter, long n) {
+		}
+		
+		public void record(Phase phase, long nanos) {
+		}
+	};
+	
+	private static volatile Metrics installed = NONE;
+	
+	/**
+	 * Send the library's metrics to the given instance, or discard them if
+	 * it is null.
+	 */
+	public static void install(Metrics metrics) {
+		installed = metrics != null ? metrics : NONE;
+	}
+	
+	/**
+	 * Get the installed instance.
+	 */
+	public static Metrics installed() {
+		return installed;
+	}
+	
+	/**
+	 * Begin timing a phase.
+	 * @return a start time to pass to stop()
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+	
+	/**
+	 * Finish timing a phase begun with start().
+	 */
+	public void stop(Phase phase, long start) {
+		record(phase, System.nanoTime() - start);
+	}
+	
+	public void increment(Counter counter) {
+		increment(counter, 1);
+	}
+	
+	public abstract void increment(Counter counter, long n);
+	
+	/**
+	 * Record that a phase took the given number of nanoseconds.
+	 */
+	public abstract void record(Phase phase, long nanos);
+}
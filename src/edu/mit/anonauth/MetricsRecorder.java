@@ -0,0 +1,57 @@
+package edu.mit.anonauth;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a count for each Counter and a LatencyHistogram for each Phase in
+ * memory, for an exporter to read periodically.
+ *
+ *   MetricsRecorder recorder = new MetricsRecorder();
+ *   Metrics.install(recorder);
+ *   ...
+ *   long p99 = recorder.getHistogram(Metrics.Phase.AUTHENTICATE).getValueAtPercentile(99);
+ */
+public class MetricsRecorder extends Metrics {
+	
+	private final Map<Counter, LongAdder> counters = new EnumMap<Counter, LongAdder>(Counter.class);
+	private final Map<Phase, LatencyHistogram> histograms = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+	
+	public MetricsRecorder() {
+		for (Counter counter : Counter.values()) {
+			counters.put(counter, new LongAdder());
+		}
+		for (Phase phase : Phase.values()) {
+			histograms.put(phase, new LatencyHistogram());
+		}
+	}
+	
+	public void increment(Counter counter, long n) {
+		counters.get(counter).add(n);
+	}
+	
+	public void record(Phase phase, long nanos) {
+		histograms.get(phase).record(nanos);
+	}
+	
+	public long getCount(Counter counter) {
+		return counters.get(counter).sum();
+	}
+	
+	/**
+	 * Get the latencies recorded for a phase, in nanoseconds.
+	 */
+	public LatencyHistogram getHistogram(Phase phase) {
+		return histograms.get(phase);
+	}
+	
+	public void reset() {
+		for (LongAdder counter : counters.values()) {
+			counter.reset();
+		}
+		for (LatencyHistogram histogram : histograms.values()) {
+			histogram.reset();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MetricsTest {
+	
+	@After
+	public void tearDown() {
+		Metrics.install(null);
+	}
+	
+	@Test
+	public void testProtocolMetrics() {
+		MetricsRecorder recorder = new MetricsRecorder();
+		Metrics.install(recorder);
+		assertSame(recorder, Metrics.installed());
+		
+		ProtocolDoor door = new ProtocolDoor(5);
+		ProtocolCard card = new ProtocolCard(door.privatePoints(5001));
+		ProtocolCard stranger = new ProtocolCard(new ProtocolDoor(5).privatePoints(5001));
+		assertEquals(2, recorder.getCount(Metrics.Counter.CARD_ISSUED));
+		assertEquals(2, recorder.getHistogram(Metrics.Phase.PRIVATE_POINTS).getCount());
+		
+		assertTrue(door.checkResponse(card.authenticate(door.getBroadcast())));
+		assertFalse(door.checkResponse(new byte[SecretBox.HMAC_LENGTH]));
+		assertFalse(door.checkResponse(door.openSession().id, (byte[]) null));
+		assertEquals(1, recorder.getCount(Metrics.Counter.RESPONSE_ACCEPTED));
+		assertEquals(2, recorder.getCount(Metrics.Counter.RESPONSE_REJECTED));
+		
+		assertEquals(1, recorder.getHistogram(Metrics.Phase.AUTHENTICATE).getCount());
+		assertEquals(1, recorder.getHistogram(Metrics.Phase.PARSE).getCount());
+		assertEquals(1, recorder.getHistogram(Metrics.Phase.INTERPOLATE).getCount());
+		assertTrue(recorder.getHistogram(Metrics.Phase.HASH).getCount() >= 1);
+		assertTrue(recorder.getHistogram(Metrics.Phase.HMAC).getCount() >= 1);
+		
+		door.revoke(5002);
+		door.revokeAll(Arrays.asList(5003, 5004));
+		assertEquals(3, recorder.getCount(Metrics.Counter.USER_REVOKED));
+		assertEquals(2, recorder.getHistogram(Metrics.Phase.REVOKE).getCount());
+		
+		try {
+			stranger.authenticate(door.getBroadcast());
+			fail("Expected BroadcastMismatchException");
+		} catch (RuntimeException e) {
+		}
+		assertEquals(1, recorder.getCount(Metrics.Counter.BROADCAST_MISMATCH));
+		
+		recorder.reset();
+		assertEquals(0, recorder.getCount(Metrics.Counter.USER_REVOKED));
+		assertEquals(0, recorder.getHistogram(Metrics.Phase.REVOKE).getCount());
+	}
+	
+	@Test
+	public void testNoneDiscards() {
+		Metrics.install(null);
+		assertSame(Metrics.NONE, Metrics.installed());
+		assertEquals(0, Metrics.NONE.start());
+		
+		ProtocolDoor door = new ProtocolDoor(5);
+		ProtocolCard card = new ProtocolCard(door.privatePoints(5001));
+		assertTrue(door.checkResponse(card.authenticate(door.getBroadcast())));
+	}
+	
+	@Test
+	public void testHistogramBuckets() {
+		// every value falls in a bucket whose upper bound is within 12.5%
+		long[] values = { 0, 1, 7, 8, 9, 15, 16, 17, 100, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE };
+		for (long value : values) {
+			long bound = LatencyHistogram.upperBound(LatencyHistogram.bucket(value));
+			assertTrue(value + " > " + bound, value <= bound);
+			assertTrue(value + " << " + bound, bound - value <= value / 8);
+		}
+		
+		// buckets are contiguous, and the last one holds Long.MAX_VALUE
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+		for (int i = 1; i < LatencyHistogram.BUCKETS; i++) {
+			assertEquals(i, LatencyHistogram.bucket(LatencyHistogram.upperBound(i - 1) + 1));
+		}
+	}
+	
+	@Test
+	public void testHistogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertEquals(1000, histogram.getCount());
+		
+		long median = histogram.getValueAtPercentile(50);
+		assertTrue(median >= 500000 && median <= 500000 * 9 / 8);
+		long p99 = histogram.getValueAtPercentile(99);
+		assertTrue(p99 >= 990000 && p99 <= 990000 * 9 / 8);
+		long max = histogram.getMax();
+		assertTrue(max >= 1000000 && max <= 1000000 * 9 / 8);
+		
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+	}
+}
@@ -0,0 +1,108 @@
+package edu.mit.anonauth;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size, lock-free table of single-use nonces which expire.
+ *
+ * Each nonce is stored under a sequence number, which is its ID, in the
+ * slot given by the ID's low bits, so the table is a ring: once capacity
+ * more nonces have been issued, a nonce's slot is reused and it is
+ * forgotten even if it has not expired. Memory use is therefore fixed no
+ * matter how many nonces are issued or abandoned. Every operation is a
+ * handful of atomic reads and compare-and-sets on a single slot.
+ */
+final class NonceTable {
+	
+	private static final class Entry {
+		final long id;
+		final byte[] nonce;
+		final long expires;
+		
+		Entry(long id, byte[] nonce, long expires) {
+			this.id = id;
+			this.nonce = nonce;
+			this.expires = expires;
+		}
+	}
+	
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+	private final long ttlNanos;
+	private final AtomicLong next = new AtomicLong();
+	
+	/**
+	 * @param capacity most nonces outstanding at once, rounded up to a power
+	 *   of two
+	 * @param ttl how long a nonce may be used for
+	 */
+	NonceTable(int capacity, long ttl, TimeUnit unit) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Capacity must be in [1, 2^30]");
+		}
+		if (ttl <= 0) {
+			throw new IllegalArgumentException("TTL must be positive");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size = size << 1;
+		}
+		this.slots = new AtomicReferenceArray<Entry>(size);
+		this.mask = size - 1;
+		this.ttlNanos = unit.toNanos(ttl);
+	}
+	
+	int capacity() {
+		return slots.length();
+	}
+	
+	/**
+	 * Store a nonce, evicting the one issued capacity() IDs earlier.
+	 * @return the nonce's ID
+	 */
+	long put(byte[] nonce) {
+		long id = next.getAndIncrement();
+		Entry entry = new Entry(id, nonce, System.nanoTime() + ttlNanos);
+		int slot = (int) id & mask;
+		while (true) {
+			Entry old = slots.get(slot);
+			if (old != null && old.id > id) {
+				// lapped by a newer nonce already; this one is evicted
+				return id;
+			}
+			if (slots.compareAndSet(slot, old, entry)) {
+				return id;
+			}
+		}
+	}
+	
+	/**
+	 * Look up a nonce without using it.
+	 * @return the nonce, or null if it was used, evicted or has expired
+	 */
+	byte[] get(long id) {
+		Entry entry = slots.get((int) id & mask);
+		if (entry == null || entry.id != id) {
+			return null;
+		}
+		if (System.nanoTime() - entry.expires > 0) {
+			slots.compareAndSet((int) id & mask, entry, null);
+			return null;
+		}
+		return entry.nonce;
+	}
+	
+	/**
+	 * Use up a nonce returned by get(). Exactly one of any number of
+	 * concurrent calls for the same nonce succeeds.
+	 * @return true if the nonce was still available
+	 */
+	boolean consume(long id, byte[] nonce) {
+		int slot = (int) id & mask;
+		Entry entry = slots.get(slot);
+		return entry != null && entry.id == id && entry.nonce == nonce && System.nanoTime() - entry.expires <= 0
+				&& slots.compareAndSet(slot, entry, null);
+	}
+}
@@ -0,0 +1,100 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class NonceTableTest {
+	
+	@Test
+	public void testSingleUse() {
+		NonceTable table = new NonceTable(8, 30, TimeUnit.SECONDS);
+		byte[] nonce = new byte[16];
+		long id = table.put(nonce);
+		
+		assertSame(nonce, table.get(id));
+		assertSame(nonce, table.get(id));
+		assertFalse(table.consume(id, new byte[16]));
+		assertTrue(table.consume(id, nonce));
+		assertFalse(table.consume(id, nonce));
+		assertNull(table.get(id));
+	}
+	
+	@Test
+	public void testCapacity() {
+		NonceTable table = new NonceTable(5, 30, TimeUnit.SECONDS);
+		assertEquals(8, table.capacity());
+		
+		long first = table.put(new byte[16]);
+		for (int i = 0; i < 7; i++) {
+			table.put(new byte[16]);
+		}
+		assertNotNull(table.get(first));
+		
+		// the ninth nonce takes the first one's slot
+		long ninth = table.put(new byte[16]);
+		assertNull(table.get(first));
+		assertNotNull(table.get(ninth));
+		assertNull(table.get(ninth + 8));
+	}
+	
+	@Test
+	public void testExpiry() throws InterruptedException {
+		NonceTable table = new NonceTable(8, 20, TimeUnit.MILLISECONDS);
+		byte[] nonce = new byte[16];
+		long id = table.put(nonce);
+		Thread.sleep(50);
+		assertNull(table.get(id));
+		assertFalse(table.consume(id, nonce));
+	}
+	
+	@Test
+	public void testConcurrentConsume() throws Exception {
+		final NonceTable table = new NonceTable(1024, 30, TimeUnit.SECONDS);
+		final List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < 1000; i++) {
+			ids.add(table.put(new byte[16]));
+		}
+		
+		int threads = 4;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < threads; t++) {
+				results.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws InterruptedException {
+						start.await();
+						int won = 0;
+						for (long id : ids) {
+							byte[] nonce = table.get(id);
+							if (nonce != null && table.consume(id, nonce)) {
+								won++;
+							}
+						}
+						return won;
+					}
+				}));
+			}
+			start.countDown();
+			
+			// every nonce is consumed exactly once
+			int total = 0;
+			for (Future<Integer> result : results) {
+				total += result.get();
+			}
+			assertEquals(ids.size(), total);
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
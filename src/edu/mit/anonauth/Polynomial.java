@@ -12,15 +12,30 @@ import java.util.List;
 public class Polynomial {
 	
 	protected static final BigInteger PRIME = BigInteger.valueOf(2).pow(128).add(BigInteger.valueOf(51));
-	protected static SecureRandom rng = new SecureRandom();
 	
+	/**
+	 * A SecureRandom whose bytes come from RandomPool.nextBytes(), kept for
+	 * subclasses which drew from it. Nothing here uses it any more, so
+	 * replacing it has no effect on the polynomials generated.
+	 * @deprecated use RandomPool
+	 */
+	@Deprecated
+	protected static SecureRandom rng = new PooledRandom();
+	
+	private static final class PooledRandom extends SecureRandom {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public void nextBytes(byte[] bytes) {
+			RandomPool.nextBytes(bytes);
+		}
+	}
+	
+	/**
+	 * A uniformly random element of the field, from the shared RandomPool.
+	 */
 	public static BigInteger randomBigInteger() {
-		// http://stackoverflow.com/a/2290089
-		BigInteger r;
-		do {
-		    r = new BigInteger(PRIME.bitLength(), rng);
-		} while (r.compareTo(PRIME) >= 0);
-		return r;
+		return RandomPool.shared().fieldElement();
 	}
 	
 	public static List<BigInteger> randomPolynomial(int degree, BigInteger intercept) {
@@ -38,30 +53,80 @@ public class Polynomial {
 	}
 	
 	public static BigInteger samplePolynomial(List<BigInteger> coefficients, BigInteger x) { 
-		BigInteger y = BigInteger.ZERO;
-		for (int exp = 0; exp < coefficients.size(); exp++) {
-			BigInteger coeff = coefficients.get(exp);
-			y = y.add(coeff.multiply(x.pow(exp)));
+		FieldElement y = new FieldElement();
+		samplePolynomial(toElements(coefficients), new FieldElement(x), y);
+		return y.toBigInteger();
+	}
+	
+	/**
+	 * Evaluate a polynomial at x using Horner's rule, reducing at every step,
+	 * and store the result in y.
+	 * @param coefficients the coefficients, constant term first
+	 * @param x the point at which to sample
+	 * @param y the element which receives the result; must not alias x
+	 */
+	public static void samplePolynomial(FieldElement[] coefficients, FieldElement x, FieldElement y) {
+		y.set(0);
+		for (int exp = coefficients.length - 1; exp >= 0; exp--) {
+			y.add(y.multiply(y, x), coefficients[exp]);
 		}
-		return y.mod(PRIME);
 	}
 	
-	public static BigInteger interpolate(BigInteger at, List<Point> points) {
-		BigInteger intercept = BigInteger.ZERO;
-		for (Point point : points) {
-			BigInteger numerator = BigInteger.ONE;
-			BigInteger denominator = BigInteger.ONE;
-			
-			for (Point other : points) {
-				if (point == other)
-					continue;
-				numerator = numerator.multiply(at.subtract(other.x)).mod(PRIME);
-				denominator = denominator.multiply(point.x.subtract(other.x)).mod(PRIME);
+	/**
+	 * Evaluate a polynomial at each of xs, storing the results in the
+	 * corresponding elements of ys. Batches of HornerLanes.MIN_LANES or more
+	 * are evaluated in lanes, and once both the degree and the number of
+	 * points reach FastPolynomial.EVALUATE_THRESHOLD, by a subproduct tree.
+	 */
+	public static void samplePolynomial(FieldElement[] coefficients, FieldElement[] xs, FieldElement[] ys) {
+		if (xs.length >= FastPolynomial.EVALUATE_THRESHOLD
+				&& coefficients.length >= FastPolynomial.EVALUATE_THRESHOLD) {
+			FastPolynomial.evaluate(coefficients, xs, ys);
+			return;
+		}
+		if (xs.length >= HornerLanes.MIN_LANES) {
+			HornerLanes lanes = new HornerLanes(xs);
+			for (int exp = coefficients.length - 1; exp >= 0; exp--) {
+				lanes.step(coefficients[exp]);
 			}
-			
-			BigInteger lagrange = numerator.multiply(denominator.modInverse(PRIME));
-			intercept = PRIME.add(intercept).add(point.y.multiply(lagrange)).mod(PRIME);
+			lanes.store(ys);
+			return;
+		}
+		for (int i = 0; i < xs.length; i++) {
+			samplePolynomial(coefficients, xs[i], ys[i]);
+		}
+	}
+	
+	public static BigInteger interpolate(BigInteger at, List<Point> points) {
+		FieldElement[] xs = new FieldElement[points.size()];
+		FieldElement[] ys = new FieldElement[points.size()];
+		for (int i = 0; i < xs.length; i++) {
+			xs[i] = new FieldElement(points.get(i).x);
+			ys[i] = new FieldElement(points.get(i).y);
+		}
+		FieldElement y = new FieldElement();
+		interpolate(new FieldElement(at), xs, ys, y);
+		return y.toBigInteger();
+	}
+	
+	/**
+	 * Evaluate the Lagrange polynomial through the points (xs[i], ys[i]) at
+	 * the given x-coordinate using field arithmetic, storing the result in y.
+	 * To interpolate repeatedly over the same x-coordinates, keep an
+	 * Interpolator instead.
+	 */
+	public static void interpolate(FieldElement at, FieldElement[] xs, FieldElement[] ys, FieldElement y) {
+		new Interpolator(xs).interpolate(at, ys, y);
+	}
+	
+	/**
+	 * Convert a list of integers into field elements, reducing each mod PRIME.
+	 */
+	public static FieldElement[] toElements(List<BigInteger> values) {
+		FieldElement[] elements = new FieldElement[values.size()];
+		for (int i = 0; i < elements.length; i++) {
+			elements[i] = new FieldElement(values.get(i));
 		}
-		return intercept;
+		return elements;
 	}
 }
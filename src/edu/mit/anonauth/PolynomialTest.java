@@ -36,6 +36,16 @@ public class PolynomialTest extends Polynomial {
 		}
 	}
 	
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testDeprecatedRng() {
+		// subclasses which drew from rng still can
+		BigInteger a = new BigInteger(PRIME.bitLength(), rng);
+		BigInteger b = new BigInteger(PRIME.bitLength(), rng);
+		assertTrue(a.bitLength() <= PRIME.bitLength());
+		assertNotEquals(a, b);
+	}
+	
 	@Test
 	public void testRandomLine() {
 		testRandomPolynomialDegree(1);
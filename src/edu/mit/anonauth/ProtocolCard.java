@@ -2,7 +2,7 @@ package edu.mit.anonauth;
 
 import java.io.Serializable;
 import java.math.BigInteger;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -15,50 +15,234 @@ public class ProtocolCard implements Serializable {
 	 */
 	private List<Point> privatePoints;
 	
+	/**
+	 * Number of doors' secrets a card remembers.
+	 */
+	static final int SECRET_CACHE_SIZE = 4;
+	
+	/**
+	 * Secrets reconstructed from recent broadcasts, most recently used
+	 * first. A door's broadcast only changes in its challenge until the next
+	 * revocation, so a card returning to the same door can skip
+	 * interpolation and just compute the HMAC. Guarded by this.
+	 */
+	private transient CachedSecret[] secretCache;
+	
+	/**
+	 * The secret behind a broadcast, identified by everything in the
+	 * broadcast before the challenge: k, the public points and the hash.
+	 */
+	private static final class CachedSecret {
+		final byte[] prefix;
+		final SecretBox box;
+		
+		CachedSecret(byte[] prefix, SecretBox box) {
+			this.prefix = prefix;
+			this.box = box;
+		}
+	}
+	
 	public ProtocolCard(List<Point> privatePoints) {
 		this.privatePoints = privatePoints;
 	}
 	
+	List<Point> privatePoints() {
+		return privatePoints;
+	}
+	
 	/**
 	 * Authenticate to a door.
 	 * @param broadcast the door's broadcast message
 	 * @return a response message
 	 */
 	public byte[] authenticate(byte[] broadcast) {
-		// parse the broadcast
-		int offset = 0;
-		
-		int k = numericRange(broadcast, offset, 1).intValueExact();
-		offset = offset + 1;
+		ByteBuffer response = ByteBuffer.allocate(SecretBox.HMAC_LENGTH);
+		authenticate(ByteBuffer.wrap(broadcast), response);
+		return response.array();
+	}
+	
+	/**
+	 * Authenticate to a door, reading the broadcast in place from the
+	 * buffer's position and putting the HMAC_LENGTH-byte response into
+	 * responseOut. Both buffers' positions are advanced, as by a relative get
+	 * or put; either may be direct.
+	 */
+	public void authenticate(ByteBuffer broadcast, ByteBuffer responseOut) {
+		Metrics metrics = Metrics.installed();
+		long start = metrics.start();
 		
-		List<Point> points = new ArrayList<Point>();
-		for (int i = 0; i < k; i++) {
-			BigInteger x = numericRange(broadcast, offset, 2);
-			offset = offset + 2;
+		BroadcastView view = new BroadcastView().wrap(broadcast);
+		int prefixLength = view.challengeIndex() - broadcast.position();
+		SecretBox box = cachedSecret(broadcast, prefixLength);
+		if (box != null) {
+			metrics.increment(Metrics.Counter.SECRET_CACHE_HIT);
+		} else {
+			metrics.increment(Metrics.Counter.SECRET_CACHE_MISS);
 			
-			BigInteger y = numericRange(broadcast, offset, 16);
-			offset = offset + 16;
+			// parse the broadcast
+			int k = view.pointCount();
+			FieldElement[] xs = new FieldElement[k + 1];
+			FieldElement[] ys = new FieldElement[k + 1];
+			for (int i = 0; i < k; i++) {
+				xs[i] = new FieldElement(view.x(i));
+				ys[i] = new FieldElement();
+				view.y(i, ys[i]);
+			}
+			metrics.stop(Metrics.Phase.PARSE, start);
 			
-			Point pub = new Point(x, y);
-			points.add(pub);
+			box = reconstructSecret(xs, ys, metrics);
+			checkSecretHash(view.secretHashEquals(box.secretHashBytes()), metrics);
+			cacheSecret(broadcast, prefixLength, box);
 		}
 		
-		byte[] secretHash = Arrays.copyOfRange(broadcast, offset, offset + 32);
-		offset = offset + 32;
+		respond(broadcast, view.challengeIndex(), view.length(), box, responseOut);
+		metrics.stop(Metrics.Phase.AUTHENTICATE, start);
+	}
+	
+	/**
+	 * Authenticate to a door using its compact broadcast; see
+	 * ProtocolDoor.getCompactBroadcast().
+	 * @return a response message
+	 */
+	public byte[] authenticateCompact(byte[] broadcast) {
+		ByteBuffer response = ByteBuffer.allocate(SecretBox.HMAC_LENGTH);
+		authenticateCompact(ByteBuffer.wrap(broadcast), response);
+		return response.array();
+	}
+	
+	/**
+	 * Authenticate to a door using its compact broadcast, reading it in
+	 * place as authenticate(ByteBuffer, ByteBuffer) does. The broadcast is
+	 * decoded in a single pass, and when the card already knows the door's
+	 * secret the points are skipped without being decoded at all.
+	 */
+	public void authenticateCompact(ByteBuffer broadcast, ByteBuffer responseOut) {
+		Metrics metrics = Metrics.installed();
+		long start = metrics.start();
 		
-		BigInteger challenge = numericRange(broadcast, offset, 16);
+		CompactBroadcastView view = new CompactBroadcastView().wrap(broadcast);
+		int prefixLength = view.challengeIndex() - broadcast.position();
+		SecretBox box = cachedSecret(broadcast, prefixLength);
+		if (box != null) {
+			metrics.increment(Metrics.Counter.SECRET_CACHE_HIT);
+		} else {
+			metrics.increment(Metrics.Counter.SECRET_CACHE_MISS);
+			
+			int k = view.pointCount();
+			FieldElement[] xs = new FieldElement[k + 1];
+			FieldElement[] ys = new FieldElement[k + 1];
+			for (int i = 0; i < k; i++) {
+				xs[i] = new FieldElement(view.x(i));
+				ys[i] = new FieldElement();
+				view.y(i, ys[i]);
+			}
+			metrics.stop(Metrics.Phase.PARSE, start);
+			
+			box = reconstructSecret(xs, ys, metrics);
+			checkSecretHash(view.secretHashEquals(box.secretHashBytes()), metrics);
+			cacheSecret(broadcast, prefixLength, box);
+		}
 		
-		// perform the computation
+		respond(broadcast, view.challengeIndex(), view.length(), box, responseOut);
+		metrics.stop(Metrics.Phase.AUTHENTICATE, start);
+	}
+	
+	/**
+	 * Hash the challenge in place, leaving the position after the broadcast.
+	 */
+	private static void respond(ByteBuffer broadcast, int challengeIndex, int length, SecretBox box,
+			ByteBuffer responseOut) {
+		int end = broadcast.position() + length;
+		int limit = broadcast.limit();
+		broadcast.limit(challengeIndex + BroadcastView.CHALLENGE_SIZE);
+		broadcast.position(challengeIndex);
+		try {
+			box.hmac(broadcast, responseOut);
+		} finally {
+			broadcast.limit(limit);
+		}
+		broadcast.position(end);
+	}
+	
+	/**
+	 * Interpolate the secret from a broadcast's k points, in the first k
+	 * elements of xs and ys, and this card's private point, which is put in
+	 * the last.
+	 * @return a SecretBox holding the secret
+	 */
+	private SecretBox reconstructSecret(FieldElement[] xs, FieldElement[] ys, Metrics metrics) {
+		long start = metrics.start();
+		int k = xs.length - 1;
 		Point priv = privatePoints.get(k);
-		points.add(priv);
+		xs[k] = new FieldElement(priv.x);
+		ys[k] = new FieldElement(priv.y);
 		
-		SecretBox box = SecretBox.fromPoints(points);
+		FieldElement secret = new FieldElement();
+		new Interpolator(xs).interpolateAtZero(ys, secret);
 		
-		if (!Arrays.equals(secretHash, box.secretHash())) {
+		// a constant polynomial has the same secret
+		SecretBox box = SecretBox.fromElements(new FieldElement[] { secret });
+		box.secretBytes();
+		metrics.stop(Metrics.Phase.INTERPOLATE, start);
+		return box;
+	}
+	
+	private void checkSecretHash(boolean matches, Metrics metrics) {
+		if (!matches) {
+			metrics.increment(Metrics.Counter.BROADCAST_MISMATCH);
 			throw new BroadcastMismatchException("Incorrect secret hash");
 		}
+	}
+	
+	/**
+	 * Find the secret for a broadcast whose first prefixLength bytes, from
+	 * the buffer's position, match a cached broadcast's.
+	 */
+	private synchronized SecretBox cachedSecret(ByteBuffer broadcast, int prefixLength) {
+		if (secretCache == null) {
+			return null;
+		}
+		int base = broadcast.position();
+		for (int i = 0; i < secretCache.length; i++) {
+			CachedSecret cached = secretCache[i];
+			if (cached == null) {
+				break;
+			}
+			if (prefixMatches(cached.prefix, broadcast, base, prefixLength)) {
+				// move to the front
+				System.arraycopy(secretCache, 0, secretCache, 1, i);
+				secretCache[0] = cached;
+				return cached.box;
+			}
+		}
+		return null;
+	}
+	
+	private synchronized void cacheSecret(ByteBuffer broadcast, int prefixLength, SecretBox box) {
+		if (secretCache == null) {
+			secretCache = new CachedSecret[SECRET_CACHE_SIZE];
+		}
+		byte[] prefix = new byte[prefixLength];
+		int base = broadcast.position();
+		for (int i = 0; i < prefixLength; i++) {
+			prefix[i] = broadcast.get(base + i);
+		}
 		
-		return box.hmac(challenge);
+		// evict the least recently used
+		System.arraycopy(secretCache, 0, secretCache, 1, secretCache.length - 1);
+		secretCache[0] = new CachedSecret(prefix, box);
+	}
+	
+	private static boolean prefixMatches(byte[] prefix, ByteBuffer broadcast, int base, int length) {
+		if (prefix.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (prefix[i] != broadcast.get(base + i)) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
 	/**
@@ -0,0 +1,435 @@
+package edu.mit.anonauth;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact, versioned binary format for door and card state, as an
+ * alternative to Java serialization. Integers are big-endian; field elements
+ * take 16 bytes and x-coordinates 2 bytes, as in the broadcast.
+ *
+ * Door format:
+ *   2 bytes   magic "AD"
+ *   1 byte    version
+ *   1 byte    store type (0 = explicit coefficients, 1 = seeded)
+ *   4 bytes   r
+ *
+ *   Explicit store:
+ *     for each degree d in [0, r]: d+1 coefficients, 16 bytes each
+ *   Seeded store:
+ *     4 bytes   cache size
+ *     1 byte    seed length, followed by the seed
+ *
+ *   4 bytes   k (current degree)
+ *   4 bytes   number of revoked users, followed by 2 bytes per user
+ *   16 bytes  challenge
+ *   1 byte    1 if a door ID follows, otherwise 0 (since version 2)
+ *   4 bytes   door ID, if present
+ *
+ * Card format:
+ *   2 bytes   magic "AC"
+ *   1 byte    version
+ *   followed by one card record:
+ *     2 bytes   x (the user ID, shared by every private point)
+ *     4 bytes   number of private points
+ *     16 bytes  y, for each private point
+ *
+ * A card stream, as written by CardWriter, is a single card header followed
+ * by any number of card records.
+ *
+ * Readers accept every version up to VERSION; cards have not changed since
+ * version 1.
+ */
+public final class ProtocolCodec {
+
+	public static final int VERSION = 2;
+
+	private static final short DOOR_MAGIC = 0x4144;	// "AD"
+	private static final short CARD_MAGIC = 0x4143;	// "AC"
+
+	private static final byte STORE_EXPLICIT = 0;
+	private static final byte STORE_SEEDED = 1;
+
+	private static final int HEADER_SIZE = 3;
+	private static final int ELEMENT_SIZE = 16;
+	private static final int X_SIZE = 2;
+
+	private ProtocolCodec() { }
+
+	/**
+	 * Number of bytes writeDoor() will produce for a door.
+	 */
+	public static int doorSize(ProtocolDoor door) {
+		SecretStore store = door.secretStore();
+		long size = HEADER_SIZE + 1 + 4;
+		if (store instanceof SecretStore.SeededSecretStore) {
+			size = size + 4 + 1 + ((SecretStore.SeededSecretStore) store).seed().length;
+		} else {
+			long r = store.maxPolyDegree();
+			size = size + ELEMENT_SIZE * (r + 1) * (r + 2) / 2;
+		}
+		size = size + 4 + 4 + X_SIZE * (long) door.currentEpoch().blacklist.size() + ELEMENT_SIZE;
+		size = size + 1 + (door.currentEpoch().doorId != null ? 4 : 0);
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Door is too large to encode in one buffer");
+		}
+		return (int) size;
+	}
+
+	/**
+	 * Encode a door's secrets, blacklist and challenge. Public points are not
+	 * stored; they are recomputed when the door is read back.
+	 * @throws IllegalArgumentException if the door's polynomials are not
+	 * backed by explicit coefficients or a seed
+	 */
+	public static void writeDoor(ProtocolDoor door, ByteBuffer out) {
+		ProtocolDoor.Epoch epoch = door.currentEpoch();
+		SecretStore store = door.secretStore();
+		int r = store.maxPolyDegree();
+
+		out.putShort(DOOR_MAGIC);
+		out.put((byte) VERSION);
+		if (store instanceof SecretStore.SeededSecretStore) {
+			SecretStore.SeededSecretStore seeded = (SecretStore.SeededSecretStore) store;
+			byte[] seed = seeded.seed();
+			out.put(STORE_SEEDED);
+			out.putInt(r);
+			out.putInt(seeded.cacheSize());
+			out.put((byte) seed.length);
+			out.put(seed);
+		} else {
+			out.put(STORE_EXPLICIT);
+			out.putInt(r);
+			byte[] element = new byte[ELEMENT_SIZE];
+			for (int degree = 0; degree <= r; degree++) {
+				List<BigInteger> coefficients = coefficients(store.get(degree));
+				if (coefficients.size() != degree + 1) {
+					throw new IllegalArgumentException("Polynomial " + degree + " has " + coefficients.size() + " coefficients");
+				}
+				for (BigInteger c : coefficients) {
+					putElement(out, new FieldElement(c), element);
+				}
+			}
+		}
+
+		out.putInt(epoch.polyDegree);
+		out.putInt(epoch.blacklist.size());
+		for (BigInteger user : epoch.blacklist) {
+			putX(out, user);
+		}
+		putElement(out, new FieldElement(epoch.challenge), new byte[ELEMENT_SIZE]);
+		if (epoch.doorId != null) {
+			out.put((byte) 1);
+			out.putInt(epoch.doorId);
+		} else {
+			out.put((byte) 0);
+		}
+	}
+
+	public static ProtocolDoor readDoor(ByteBuffer in) {
+		int version = readHeader(in, DOOR_MAGIC, "door");
+
+		SecretStore store;
+		byte type = in.get();
+		int r = in.getInt();
+		if (r < 0) {
+			throw new IllegalArgumentException("Invalid r: " + r);
+		}
+		if (type == STORE_SEEDED) {
+			int cacheSize = in.getInt();
+			byte[] seed = new byte[in.get() & 0xff];
+			in.get(seed);
+			store = SecretStore.fromSeed(r, seed, cacheSize);
+		} else if (type == STORE_EXPLICIT) {
+			byte[] element = new byte[ELEMENT_SIZE];
+			List<SecretBox> secrets = new ArrayList<SecretBox>(r + 1);
+			for (int degree = 0; degree <= r; degree++) {
+				FieldElement[] coefficients = new FieldElement[degree + 1];
+				for (int i = 0; i <= degree; i++) {
+					coefficients[i] = getElement(in, element);
+				}
+				secrets.add(SecretBox.fromElements(coefficients));
+			}
+			store = new SecretStore.ListSecretStore(secrets);
+		} else {
+			throw new IllegalArgumentException("Unknown store type " + type);
+		}
+
+		int polyDegree = in.getInt();
+		int revoked = in.getInt();
+		if (polyDegree < 0 || polyDegree > r || revoked < 0 || revoked > polyDegree) {
+			throw new IllegalArgumentException("Invalid degree " + polyDegree + " with " + revoked + " revoked users");
+		}
+		List<BigInteger> blacklist = new ArrayList<BigInteger>(revoked);
+		for (int i = 0; i < revoked; i++) {
+			blacklist.add(BigInteger.valueOf(in.getShort() & 0xffff));
+		}
+		BigInteger challenge = getElement(in, new byte[ELEMENT_SIZE]).toBigInteger();
+		Integer doorId = null;
+		if (version >= 2 && in.get() != 0) {
+			doorId = in.getInt();
+		}
+
+		return new ProtocolDoor(store, polyDegree, blacklist, challenge, doorId);
+	}
+
+	/**
+	 * Encode a door into a new buffer, ready to be read or written to a
+	 * channel.
+	 */
+	public static ByteBuffer encodeDoor(ProtocolDoor door) {
+		ByteBuffer out = ByteBuffer.allocate(doorSize(door));
+		writeDoor(door, out);
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Number of bytes writeCard() will produce for a card.
+	 */
+	public static int cardSize(ProtocolCard card) {
+		return HEADER_SIZE + recordSize(card.privatePoints().size());
+	}
+
+	private static int recordSize(int points) {
+		return X_SIZE + 4 + ELEMENT_SIZE * points;
+	}
+
+	public static void writeCard(ProtocolCard card, ByteBuffer out) {
+		out.putShort(CARD_MAGIC);
+		out.put((byte) VERSION);
+		writeCardRecord(card.privatePoints(), out, new byte[ELEMENT_SIZE]);
+	}
+
+	/**
+	 * Encode a card into a new buffer, ready to be read or written to a
+	 * channel.
+	 */
+	public static ByteBuffer encodeCard(ProtocolCard card) {
+		ByteBuffer out = ByteBuffer.allocate(cardSize(card));
+		writeCard(card, out);
+		out.flip();
+		return out;
+	}
+
+	public static ProtocolCard readCard(ByteBuffer in) {
+		readHeader(in, CARD_MAGIC, "card");
+		return new ProtocolCard(readCardRecord(in, new byte[ELEMENT_SIZE]));
+	}
+
+	/**
+	 * Write one card record.
+	 * @throws IllegalArgumentException if the points do not share one
+	 * x-coordinate, as every card issued by a door does
+	 */
+	private static void writeCardRecord(List<Point> points, ByteBuffer out, byte[] element) {
+		BigInteger x = points.isEmpty() ? BigInteger.ZERO : points.get(0).x;
+		for (Point p : points) {
+			if (!p.x.equals(x)) {
+				throw new IllegalArgumentException("Private points must share one x-coordinate");
+			}
+		}
+
+		putX(out, x);
+		out.putInt(points.size());
+		for (Point p : points) {
+			putElement(out, new FieldElement(p.y), element);
+		}
+	}
+
+	private static List<Point> readCardRecord(ByteBuffer in, byte[] element) {
+		BigInteger x = BigInteger.valueOf(in.getShort() & 0xffff);
+		int count = in.getInt();
+		if (count < 0 || count > in.remaining() / ELEMENT_SIZE) {
+			throw new IllegalArgumentException("Invalid point count " + count);
+		}
+		List<Point> points = new ArrayList<Point>(count);
+		for (int i = 0; i < count; i++) {
+			points.add(new Point(x, getElement(in, element).toBigInteger()));
+		}
+		return points;
+	}
+
+	/**
+	 * Writes a stream of cards to a channel, buffering records.
+	 */
+	public static class CardWriter implements Closeable {
+
+		private final WritableByteChannel channel;
+		private final ByteBuffer buffer;
+		private final byte[] element = new byte[ELEMENT_SIZE];
+
+		public CardWriter(WritableByteChannel channel) throws IOException {
+			this(channel, 1 << 16);
+		}
+
+		public CardWriter(WritableByteChannel channel, int bufferSize) throws IOException {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocate(bufferSize);
+			buffer.putShort(CARD_MAGIC);
+			buffer.put((byte) VERSION);
+		}
+
+		public void write(ProtocolCard card) throws IOException {
+			write(card.privatePoints());
+		}
+
+		public void write(List<Point> privatePoints) throws IOException {
+			int size = recordSize(privatePoints.size());
+			if (size > buffer.remaining()) {
+				flush();
+			}
+			if (size > buffer.remaining()) {
+				// larger than the whole buffer; write it on its own
+				ByteBuffer record = ByteBuffer.allocate(size);
+				writeCardRecord(privatePoints, record, element);
+				record.flip();
+				drain(record);
+				return;
+			}
+			writeCardRecord(privatePoints, buffer, element);
+		}
+
+		public void flush() throws IOException {
+			buffer.flip();
+			drain(buffer);
+			buffer.clear();
+		}
+
+		private void drain(ByteBuffer source) throws IOException {
+			while (source.hasRemaining()) {
+				channel.write(source);
+			}
+		}
+
+		/**
+		 * Flush buffered records and close the underlying channel.
+		 */
+		public void close() throws IOException {
+			flush();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads a stream of cards, as written by CardWriter, from a channel.
+	 */
+	public static class CardReader implements Closeable {
+
+		private final ReadableByteChannel channel;
+		private ByteBuffer buffer;
+		private final byte[] element = new byte[ELEMENT_SIZE];
+
+		public CardReader(ReadableByteChannel channel) throws IOException {
+			this(channel, 1 << 16);
+		}
+
+		public CardReader(ReadableByteChannel channel, int bufferSize) throws IOException {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocate(bufferSize);
+			buffer.flip();
+			if (!fill(HEADER_SIZE)) {
+				throw new EOFException("Missing card stream header");
+			}
+			readHeader(buffer, CARD_MAGIC, "card stream");
+		}
+
+		/**
+		 * Read the next card.
+		 * @return the card, or null at the end of the stream
+		 */
+		public ProtocolCard read() throws IOException {
+			if (!fill(X_SIZE + 4)) {
+				if (buffer.hasRemaining()) {
+					throw new EOFException("Truncated card record");
+				}
+				return null;
+			}
+			int count = buffer.getInt(buffer.position() + X_SIZE);
+			if (count < 0 || count > (Integer.MAX_VALUE - X_SIZE - 4) / ELEMENT_SIZE) {
+				throw new IllegalArgumentException("Invalid point count " + count);
+			}
+			if (!fill(recordSize(count))) {
+				throw new EOFException("Truncated card record");
+			}
+			return new ProtocolCard(readCardRecord(buffer, element));
+		}
+
+		/**
+		 * Make sure at least n bytes are buffered, growing the buffer if
+		 * necessary.
+		 * @return false if the channel ended first
+		 */
+		private boolean fill(int n) throws IOException {
+			if (buffer.remaining() >= n) {
+				return true;
+			}
+			if (buffer.capacity() < n) {
+				ByteBuffer larger = ByteBuffer.allocate(n);
+				larger.put(buffer);
+				buffer = larger;
+			} else {
+				buffer.compact();
+			}
+			while (buffer.position() < n) {
+				if (channel.read(buffer) < 0) {
+					buffer.flip();
+					return false;
+				}
+			}
+			buffer.flip();
+			return true;
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Check a header's magic number and version.
+	 * @return the version
+	 */
+	private static int readHeader(ByteBuffer in, short magic, String what) {
+		if (in.getShort() != magic) {
+			throw new IllegalArgumentException("Not a " + what + ": bad magic number");
+		}
+		int version = in.get() & 0xff;
+		if (version < 1 || version > VERSION) {
+			throw new IllegalArgumentException("Unsupported " + what + " version " + version);
+		}
+		return version;
+	}
+
+	private static List<BigInteger> coefficients(SecretBox box) {
+		try {
+			return box.getCoefficients();
+		} catch (UnsupportedOperationException e) {
+			throw new IllegalArgumentException("Door polynomials must be backed by coefficients", e);
+		}
+	}
+
+	private static void putX(ByteBuffer out, BigInteger x) {
+		if (x.signum() < 0 || x.bitLength() > 8 * X_SIZE) {
+			throw new ArithmeticException("x is too long to fit in " + X_SIZE + " bytes");
+		}
+		out.putShort((short) x.intValue());
+	}
+
+	private static void putElement(ByteBuffer out, FieldElement value, byte[] scratch) {
+		value.toBytes(scratch, 0, ELEMENT_SIZE);
+		out.put(scratch);
+	}
+
+	private static FieldElement getElement(ByteBuffer in, byte[] scratch) {
+		in.get(scratch);
+		return new FieldElement().setBytes(scratch, 0, ELEMENT_SIZE);
+	}
+}
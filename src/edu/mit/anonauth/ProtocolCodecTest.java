@@ -0,0 +1,139 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ProtocolCodecTest {
+	
+	@Test
+	public void testExplicitDoor() {
+		int r = 20;
+		ProtocolDoor door1 = new ProtocolDoor(r);
+		ProtocolCard cardA = new ProtocolCard(door1.privatePoints(5001));
+		ProtocolCard cardB = new ProtocolCard(door1.privatePoints(5002));
+		door1.revoke(5002);
+		
+		ByteBuffer enc = ProtocolCodec.encodeDoor(door1);
+		assertEquals(ProtocolCodec.doorSize(door1), enc.remaining());
+		
+		ProtocolDoor door2 = ProtocolCodec.readDoor(enc);
+		assertFalse(enc.hasRemaining());
+		assertArrayEquals(door1.getBroadcast(), door2.getBroadcast());
+		assertTrue(exchange(door2, cardA));
+		assertFalse(exchange(door2, cardB));
+	}
+	
+	@Test
+	public void testSeededDoor() {
+		int r = 10000;
+		ProtocolDoor door1 = new ProtocolDoor(SecretStore.fromSeed(r, SecretStore.randomSeed()));
+		door1.revoke(20001);
+		door1.revoke(20002);
+		
+		ByteBuffer enc = ProtocolCodec.encodeDoor(door1);
+		assertTrue(enc.remaining() < 100);
+		assertArrayEquals(door1.getBroadcast(), ProtocolCodec.readDoor(enc).getBroadcast());
+	}
+	
+	@Test
+	public void testDoorId() {
+		ProtocolDoor door1 = new ProtocolDoor(SecretStore.fromSeed(10, SecretStore.randomSeed()));
+		door1.setDoorId(0x12345678);
+		door1.revoke(5001);
+		
+		ByteBuffer enc = ProtocolCodec.encodeDoor(door1);
+		assertEquals(ProtocolCodec.doorSize(door1), enc.remaining());
+		ProtocolDoor door2 = ProtocolCodec.readDoor(enc);
+		assertEquals(Integer.valueOf(0x12345678), door2.getDoorId());
+		assertArrayEquals(door1.getBroadcast(), door2.getBroadcast());
+	}
+	
+	@Test
+	public void testVersion1Door() {
+		// version 1 had no door ID flag
+		ProtocolDoor door1 = new ProtocolDoor(SecretStore.fromSeed(10, SecretStore.randomSeed()));
+		door1.revoke(5001);
+		ByteBuffer enc = ProtocolCodec.encodeDoor(door1);
+		enc.put(2, (byte) 1);
+		enc.limit(enc.limit() - 1);
+		
+		ProtocolDoor door2 = ProtocolCodec.readDoor(enc);
+		assertNull(door2.getDoorId());
+		assertArrayEquals(door1.getBroadcast(), door2.getBroadcast());
+	}
+	
+	@Test
+	public void testCard() {
+		ProtocolDoor door = new ProtocolDoor(10);
+		ProtocolCard card1 = new ProtocolCard(door.privatePoints(5001));
+		
+		ByteBuffer enc = ProtocolCodec.encodeCard(card1);
+		assertEquals(3 + 2 + 4 + 16 * 11, enc.remaining());
+		ProtocolCard card2 = ProtocolCodec.readCard(enc);
+		assertTrue(exchange(door, card2));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadMagic() {
+		ByteBuffer enc = ProtocolCodec.encodeCard(new ProtocolCard(new ProtocolDoor(2).privatePoints(5001)));
+		ProtocolCodec.readDoor(enc);
+	}
+	
+	@Test
+	public void testCardStream() throws IOException {
+		ProtocolDoor door = new ProtocolDoor(5);
+		List<ProtocolCard> cards = new ArrayList<ProtocolCard>();
+		for (int user = 5001; user <= 5100; user++) {
+			cards.add(new ProtocolCard(door.privatePoints(user)));
+		}
+		
+		// a small buffer forces records to straddle buffer boundaries
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtocolCodec.CardWriter writer = new ProtocolCodec.CardWriter(Channels.newChannel(out), 100);
+		for (ProtocolCard card : cards) {
+			writer.write(card);
+		}
+		writer.close();
+		
+		ProtocolCodec.CardReader reader = new ProtocolCodec.CardReader(
+				Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), 50);
+		for (ProtocolCard card : cards) {
+			ProtocolCard read = reader.read();
+			assertEquals(card.privatePoints().get(3).x, read.privatePoints().get(3).x);
+			assertEquals(card.privatePoints().get(3).y, read.privatePoints().get(3).y);
+		}
+		assertNull(reader.read());
+		reader.close();
+	}
+	
+	@Test(expected = EOFException.class)
+	public void testTruncatedStream() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtocolCodec.CardWriter writer = new ProtocolCodec.CardWriter(Channels.newChannel(out));
+		writer.write(new ProtocolCard(new ProtocolDoor(5).privatePoints(5001)));
+		writer.close();
+		
+		byte[] bytes = out.toByteArray();
+		ProtocolCodec.CardReader reader = new ProtocolCodec.CardReader(
+				Channels.newChannel(new ByteArrayInputStream(bytes, 0, bytes.length - 1)));
+		reader.read();
+	}
+	
+	private boolean exchange(ProtocolDoor door, ProtocolCard card) {
+		try {
+			return door.checkResponse(card.authenticate(door.getBroadcast()));
+		} catch (ArithmeticException e) {
+			return false;
+		}
+	}
+}
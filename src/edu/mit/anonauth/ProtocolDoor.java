@@ -1,75 +1,285 @@
 package edu.mit.anonauth;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /*
  * Class to contain protocol secret.
+ * 
+ * A door is safe to share between threads. Everything that changes on
+ * revocation lives in an immutable Epoch which is swapped atomically, so
+ * getBroadcast() and checkResponse() never block; revoke() and the other
+ * state changes are serialized on the door's monitor.
  */
 public class ProtocolDoor implements Serializable {
 	
 	private static final long serialVersionUID = 1L;
 	
     /**
-     * This is k, the current degree of the polynomial. It also matches the
-     * number of users who have been revoked.
+     * This is r, the revocation parameter, the maximum number of users who may
+     * be revoked. When polyDegree == maxPolyDegree, the system can no longer
+     * support revoke(). Set only on construction and deserialization.
      */
-    private int polyDegree;
+    private int maxPolyDegree;
     
     /**
-     * This is r, the revocation parameter, the maximum number of users who may
-     * be revoked. When polyDegree == maxPolyDegree, the system can no longer
-     * support revoke().
+     * The polynomials, in order, which hide the passwords. The i-th
+     * polynomial has degree i. Set only on construction and
+     * deserialization.
      */
-    private final int maxPolyDegree;
+    private SecretStore secrets;
     
     /**
-     * A list of the polynomials, in order, which hide the passwords. The i-th
-     * polynomial has degree i.
+     * The current state of the door. Replaced, never modified.
      */
-    private final List<SecretBox> secrets;
+    private volatile Epoch epoch;
+    
+    private static final AtomicReferenceFieldUpdater<ProtocolDoor, Epoch> EPOCH =
+    		AtomicReferenceFieldUpdater.newUpdater(ProtocolDoor.class, Epoch.class, "epoch");
     
     /**
-     * List of revoked users. Persists across revocations.
+     * If set, the next polynomial's public points are sampled on this
+     * executor while the door is idle, so revoke() only has to sample the
+     * newly revoked user.
      */
-    private List<BigInteger> blacklist;
+    private transient Executor precomputeExecutor;
     
     /**
-     * The public points for the current polynomial (indexed by polyDegree).
-     * When switching to a new polynomial, discard old public points.
-     * 
-     * Note: public points are sampled from [1, r] and private points are
-     * sample from (r, max]. This means that user IDs must be > r.
+     * The pending or completed precomputation for the next polynomial, or
+     * null. Guarded by the door's monitor.
+     */
+    private transient Precomputation precomputed;
+    
+    /**
+     * The blacklist revoke() is advancing to, for advancePolynomial(), or
+     * null. Guarded by the door's monitor.
      */
-    private List<Point> publicPoints;
+    private transient List<BigInteger> revoking;
     
     /**
-     * The current challenge. This value changes upon each successful
-     * authentication attempt.
+     * Defaults for per-session challenges; see configureSessions().
      */
-    private BigInteger challenge;
+    public static final int DEFAULT_SESSION_CAPACITY = 4096;
+    public static final long DEFAULT_SESSION_TTL_SECONDS = 30;
     
+    /**
+     * Outstanding per-session challenges, created on first use.
+     */
+    private transient volatile NonceTable sessions;
     
-    public ProtocolDoor(int r) {
-    	polyDegree = -1;	// begins at 0; will increment in advancePolynomial()
-    	maxPolyDegree = r;
-    	secrets = new ArrayList<SecretBox>();
-    	blacklist = new ArrayList<BigInteger>();
+    /**
+     * A broadcast carrying a challenge of its own, to be answered with
+     * checkResponse(id, response).
+     */
+    public static final class Session {
+    	public final long id;
+    	private final byte[] broadcast;
     	
-    	// Generate all the polynomials!
-    	for (int i = 0; i <= maxPolyDegree; i++) {
-    		SecretBox box = SecretBox.randomSecretBox(i+1);
-    		secrets.add(box);
+    	Session(long id, byte[] broadcast) {
+    		this.id = id;
+    		this.broadcast = broadcast;
+    	}
+    	
+    	public byte[] getBroadcast() {
+    		return broadcast.clone();
     	}
+    }
+    
+    /**
+     * An immutable snapshot of the door's revocation state and challenge,
+     * along with the broadcast and expected response derived from them.
+     */
+    static final class Epoch implements Serializable {
+    	
+    	private static final long serialVersionUID = 1L;
+    	
+        /**
+         * This is k, the current degree of the polynomial. It also matches the
+         * number of users who have been revoked.
+         */
+    	final int polyDegree;
+    	
+    	/**
+    	 * The SecretBox for the current polynomial (indexed by polyDegree).
+    	 * Not serialized, since the door's SecretStore can provide it.
+    	 */
+    	final transient SecretBox box;
+    	
+        /**
+         * List of revoked users. Persists across revocations.
+         */
+    	final List<BigInteger> blacklist;
+    	
+        /**
+         * The public points for the current polynomial. When switching to a
+         * new polynomial, discard old public points.
+         * 
+         * Note: public points are sampled from [1, r] and private points are
+         * sample from (r, max]. This means that user IDs must be > r.
+         * Not serialized, since they are resampled from the blacklist.
+         */
+    	final transient List<Point> publicPoints;
+    	
+        /**
+         * The current challenge. This value changes upon each successful
+         * authentication attempt.
+         */
+    	final BigInteger challenge;
     	
-    	// Generate public points for the starting polynomial
-    	advancePolynomial();
+    	/**
+    	 * The door's ID, appended to the broadcast so that a wallet can pick
+    	 * the right credential, or null if the door has none.
+    	 */
+    	final Integer doorId;
     	
-    	// Switch to a new challenge
-    	generateChallenge();
+    	/**
+    	 * The response a valid card will send back.
+    	 */
+    	final transient byte[] expectedResponse;
+    	
+    	/**
+    	 * The broadcast in the ordinary and compact formats, encoded on first
+    	 * use.
+    	 */
+    	private transient volatile byte[] broadcast;
+    	private transient volatile byte[] compactBroadcast;
+    	
+    	Epoch(int polyDegree, SecretBox box, List<BigInteger> blacklist, List<Point> publicPoints, BigInteger challenge,
+    			Integer doorId) {
+    		this.polyDegree = polyDegree;
+    		this.box = box;
+    		this.blacklist = Collections.unmodifiableList(new ArrayList<BigInteger>(blacklist));
+    		this.publicPoints = Collections.unmodifiableList(new ArrayList<Point>(publicPoints));
+    		this.challenge = challenge;
+    		this.doorId = doorId;
+    		this.expectedResponse = box.hmac(challenge);
+    	}
+    	
+    	/**
+    	 * @throws IllegalStateException if the ordinary format cannot hold
+    	 *   this epoch's points
+    	 */
+    	byte[] broadcast() {
+    		byte[] encoded = broadcast;
+    		if (encoded == null) {
+    			encoded = encodeBroadcast(polyDegree, publicPoints, box.secretHash(), challenge, doorId);
+    			broadcast = encoded;
+    		}
+    		return encoded;
+    	}
+    	
+    	byte[] compactBroadcast() {
+    		byte[] compact = compactBroadcast;
+    		if (compact == null) {
+    			// public points are the revoked users' followed by the fillers
+    			int revoked = Math.min(blacklist.size(), publicPoints.size());
+    			byte[] challengeBytes = new byte[BroadcastView.CHALLENGE_SIZE];
+    			new FieldElement(challenge).toBytes(challengeBytes, 0, challengeBytes.length);
+    			compact = CompactBroadcastView.encode(publicPoints.subList(revoked, publicPoints.size()),
+    					publicPoints.subList(0, revoked), box.secretHash(), challengeBytes, doorId);
+    			compactBroadcast = compact;
+    		}
+    		return compact;
+    	}
+    	
+    	Epoch withChallenge(BigInteger challenge) {
+    		return new Epoch(polyDegree, box, blacklist, publicPoints, challenge, doorId);
+    	}
+    	
+    	Epoch withDoorId(Integer doorId) {
+    		return new Epoch(polyDegree, box, blacklist, publicPoints, challenge, doorId);
+    	}
+    }
+    
+    
+    /**
+     * The part of the next epoch which can be computed before the revoked
+     * user is known: the next SecretBox sampled at the current blacklist.
+     */
+    private static final class NextEpoch {
+    	final int polyDegree;
+    	final List<BigInteger> blacklist;
+    	final SecretBox box;
+    	final List<Point> points;
+    	
+    	NextEpoch(int polyDegree, List<BigInteger> blacklist, SecretBox box, List<Point> points) {
+    		this.polyDegree = polyDegree;
+    		this.blacklist = blacklist;
+    		this.box = box;
+    		this.points = points;
+    	}
+    }
+    
+    /**
+     * Sampling of the polynomial after base, which notes when the executor
+     * starts running it.
+     */
+    private static final class Precomputation extends FutureTask<NextEpoch> {
+    	final Epoch base;
+    	volatile boolean started;
+    	
+    	Precomputation(Epoch base, Callable<NextEpoch> sampler) {
+    		super(sampler);
+    		this.base = base;
+    	}
+    	
+    	@Override
+    	public void run() {
+    		started = true;
+    		super.run();
+    	}
+    }
+    
+    
+    public ProtocolDoor(int r) {
+    	// Generate all the polynomials!
+    	this(SecretStore.random(r));
+    }
+    
+    /**
+     * Create a door backed by the given polynomials, e.g. a seeded store from
+     * SecretStore.fromSeed(), which starts instantly for any r, or a
+     * MappedSecretStore, which keeps explicit coefficients off the heap.
+     */
+    public ProtocolDoor(SecretStore secrets) {
+    	this.maxPolyDegree = secrets.maxPolyDegree();
+    	this.secrets = secrets;
+    	
+    	// Start at degree 0, with nobody revoked and a new challenge
+    	epoch = buildEpoch(0, Collections.<BigInteger>emptyList(), Polynomial.randomBigInteger(), null);
+    }
+    
+    /**
+     * Restore a door to a saved state, recomputing its public points.
+     */
+    ProtocolDoor(SecretStore secrets, int polyDegree, List<BigInteger> blacklist, BigInteger challenge) {
+    	this(secrets, polyDegree, blacklist, challenge, null);
+    }
+    
+    ProtocolDoor(SecretStore secrets, int polyDegree, List<BigInteger> blacklist, BigInteger challenge, Integer doorId) {
+    	this.maxPolyDegree = secrets.maxPolyDegree();
+    	this.secrets = secrets;
+    	epoch = buildEpoch(polyDegree, blacklist, challenge, doorId);
     }
     
     /**
@@ -85,9 +295,74 @@ public class ProtocolDoor implements Serializable {
      *     
      *   32 bytes  hash of secret
      *   16 bytes  challenge
+     *   
+     *   Only if the door has an ID:
+     *     1 byte    flags, BroadcastView.FLAG_DOOR_ID
+     *     4 bytes   door ID
+     * 
+     * A door without an ID sends exactly the original format, and cards
+     * which predate door IDs ignore the trailing bytes.
+     * 
+     * @throws IllegalStateException once more than 255 users, or a user
+     *   with an ID above 65535, have been revoked; the compact broadcast
+     *   can hold any state
      */
     public byte[] getBroadcast(){
-    	int totalLength = 1 + (16 + 2) * publicPoints.size() + 32 + 16;
+    	return epoch.broadcast().clone();
+    }
+    
+    /**
+     * Put the broadcast into a buffer at its position, advancing the
+     * position. Nothing is allocated, so this suits a network layer which
+     * reuses direct buffers.
+     * @throws java.nio.BufferOverflowException if the buffer has fewer than
+     *   getBroadcastLength() bytes remaining
+     * @throws IllegalStateException as getBroadcast() does
+     */
+    public void writeBroadcast(ByteBuffer out) {
+    	out.put(epoch.broadcast());
+    }
+    
+    /**
+     * Length in bytes of the current broadcast.
+     * @throws IllegalStateException as getBroadcast() does
+     */
+    public int getBroadcastLength() {
+    	return epoch.broadcast().length;
+    }
+    
+    /**
+     * Get the broadcast in the compact format described by
+     * CompactBroadcastView, for links where every byte costs air time. It
+     * carries the same points and challenge as getBroadcast(), and is
+     * answered with the same response, which checkResponse() accepts; cards
+     * read it with ProtocolCard.authenticateCompact().
+     */
+    public byte[] getCompactBroadcast() {
+    	return epoch.compactBroadcast().clone();
+    }
+    
+    /**
+     * Put the compact broadcast into a buffer at its position, advancing the
+     * position.
+     */
+    public void writeCompactBroadcast(ByteBuffer out) {
+    	out.put(epoch.compactBroadcast());
+    }
+    
+    private static byte[] encodeBroadcast(int polyDegree, List<Point> publicPoints, byte[] secretHash, BigInteger challenge,
+    		Integer doorId) {
+    	// k must fit in one byte, and every x-coordinate in two
+    	if (polyDegree > 255) {
+    		throw new IllegalStateException("Broadcast cannot hold " + polyDegree + " points; use the compact broadcast");
+    	}
+    	for (Point p : publicPoints) {
+    		if (p.x.bitLength() > 16) {
+    			throw new IllegalStateException("Broadcast cannot hold user " + p.x + "; use the compact broadcast");
+    		}
+    	}
+    	
+    	int totalLength = 1 + (16 + 2) * publicPoints.size() + 32 + 16 + (doorId != null ? 1 + 4 : 0);
         byte[] broadcast = new byte[totalLength];
         int i = 0;
         
@@ -103,13 +378,23 @@ public class ProtocolDoor implements Serializable {
         }
         
         // secret hash
-        System.arraycopy(currentSecretBox().secretHash(), 0, broadcast, i, 32);
+        System.arraycopy(secretHash, 0, broadcast, i, 32);
         i = i + 32;
         
         // challenge
         insertInteger(broadcast, i, challenge, 16);
         i = i + 16;
         
+        // flags and door ID
+        if (doorId != null) {
+        	broadcast[i++] = BroadcastView.FLAG_DOOR_ID;
+        	int id = doorId;
+        	broadcast[i++] = (byte) (id >>> 24);
+        	broadcast[i++] = (byte) (id >>> 16);
+        	broadcast[i++] = (byte) (id >>> 8);
+        	broadcast[i++] = (byte) id;
+        }
+        
         return broadcast;
     }
     
@@ -119,9 +404,154 @@ public class ProtocolDoor implements Serializable {
      * 
      * Format:
      *   32 bytes  HMAC
+     * 
+     * An accepted response moves the door to a new challenge, so a captured
+     * response cannot be replayed. Of several responses to the same
+     * broadcast checked at once, only one is accepted; readers which need
+     * to authenticate concurrently should use sessions.
      */
     public boolean checkResponse(byte[] response) {
-    	return Arrays.equals(currentSecretBox().hmac(challenge), response);
+    	boolean valid = acceptResponse(response);
+    	Metrics.installed().increment(valid ? Metrics.Counter.RESPONSE_ACCEPTED : Metrics.Counter.RESPONSE_REJECTED);
+    	return valid;
+    }
+    
+    /**
+     * Check a response read in place from the buffer's position, as
+     * checkResponse(byte[]) does. The response must be exactly the buffer's
+     * remaining bytes, which are consumed. Comparison takes constant time.
+     */
+    public boolean checkResponse(ByteBuffer response) {
+    	Epoch current = epoch;
+    	byte[] expected = current.expectedResponse;
+    	int position = response.position();
+    	boolean valid = response.remaining() == expected.length;
+    	if (valid) {
+    		int diff = 0;
+    		for (int i = 0; i < expected.length; i++) {
+    			diff |= expected[i] ^ response.get(position + i);
+    		}
+    		valid = diff == 0 && rotateChallenge(current);
+    	}
+    	response.position(response.limit());
+    	Metrics.installed().increment(valid ? Metrics.Counter.RESPONSE_ACCEPTED : Metrics.Counter.RESPONSE_REJECTED);
+    	return valid;
+    }
+    
+    /**
+     * Check a response as checkResponse(byte[]) does, moving to a new
+     * challenge if it is accepted, without counting it in the metrics.
+     */
+    boolean acceptResponse(byte[] response) {
+    	Epoch current = epoch;
+    	return response != null && MessageDigest.isEqual(current.expectedResponse, response)
+    			&& rotateChallenge(current);
+    }
+    
+    /**
+     * Replace the challenge of an epoch which has just been answered.
+     * @return false if the epoch has already been replaced, by another
+     *   accepted response or a state change, so that the response is stale
+     */
+    private boolean rotateChallenge(Epoch answered) {
+    	return EPOCH.compareAndSet(this, answered, answered.withChallenge(Polynomial.randomBigInteger()));
+    }
+    
+    /**
+     * Set how many per-session challenges may be outstanding and for how
+     * long each stays valid. Sessions already open are forgotten.
+     */
+    public synchronized void configureSessions(int capacity, long ttl, TimeUnit unit) {
+    	sessions = new NonceTable(capacity, ttl, unit);
+    }
+    
+    private NonceTable sessions() {
+    	NonceTable table = sessions;
+    	if (table == null) {
+    		synchronized (this) {
+    			table = sessions;
+    			if (table == null) {
+    				table = new NonceTable(DEFAULT_SESSION_CAPACITY, DEFAULT_SESSION_TTL_SECONDS, TimeUnit.SECONDS);
+    				sessions = table;
+    			}
+    		}
+    	}
+    	return table;
+    }
+    
+    /**
+     * Start a session with a fresh challenge. The session's broadcast is the
+     * door's broadcast with the shared challenge replaced by the session's,
+     * which can only be answered once and only until the session expires or
+     * the door revokes someone. Unlike generateChallenge(), opening a session
+     * changes nothing for other readers, so any number of authentications
+     * can be in flight at once without contention.
+     * @throws IllegalStateException as getBroadcast() does
+     */
+    public Session openSession() {
+    	Epoch current = epoch;
+    	ByteBuffer broadcast = ByteBuffer.allocate(current.broadcast().length);
+    	long id = openSession(current, broadcast);
+    	return new Session(id, broadcast.array());
+    }
+    
+    /**
+     * Start a session as openSession() does, putting its broadcast into a
+     * buffer at its position and advancing the position.
+     * @return the session's ID
+     * @throws IllegalStateException as getBroadcast() does
+     */
+    public long openSession(ByteBuffer out) {
+    	return openSession(epoch, out);
+    }
+    
+    private long openSession(Epoch current, ByteBuffer out) {
+    	byte[] broadcast = current.broadcast();
+    	byte[] challenge = RandomPool.shared().challenge();
+    	long id = sessions().put(challenge);
+    	
+    	int start = out.position();
+    	out.put(broadcast);
+    	int end = out.position();
+    	out.position(start + 1 + BroadcastView.POINT_SIZE * current.polyDegree + BroadcastView.HASH_SIZE);
+    	out.put(challenge);
+    	out.position(end);
+    	return id;
+    }
+    
+    /**
+     * Check a response to a session's broadcast. A session can be answered
+     * successfully only once; wrong responses do not use it up.
+     */
+    public boolean checkResponse(long session, byte[] response) {
+    	if (response == null) {
+    		Metrics.installed().increment(Metrics.Counter.RESPONSE_REJECTED);
+    		return false;
+    	}
+    	return checkResponse(session, ByteBuffer.wrap(response));
+    }
+    
+    /**
+     * Check a response to a session's broadcast, read in place from the
+     * buffer as checkResponse(ByteBuffer) does.
+     */
+    public boolean checkResponse(long session, ByteBuffer response) {
+    	NonceTable table = sessions;
+    	byte[] challenge = table != null ? table.get(session) : null;
+    	boolean valid = false;
+    	if (challenge != null && response.remaining() == SecretBox.HMAC_LENGTH) {
+    		ByteBuffer expected = ByteBuffer.allocate(SecretBox.HMAC_LENGTH);
+    		epoch.box.hmac(ByteBuffer.wrap(challenge), expected);
+    		int diff = 0;
+    		int position = response.position();
+    		for (int i = 0; i < SecretBox.HMAC_LENGTH; i++) {
+    			diff |= expected.get(i) ^ response.get(position + i);
+    		}
+    		valid = diff == 0 && table.consume(session, challenge);
+    	}
+    	response.position(response.limit());
+    	Metrics.installed().increment(valid ? Metrics.Counter.RESPONSE_ACCEPTED : Metrics.Counter.RESPONSE_REJECTED);
+    	return valid;
     }
     
     /**
@@ -133,63 +563,304 @@ public class ProtocolDoor implements Serializable {
     		throw new ArithmeticException("User ID must be greater than maxPolyDegree");
     	}
     	
-    	List<Point> points = new ArrayList<Point>();
-    	for (SecretBox box : secrets) {
-    		points.add(box.sample(BigInteger.valueOf(user)));
+    	Metrics metrics = Metrics.installed();
+    	long start = metrics.start();
+    	List<Point> points = secrets.sampleAll(BigInteger.valueOf(user));
+    	metrics.stop(Metrics.Phase.PRIVATE_POINTS, start);
+    	metrics.increment(Metrics.Counter.CARD_ISSUED);
+    	return points;
+    }
+    
+    /**
+     * Return several users' private points, as privatePoints(int) would for
+     * each, evaluating each polynomial across the whole batch at once.
+     * @return each user's r private points, in the same order as users
+     */
+    public List<List<Point>> privatePoints(List<Integer> users) {
+    	List<BigInteger> xs = new ArrayList<BigInteger>(users.size());
+    	for (int user : users) {
+    		if (user <= maxPolyDegree) {
+    			throw new ArithmeticException("User ID must be greater than maxPolyDegree");
+    		}
+    		xs.add(BigInteger.valueOf(user));
     	}
+    	
+    	Metrics metrics = Metrics.installed();
+    	long start = metrics.start();
+    	List<List<Point>> points = secrets.sampleAll(xs);
+    	metrics.stop(Metrics.Phase.PRIVATE_POINTS, start);
+    	metrics.increment(Metrics.Counter.CARD_ISSUED, users.size());
     	return points;
     }
     
     /**
      * Revoke a user. This action changes the value of the broadcast.
+     * Revoking a user who is already revoked does nothing, as in revokeAll().
+     * @throws IllegalStateException if r users have already been revoked;
+     *   see EpochRollover
      */
-    public void revoke(int user) {
+    public synchronized void revoke(int user) {
     	if (user <= maxPolyDegree) {
     		throw new ArithmeticException("User ID must be greater than maxPolyDegree");
     	}
+    	if (epoch.blacklist.contains(BigInteger.valueOf(user))) {
+    		return;
+    	}
+    	if (epoch.polyDegree >= maxPolyDegree) {
+    		throw new IllegalStateException("No more users can be revoked");
+    	}
     	
+    	Metrics metrics = Metrics.installed();
+    	long start = metrics.start();
+    	List<BigInteger> blacklist = new ArrayList<BigInteger>(epoch.blacklist);
     	blacklist.add(BigInteger.valueOf(user));
-    	advancePolynomial();
+    	revoking = blacklist;
+    	try {
+    		advancePolynomial();
+    	} finally {
+    		revoking = null;
+    	}
+    	metrics.stop(Metrics.Phase.REVOKE, start);
+    	metrics.increment(Metrics.Counter.USER_REVOKED);
+    }
+    
+    /**
+     * Revoke several users at once. IDs which repeat, or which are already
+     * revoked, are skipped. The door jumps straight to the final polynomial,
+     * so the public points are built once rather than once per user, and the
+     * result is the same as revoking the new IDs one at a time in order.
+     * @return the number of users newly revoked
+     */
+    public synchronized int revokeAll(Collection<Integer> users) {
+    	Epoch current = epoch;
+    	Set<BigInteger> revoked = new HashSet<BigInteger>(current.blacklist);
+    	List<BigInteger> blacklist = new ArrayList<BigInteger>(current.blacklist);
+    	for (int user : users) {
+    		if (user <= maxPolyDegree) {
+    			throw new ArithmeticException("User ID must be greater than maxPolyDegree");
+    		}
+    		BigInteger x = BigInteger.valueOf(user);
+    		if (revoked.add(x)) {
+    			blacklist.add(x);
+    		}
+    	}
+    	
+    	int added = blacklist.size() - current.blacklist.size();
+    	if (added == 0) {
+    		return 0;
+    	}
+    	if (current.polyDegree + added > maxPolyDegree) {
+    		throw new IllegalStateException("Only " + (maxPolyDegree - current.polyDegree)
+    				+ " more users can be revoked");
+    	}
+    	
+    	Metrics metrics = Metrics.installed();
+    	long start = metrics.start();
+    	epoch = buildEpoch(current.polyDegree + added, blacklist, current.challenge, current.doorId);
+    	schedulePrecompute();
+    	metrics.stop(Metrics.Phase.REVOKE, start);
+    	metrics.increment(Metrics.Counter.USER_REVOKED, added);
+    	return added;
+    }
+    
+    /**
+     * Number of users who can still be revoked before the door's polynomials
+     * run out.
+     */
+    public int remainingRevocations() {
+    	return maxPolyDegree - epoch.polyDegree;
     }
     
     /**
      * Get the current SecretBox, identified by polyDegree.
      */
     protected SecretBox currentSecretBox() {
-    	return secrets.get(polyDegree);
+    	return epoch.box;
     }
     
     /**
      * Switch to the next polynomial/SecretBox, incrementing polyDegree and
-     * regenerating all public points.
+     * regenerating all public points. revoke() calls this once the user has
+     * been added to the blacklist, so subclasses may override it to act on
+     * every single revocation, calling this to advance; revokeAll() jumps
+     * straight to the final polynomial without calling it.
      */
-    protected void advancePolynomial() {
+    protected synchronized void advancePolynomial() {
+    	advancePolynomial(revoking != null ? revoking : epoch.blacklist);
+    }
+    
+    /**
+     * Switch to the next polynomial with the given blacklist.
+     */
+    synchronized void advancePolynomial(List<BigInteger> blacklist) {
     	// increment index
-    	polyDegree = polyDegree + 1;
-    	SecretBox box = currentSecretBox();
+    	epoch = buildEpoch(epoch.polyDegree + 1, blacklist, epoch.challenge, epoch.doorId);
+    	schedulePrecompute();
+    }
+    
+    /**
+     * Build the epoch for the given polynomial, generating its public points.
+     */
+    private Epoch buildEpoch(int polyDegree, List<BigInteger> blacklist, BigInteger challenge, Integer doorId) {
+    	NextEpoch next = takePrecomputed(polyDegree, blacklist);
+    	SecretBox box = next != null ? next.box : secrets.get(polyDegree);
     	
     	// regenerate public points
-    	// ...beginning with revoked users' private points
-    	publicPoints = new ArrayList<Point>();
-    	for (BigInteger user : blacklist) {
-    		Point p = box.sample(user);
-    		publicPoints.add(p);
+    	// ...beginning with revoked users' private points, some of which may
+    	// already have been sampled
+    	List<Point> publicPoints = new ArrayList<Point>(polyDegree);
+    	int sampled = 0;
+    	if (next != null) {
+    		publicPoints.addAll(next.points);
+    		sampled = next.points.size();
     	}
+    	List<BigInteger> xs = new ArrayList<BigInteger>(blacklist.subList(sampled, blacklist.size()));
     	
     	// ...and filling in the rest with x-coordinates from [1, r]
     	int x = 1;
-    	while (publicPoints.size() < polyDegree) {
-    		Point p = box.sample(BigInteger.valueOf(x));
-    		publicPoints.add(p);
+    	while (sampled + xs.size() < polyDegree) {
+    		xs.add(BigInteger.valueOf(x));
     		x++;
     	}
+    	
+    	publicPoints.addAll(box.sample(xs));
+    	return new Epoch(polyDegree, box, blacklist, publicPoints, challenge, doorId);
+    }
+    
+    /**
+     * Precompute the next epoch on the given executor after every
+     * revocation, or stop precomputing if executor is null. Precomputation
+     * holds one extra polynomial and its samples in memory.
+     */
+    public synchronized void setPrecomputeExecutor(Executor executor) {
+    	precomputeExecutor = executor;
+    	if (precomputed != null) {
+    		precomputed.cancel(false);
+    	}
+    	schedulePrecompute();
+    }
+    
+    /**
+     * Start sampling the next polynomial at the current blacklist. Must be
+     * called while holding the door's monitor.
+     */
+    private void schedulePrecompute() {
+    	precomputed = null;
+    	final Epoch base = epoch;
+    	if (precomputeExecutor == null || base.polyDegree >= maxPolyDegree) {
+    		return;
+    	}
+    	
+    	Precomputation task = new Precomputation(base, new Callable<NextEpoch>() {
+    		public NextEpoch call() {
+    			SecretBox box = secrets.get(base.polyDegree + 1);
+    			box.secretHash();
+    			List<Point> points = box.sample(base.blacklist);
+    			return new NextEpoch(base.polyDegree + 1, base.blacklist, box, points);
+    		}
+    	});
+    	try {
+    		precomputeExecutor.execute(task);
+    		precomputed = task;
+    	} catch (RejectedExecutionException e) {
+    		// the executor is shutting down; revoke() will do the work itself
+    	}
+    }
+    
+    /**
+     * Claim the precomputed epoch if it matches the one being built, waiting
+     * for it if it is still running. A task for another degree or blacklist
+     * is cancelled without waiting, since it would only be discarded; so is
+     * one the executor has not started, since it may be queued behind other
+     * work or never run at all (e.g. under a discarding policy). The caller
+     * then samples directly.
+     * @return the precomputation, or null if there is none to use
+     */
+    private NextEpoch takePrecomputed(int polyDegree, List<BigInteger> blacklist) {
+    	Precomputation task = precomputed;
+    	precomputed = null;
+    	if (task == null) {
+    		return null;
+    	}
+    	List<BigInteger> sampled = task.base.blacklist;
+    	if (task.base.polyDegree + 1 != polyDegree || sampled.size() > blacklist.size()
+    			|| !sampled.equals(blacklist.subList(0, sampled.size()))) {
+    		task.cancel(false);
+    		return null;
+    	}
+    	if (!task.started && task.cancel(false)) {
+    		return null;
+    	}
+    	
+    	try {
+    		return task.get();
+    	} catch (CancellationException e) {
+    		return null;
+    	} catch (ExecutionException e) {
+    		return null;
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		return null;
+    	}
     }
     
     /**
      * Generate a new 128-bit challenge.
      */
-    protected void generateChallenge() {
-    	challenge = Polynomial.randomBigInteger();
+    protected synchronized void generateChallenge() {
+    	epoch = epoch.withChallenge(Polynomial.randomBigInteger());
+    }
+    
+    /**
+     * Identify the door in its broadcast, so that a CredentialWallet can
+     * find the matching card directly. Pass null to stop broadcasting an ID.
+     */
+    public synchronized void setDoorId(Integer doorId) {
+    	epoch = epoch.withDoorId(doorId);
+    }
+    
+    /**
+     * Get the door's ID, or null if it has none.
+     */
+    public Integer getDoorId() {
+    	return epoch.doorId;
+    }
+    
+    /**
+     * Get a consistent snapshot of the door's current state.
+     */
+    Epoch currentEpoch() {
+    	return epoch;
+    }
+    
+    SecretStore secretStore() {
+    	return secrets;
+    }
+    
+    /**
+     * Read a door in either serialized form. Doors from before SecretStore
+     * and Epoch held their SecretBoxes in a list and their state in fields
+     * of their own, under the same serialVersionUID; they are restored with
+     * the same polynomials, revocations and challenge. Either way the public
+     * points are resampled rather than read.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    	ObjectInputStream.GetField fields = in.readFields();
+    	maxPolyDegree = fields.get("maxPolyDegree", 0);
+    	Object stored = fields.get("secrets", null);
+    	if (stored instanceof List) {
+    		secrets = new SecretStore.ListSecretStore((List<SecretBox>) stored);
+    		epoch = buildEpoch(fields.get("polyDegree", 0), (List<BigInteger>) fields.get("blacklist", null),
+    				(BigInteger) fields.get("challenge", null), null);
+    		return;
+    	}
+    	if (!(stored instanceof SecretStore)) {
+    		throw new InvalidObjectException("Door has no polynomials");
+    	}
+    	secrets = (SecretStore) stored;
+    	Epoch saved = (Epoch) fields.get("epoch", null);
+    	epoch = buildEpoch(saved.polyDegree, saved.blacklist, saved.challenge, saved.doorId);
     }
     
     /**
@@ -200,7 +871,7 @@ public class ProtocolDoor implements Serializable {
      * @param x integer to insert
      * @param len number of bytes to write
      */
-    private void insertInteger(byte[] array, int offset, BigInteger x, int len) {
+    private static void insertInteger(byte[] array, int offset, BigInteger x, int len) {
     	if (x.compareTo(BigInteger.ZERO) < 0) {
     		throw new ArithmeticException("insertInteger does not support negative numbers");
     	}
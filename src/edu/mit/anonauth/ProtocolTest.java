@@ -7,8 +7,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -78,6 +91,408 @@ public class ProtocolTest {
     	}
     }
 	
+    @Test
+    public void testBroadcastCaching() {
+    	int r = 5;
+    	int user = 5001;
+    	
+    	ProtocolDoor door = new ProtocolDoor(r);
+    	byte[] first = door.getBroadcast();
+    	assertArrayEquals(first, door.getBroadcast());
+    	
+    	// callers get their own copy
+    	first[0]++;
+    	assertFalse(Arrays.equals(first, door.getBroadcast()));
+    	first[0]--;
+    	
+    	door.revoke(user);
+    	assertFalse(Arrays.equals(first, door.getBroadcast()));
+    	assertFalse(door.checkResponse((byte[]) null));
+    	assertFalse(door.checkResponse(new byte[32]));
+    }
+	
+    @Test
+    public void testReplay() {
+    	ProtocolDoor door = new ProtocolDoor(5);
+    	ProtocolCard card = new ProtocolCard(door.privatePoints(5001));
+    	
+    	byte[] broadcast = door.getBroadcast();
+    	byte[] response = card.authenticate(broadcast);
+    	assertTrue(door.checkResponse(response));
+    	
+    	// the accepted response moved the door to a new challenge
+    	assertFalse(Arrays.equals(broadcast, door.getBroadcast()));
+    	assertFalse(door.checkResponse(response));
+    	assertFalse(door.checkResponse(ByteBuffer.wrap(response)));
+    	assertTrue(exchange(door, card));
+    	
+    	ByteBuffer in = ByteBuffer.wrap(card.authenticate(door.getBroadcast()));
+    	assertTrue(door.checkResponse(in.duplicate()));
+    	assertFalse(door.checkResponse(in));
+    }
+	
+    @Test
+    public void testConcurrentRevocation() throws Exception {
+    	int r = 20;
+    	final ProtocolDoor door = new ProtocolDoor(r);
+    	final ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+    	final AtomicInteger mismatches = new AtomicInteger();
+    	final AtomicBoolean done = new AtomicBoolean();
+    	
+    	ExecutorService pool = Executors.newFixedThreadPool(4);
+    	List<Future<?>> workers = new ArrayList<Future<?>>();
+    	for (int t = 0; t < 4; t++) {
+    		workers.add(pool.submit(new Callable<Void>() {
+    			public Void call() {
+    				while (!done.get()) {
+    					// a response to an unchanged broadcast must be accepted
+    					byte[] before = door.getBroadcast();
+    					boolean ok = door.checkResponse(card.authenticate(before));
+    					if (!ok && Arrays.equals(before, door.getBroadcast())) {
+    						mismatches.incrementAndGet();
+    					}
+    				}
+    				return null;
+    			}
+    		}));
+    	}
+    	
+    	for (int i = 1; i <= r; i++) {
+    		door.revoke(5000 + i);
+    	}
+    	done.set(true);
+    	for (Future<?> worker : workers) {
+    		worker.get();
+    	}
+    	pool.shutdown();
+    	
+    	assertEquals(0, mismatches.get());
+    	assertTrue(exchange(door, card));
+    	assertFalse(exchange(door, new ProtocolCard(door.privatePoints(5001))));
+    }
+	
+    @Test
+    public void testPrecomputedRevocation() throws Exception {
+    	int r = 10;
+    	byte[] seed = SecretStore.randomSeed();
+    	ProtocolDoor plain = new ProtocolDoor(SecretStore.fromSeed(r, seed));
+    	ProtocolDoor door = new ProtocolDoor(SecretStore.fromSeed(r, seed));
+    	ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+    	
+    	ExecutorService executor = Executors.newSingleThreadExecutor();
+    	door.setPrecomputeExecutor(executor);
+    	for (int i = 1; i <= r; i++) {
+    		plain.revoke(5000 + i);
+    		door.revoke(5000 + i);
+    		assertEquals(plain.currentEpoch().publicPoints.toString(), door.currentEpoch().publicPoints.toString());
+    		assertTrue(exchange(door, card));
+    		assertFalse(exchange(door, new ProtocolCard(door.privatePoints(5000 + i))));
+    	}
+    	
+    	// a precomputation made stale by a state change is not used
+    	door = new ProtocolDoor(SecretStore.fromSeed(r, seed));
+    	door.setPrecomputeExecutor(executor);
+    	door.revoke(5001);
+    	door.advancePolynomial(Arrays.asList(BigInteger.valueOf(5003), BigInteger.valueOf(5004)));
+    	assertTrue(exchange(door, card));
+    	assertTrue(exchange(door, new ProtocolCard(door.privatePoints(5001))));
+    	assertFalse(exchange(door, new ProtocolCard(door.privatePoints(5003))));
+    	assertFalse(exchange(door, new ProtocolCard(door.privatePoints(5004))));
+    	
+    	// and a door with no executor left falls back to sampling directly
+    	executor.shutdown();
+    	door.revoke(5005);
+    	assertFalse(exchange(door, new ProtocolCard(door.privatePoints(5005))));
+    	assertTrue(exchange(door, card));
+    }
+	
+    @Test
+    public void testAdvancePolynomialOverride() {
+    	final List<Integer> degrees = new ArrayList<Integer>();
+    	ProtocolDoor door = new ProtocolDoor(5) {
+    		@Override
+    		protected void advancePolynomial() {
+    			super.advancePolynomial();
+    			degrees.add(currentEpoch().polyDegree);
+    		}
+    	};
+    	ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+    	
+    	// every single revocation goes through the hook
+    	door.revoke(5001);
+    	door.revoke(5002);
+    	door.revoke(5002);
+    	assertEquals(Arrays.asList(1, 2), degrees);
+    	assertEquals(Arrays.asList(BigInteger.valueOf(5001), BigInteger.valueOf(5002)),
+    			door.currentEpoch().blacklist);
+    	assertTrue(exchange(door, card));
+    	assertFalse(exchange(door, new ProtocolCard(door.privatePoints(5002))));
+    }
+	
+    @Test(timeout = 10000)
+    public void testPrecomputeNeverRun() throws InterruptedException {
+    	int r = 10;
+    	ProtocolDoor door = new ProtocolDoor(SecretStore.fromSeed(r, SecretStore.randomSeed()));
+    	ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+    	
+    	// an executor whose thread and queue are full, so it discards every
+    	// precomputation the door hands it
+    	final CountDownLatch release = new CountDownLatch(1);
+    	Runnable blocker = new Runnable() {
+    		public void run() {
+    			try {
+    				release.await();
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    			}
+    		}
+    	};
+    	ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+    			new ArrayBlockingQueue<Runnable>(1), new ThreadPoolExecutor.DiscardPolicy());
+    	executor.execute(blocker);
+    	executor.execute(blocker);
+    	
+    	try {
+    		door.setPrecomputeExecutor(executor);
+    		for (int i = 1; i <= 3; i++) {
+    			door.revoke(5000 + i);
+    			assertTrue(exchange(door, card));
+    			assertFalse(exchange(door, new ProtocolCard(door.privatePoints(5000 + i))));
+    		}
+    	} finally {
+    		release.countDown();
+    		executor.shutdown();
+    	}
+    }
+	
+    @Test(timeout = 10000)
+    public void testStalePrecomputeNotAwaited() throws InterruptedException {
+    	int r = 10;
+    	final SecretStore seeded = SecretStore.fromSeed(r, SecretStore.randomSeed());
+    	final Thread reader = Thread.currentThread();
+    	final CountDownLatch started = new CountDownLatch(1);
+    	final CountDownLatch release = new CountDownLatch(1);
+    	
+    	// a store whose sampling off the reader's thread runs until released
+    	SecretStore slow = new SecretStore() {
+    		private static final long serialVersionUID = 1L;
+    		
+    		public int maxPolyDegree() {
+    			return seeded.maxPolyDegree();
+    		}
+    		
+    		public SecretBox get(int degree) {
+    			if (Thread.currentThread() != reader) {
+    				started.countDown();
+    				try {
+    					release.await();
+    				} catch (InterruptedException e) {
+    					Thread.currentThread().interrupt();
+    				}
+    			}
+    			return seeded.get(degree);
+    		}
+    		
+    		public List<Point> sampleAll(BigInteger x) {
+    			return seeded.sampleAll(x);
+    		}
+    	};
+    	ProtocolDoor door = new ProtocolDoor(slow);
+    	ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+    	
+    	ExecutorService executor = Executors.newSingleThreadExecutor();
+    	try {
+    		door.setPrecomputeExecutor(executor);
+    		started.await();
+    		
+    		// degree 1 is still being sampled, but revoking two users skips it
+    		assertEquals(2, door.revokeAll(Arrays.asList(5001, 5002)));
+    		assertTrue(exchange(door, card));
+    		assertFalse(exchange(door, new ProtocolCard(door.privatePoints(5002))));
+    	} finally {
+    		release.countDown();
+    		executor.shutdown();
+    	}
+    }
+	
+    @Test
+    public void testRevokeAll() {
+    	int r = 10;
+    	byte[] seed = SecretStore.randomSeed();
+    	ProtocolDoor sequential = new ProtocolDoor(SecretStore.fromSeed(r, seed));
+    	ProtocolDoor door = new ProtocolDoor(SecretStore.fromSeed(r, seed));
+    	ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+    	
+    	sequential.revoke(5001);
+    	sequential.revoke(5002);
+    	sequential.revoke(5003);
+    	assertEquals(3, door.revokeAll(Arrays.asList(5001, 5002, 5001, 5003)));
+    	assertEquals(3, door.currentEpoch().polyDegree);
+    	assertEquals(sequential.currentEpoch().publicPoints.toString(), door.currentEpoch().publicPoints.toString());
+    	
+    	assertTrue(exchange(door, card));
+    	for (int user = 5001; user <= 5003; user++) {
+    		assertFalse(exchange(door, new ProtocolCard(door.privatePoints(user))));
+    	}
+    	
+    	// already revoked users are skipped
+    	assertEquals(0, door.revokeAll(Arrays.asList(5002, 5003)));
+    	assertEquals(1, door.revokeAll(Arrays.asList(5003, 5004)));
+    	assertEquals(4, door.currentEpoch().polyDegree);
+    	
+    	// invalid batches are rejected without changing the door
+    	byte[] broadcast = door.getBroadcast();
+    	try {
+    		door.revokeAll(Arrays.asList(5005, r));
+    		fail("Expected ArithmeticException");
+    	} catch (ArithmeticException e) {
+    	}
+    	try {
+    		door.revokeAll(Arrays.asList(6001, 6002, 6003, 6004, 6005, 6006, 6007));
+    		fail("Expected IllegalStateException");
+    	} catch (IllegalStateException e) {
+    	}
+    	assertArrayEquals(broadcast, door.getBroadcast());
+    	
+    	assertEquals(6, door.revokeAll(Arrays.asList(6001, 6002, 6003, 6004, 6005, 6006)));
+    	assertTrue(exchange(door, card));
+    }
+	
+    @Test
+    public void testByteBufferExchange() {
+    	int r = 10;
+    	ProtocolDoor door = new ProtocolDoor(r);
+    	ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+    	ProtocolCard revoked = new ProtocolCard(door.privatePoints(5001));
+    	door.revoke(5001);
+    	
+    	ByteBuffer broadcast = ByteBuffer.allocateDirect(256);
+    	ByteBuffer response = ByteBuffer.allocateDirect(SecretBox.HMAC_LENGTH);
+    	door.writeBroadcast(broadcast);
+    	broadcast.flip();
+    	byte[] expected = card.authenticate(door.getBroadcast());
+    	card.authenticate(broadcast, response);
+    	assertFalse(broadcast.hasRemaining());
+    	assertFalse(response.hasRemaining());
+    	response.flip();
+    	assertTrue(door.checkResponse(response));
+    	assertFalse(response.hasRemaining());
+    	
+    	// the same response as the array API
+    	byte[] actual = new byte[SecretBox.HMAC_LENGTH];
+    	response.flip();
+    	response.get(actual);
+    	assertArrayEquals(expected, actual);
+    	
+    	// wrong or short responses are rejected
+    	assertFalse(door.checkResponse(ByteBuffer.allocate(SecretBox.HMAC_LENGTH)));
+    	assertFalse(door.checkResponse(ByteBuffer.wrap(expected, 0, SecretBox.HMAC_LENGTH - 1)));
+    	
+    	broadcast.flip();
+    	response.clear();
+    	try {
+    		revoked.authenticate(broadcast, response);
+    		fail("Expected ArithmeticException");
+    	} catch (ArithmeticException e) {
+    	}
+    }
+	
+    @Test
+    public void testSecretCache() {
+    	MetricsRecorder recorder = new MetricsRecorder();
+    	Metrics.install(recorder);
+    	try {
+    		int r = 10;
+    		ProtocolDoor door = new ProtocolDoor(r);
+    		ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+    		
+    		// a new challenge reuses the secret
+    		assertTrue(exchange(door, card));
+    		door.generateChallenge();
+    		assertTrue(exchange(door, card));
+    		assertEquals(1, recorder.getCount(Metrics.Counter.SECRET_CACHE_MISS));
+    		assertEquals(1, recorder.getCount(Metrics.Counter.SECRET_CACHE_HIT));
+    		
+    		// a revocation changes the points, so the secret is rebuilt
+    		door.revoke(5001);
+    		assertTrue(exchange(door, card));
+    		assertEquals(2, recorder.getCount(Metrics.Counter.SECRET_CACHE_MISS));
+    		
+    		// a tampered point is not served from the cache
+    		byte[] broadcast = door.getBroadcast();
+    		broadcast[5]++;
+    		try {
+    			card.authenticate(broadcast);
+    			fail("Expected BroadcastMismatchException");
+    		} catch (RuntimeException e) {
+    		}
+    		assertEquals(1, recorder.getCount(Metrics.Counter.BROADCAST_MISMATCH));
+    		
+    		// the cache is bounded; the least recently used door is evicted
+    		byte[] seed = SecretStore.randomSeed();
+    		ProtocolCard shared = new ProtocolCard(new ProtocolDoor(SecretStore.fromSeed(r, seed)).privatePoints(5000));
+    		List<ProtocolDoor> doors = new ArrayList<ProtocolDoor>();
+    		for (int i = 0; i <= ProtocolCard.SECRET_CACHE_SIZE; i++) {
+    			ProtocolDoor d = new ProtocolDoor(SecretStore.fromSeed(r, seed));
+    			d.revoke(6000 + i);
+    			doors.add(d);
+    			assertTrue(exchange(d, shared));
+    		}
+    		
+    		recorder.reset();
+    		assertTrue(exchange(doors.get(ProtocolCard.SECRET_CACHE_SIZE), shared));
+    		assertEquals(1, recorder.getCount(Metrics.Counter.SECRET_CACHE_HIT));
+    		assertTrue(exchange(doors.get(0), shared));
+    		assertEquals(1, recorder.getCount(Metrics.Counter.SECRET_CACHE_MISS));
+    	} finally {
+    		Metrics.install(null);
+    	}
+    }
+	
+    @Test
+    public void testSessions() {
+    	int r = 10;
+    	ProtocolDoor door = new ProtocolDoor(r);
+    	ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+    	
+    	// sessions answered out of order all succeed, each only once
+    	ProtocolDoor.Session first = door.openSession();
+    	ProtocolDoor.Session second = door.openSession();
+    	assertFalse(Arrays.equals(first.getBroadcast(), second.getBroadcast()));
+    	byte[] secondResponse = card.authenticate(second.getBroadcast());
+    	byte[] firstResponse = card.authenticate(first.getBroadcast());
+    	assertFalse(door.checkResponse(first.id, secondResponse));
+    	assertTrue(door.checkResponse(second.id, secondResponse));
+    	assertTrue(door.checkResponse(first.id, firstResponse));
+    	assertFalse(door.checkResponse(first.id, firstResponse));
+    	assertFalse(door.checkResponse(first.id + 100, firstResponse));
+    	
+    	// the shared challenge is unaffected
+    	assertTrue(exchange(door, card));
+    	
+    	// a revocation invalidates open sessions
+    	ProtocolDoor.Session open = door.openSession();
+    	byte[] response = card.authenticate(open.getBroadcast());
+    	door.revoke(5001);
+    	assertFalse(door.checkResponse(open.id, response));
+    	
+    	// only the most recent sessions are remembered
+    	door.configureSessions(4, 30, TimeUnit.SECONDS);
+    	ProtocolDoor.Session oldest = door.openSession();
+    	for (int i = 0; i < 4; i++) {
+    		door.openSession();
+    	}
+    	assertFalse(door.checkResponse(oldest.id, card.authenticate(oldest.getBroadcast())));
+    	
+    	ByteBuffer broadcast = ByteBuffer.allocate(256);
+    	long id = door.openSession(broadcast);
+    	broadcast.flip();
+    	ByteBuffer out = ByteBuffer.allocate(SecretBox.HMAC_LENGTH);
+    	card.authenticate(broadcast, out);
+    	out.flip();
+    	assertTrue(door.checkResponse(id, out));
+    }
+	
 	@Test
 	public void testSerialization() throws IOException, ClassNotFoundException {
 		int r = 50;
@@ -103,6 +518,40 @@ public class ProtocolTest {
     	assertFalse(exchange(door2, cardB2));
 	}
     
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testBaselineSerialization() throws IOException, ClassNotFoundException {
+		// a door with r = 3 which has revoked user 5002, serialized by the
+		// original implementation, along with its broadcast at the time and
+		// the points of users 5001 and 5002
+		ObjectInputStream in = new ObjectInputStream(getClass().getResourceAsStream("baseline-door.ser"));
+		byte[] broadcast;
+		ProtocolCard cardA;
+		ProtocolDoor door1;
+		ProtocolCard cardB;
+		try {
+			broadcast = (byte[]) in.readObject();
+			cardA = new ProtocolCard((List<Point>) in.readObject());
+			in.readObject();
+			door1 = (ProtocolDoor) in.readObject();
+			cardB = new ProtocolCard((List<Point>) in.readObject());
+		} finally {
+			in.close();
+		}
+		
+		assertArrayEquals(broadcast, door1.getBroadcast());
+		assertEquals(2, door1.remainingRevocations());
+		assertTrue(exchange(door1, cardA));
+		assertFalse(exchange(door1, cardB));
+		
+		// the restored door carries on, and round-trips in the new form
+		door1.revoke(5003);
+		ProtocolDoor door2 = (ProtocolDoor) deserialize(serialize(door1));
+		assertArrayEquals(door1.getBroadcast(), door2.getBroadcast());
+		assertTrue(exchange(door2, cardA));
+		assertFalse(exchange(door2, cardB));
+	}
+    
     private boolean exchange(ProtocolDoor door, ProtocolCard card) {
     	byte[] broadcast = door.getBroadcast();
     	byte[] response;
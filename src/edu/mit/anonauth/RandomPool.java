@@ -0,0 +1,258 @@
+package edu.mit.anonauth;
+
+import java.io.Closeable;
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Random field elements and challenges, drawn without contention.
+ *
+ * Each thread has its own generator, seeded from the system's entropy
+ * source, which it draws from a block at a time into a byte buffer, so most
+ * draws are an array copy rather than a call into the generator. On top of
+ * that a pool keeps queues of ready-made field elements and challenges,
+ * refilled in bulk by a background thread whenever they run low, so taking
+ * one is usually just a queue poll. If a queue is ever empty the caller
+ * generates its own rather than waiting.
+ */
+public final class RandomPool implements Closeable {
+
+	/**
+	 * Length in bytes of the challenges returned by challenge().
+	 */
+	public static final int CHALLENGE_SIZE = 16;
+
+	/**
+	 * Default number of field elements and of challenges kept ready.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Bytes used per field element: bit 128 and bits 127 to 0.
+	 */
+	private static final int ELEMENT_SIZE = 17;
+
+	/**
+	 * Bytes each thread draws from its generator at once.
+	 */
+	private static final int THREAD_BUFFER_SIZE = 64 * ELEMENT_SIZE;
+
+	/**
+	 * Items the refill thread generates between checks.
+	 */
+	private static final int REFILL_BATCH = 64;
+
+	private static final class ThreadSource {
+		final SecureRandom random = newGenerator();
+		final byte[] buffer = new byte[THREAD_BUFFER_SIZE];
+		int position = THREAD_BUFFER_SIZE;
+
+		void nextBytes(byte[] out, int offset, int len) {
+			while (len > 0) {
+				if (position == buffer.length) {
+					random.nextBytes(buffer);
+					position = 0;
+				}
+				int n = Math.min(len, buffer.length - position);
+				System.arraycopy(buffer, position, out, offset, n);
+				// don't leave used randomness lying around
+				Arrays.fill(buffer, position, position + n, (byte) 0);
+				position = position + n;
+				offset = offset + n;
+				len = len - n;
+			}
+		}
+	}
+
+	private static final ThreadLocal<ThreadSource> SOURCES = new ThreadLocal<ThreadSource>() {
+		protected ThreadSource initialValue() {
+			return new ThreadSource();
+		}
+	};
+
+	private static final class Shared {
+		static final RandomPool POOL = new RandomPool(DEFAULT_CAPACITY);
+	}
+
+	private final ArrayBlockingQueue<BigInteger> elements;
+	private final ArrayBlockingQueue<byte[]> challenges;
+	private final int lowWater;
+	private final Thread refiller;
+	private volatile boolean closed;
+
+	/**
+	 * Start a pool keeping up to capacity field elements and capacity
+	 * challenges ready, with its own refill thread.
+	 */
+	public RandomPool(int capacity) {
+		if (capacity < REFILL_BATCH) {
+			throw new IllegalArgumentException("Capacity must be at least " + REFILL_BATCH);
+		}
+		elements = new ArrayBlockingQueue<BigInteger>(capacity);
+		challenges = new ArrayBlockingQueue<byte[]>(capacity);
+		lowWater = capacity / 2;
+		refiller = new Thread(new Runnable() {
+			public void run() {
+				refill();
+			}
+		}, "anonauth-random");
+		refiller.setDaemon(true);
+		refiller.start();
+	}
+
+	/**
+	 * The pool used by the rest of the library, started on first use.
+	 */
+	public static RandomPool shared() {
+		return Shared.POOL;
+	}
+
+	/**
+	 * Take a uniformly random element of the field as a BigInteger.
+	 */
+	public BigInteger fieldElement() {
+		BigInteger element = elements.poll();
+		if (element == null || elements.size() < lowWater) {
+			LockSupport.unpark(refiller);
+		}
+		return element != null ? element : randomBigInteger();
+	}
+
+	/**
+	 * Take a random CHALLENGE_SIZE-byte challenge.
+	 */
+	public byte[] challenge() {
+		byte[] challenge = challenges.poll();
+		if (challenge == null || challenges.size() < lowWater) {
+			LockSupport.unpark(refiller);
+		}
+		return challenge != null ? challenge : randomBytes(CHALLENGE_SIZE);
+	}
+
+	/**
+	 * Stop the refill thread. Items still queued may be taken, after which
+	 * callers generate their own.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(refiller);
+	}
+
+	private void refill() {
+		byte[] block = new byte[REFILL_BATCH * ELEMENT_SIZE];
+		SecureRandom random = newGenerator();
+		while (!closed) {
+			boolean filled = false;
+			if (elements.remainingCapacity() >= REFILL_BATCH) {
+				random.nextBytes(block);
+				for (int i = 0; i < REFILL_BATCH; i++) {
+					if (belowPrime(block, i * ELEMENT_SIZE)) {
+						elements.offer(toBigInteger(block, i * ELEMENT_SIZE));
+					}
+				}
+				filled = true;
+			}
+			if (challenges.remainingCapacity() >= REFILL_BATCH) {
+				random.nextBytes(block);
+				for (int i = 0; i < REFILL_BATCH; i++) {
+					int offset = i * CHALLENGE_SIZE;
+					challenges.offer(Arrays.copyOfRange(block, offset, offset + CHALLENGE_SIZE));
+				}
+				filled = true;
+			}
+			if (!filled) {
+				// both queues are nearly full; wait for a taker to wake us
+				LockSupport.park(this);
+			}
+		}
+	}
+
+	/**
+	 * Draw a uniformly random field element from this thread's generator,
+	 * bypassing the pool.
+	 */
+	public static BigInteger randomBigInteger() {
+		byte[] bytes = new byte[ELEMENT_SIZE];
+		nextElementBytes(bytes);
+		return toBigInteger(bytes, 0);
+	}
+
+	/**
+	 * Draw a uniformly random field element from this thread's generator
+	 * into out, bypassing the pool and without allocating a BigInteger.
+	 */
+	public static FieldElement randomElement(FieldElement out) {
+		byte[] bytes = new byte[ELEMENT_SIZE];
+		nextElementBytes(bytes);
+		long hi = 0;
+		long lo = 0;
+		for (int i = 1; i < 9; i++) {
+			hi = (hi << 8) | (bytes[i] & 0xff);
+			lo = (lo << 8) | (bytes[i + 8] & 0xff);
+		}
+		return out.setWords(bytes[0], hi, lo);
+	}
+
+	/**
+	 * Fill an array with random bytes from this thread's generator.
+	 */
+	public static void nextBytes(byte[] bytes) {
+		SOURCES.get().nextBytes(bytes, 0, bytes.length);
+	}
+
+	private static byte[] randomBytes(int len) {
+		byte[] bytes = new byte[len];
+		nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Draw ELEMENT_SIZE bytes encoding a value below PRIME, by rejection.
+	 */
+	private static void nextElementBytes(byte[] bytes) {
+		ThreadSource source = SOURCES.get();
+		do {
+			source.nextBytes(bytes, 0, ELEMENT_SIZE);
+			bytes[0] &= 1;
+		} while (!belowPrime(bytes, 0));
+	}
+
+	/**
+	 * Whether the ELEMENT_SIZE bytes at offset, with all but the lowest bit
+	 * of the first ignored, encode a value below PRIME = 2^128 + 51.
+	 */
+	static boolean belowPrime(byte[] bytes, int offset) {
+		if ((bytes[offset] & 1) == 0) {
+			return true;
+		}
+		for (int i = 1; i < ELEMENT_SIZE - 1; i++) {
+			if (bytes[offset + i] != 0) {
+				return false;
+			}
+		}
+		return (bytes[offset + ELEMENT_SIZE - 1] & 0xff) < 51;
+	}
+
+	private static BigInteger toBigInteger(byte[] bytes, int offset) {
+		byte[] magnitude = Arrays.copyOfRange(bytes, offset, offset + ELEMENT_SIZE);
+		magnitude[0] &= 1;
+		return new BigInteger(1, magnitude);
+	}
+
+	/**
+	 * A generator of the strongest non-blocking kind available: the NIST
+	 * DRBG where the platform has one, otherwise the platform default.
+	 * Either way it is seeded from the system's entropy source.
+	 */
+	private static SecureRandom newGenerator() {
+		try {
+			return SecureRandom.getInstance("DRBG");
+		} catch (NoSuchAlgorithmException e) {
+			return new SecureRandom();
+		}
+	}
+}
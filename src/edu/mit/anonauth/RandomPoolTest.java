@@ -0,0 +1,113 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class RandomPoolTest {
+	
+	@Test
+	public void testBelowPrime() {
+		byte[] bytes = new byte[17];
+		assertTrue(RandomPool.belowPrime(bytes, 0));
+		bytes[0] = 1;
+		assertTrue(RandomPool.belowPrime(bytes, 0));
+		bytes[16] = 50;
+		assertTrue(RandomPool.belowPrime(bytes, 0));
+		bytes[16] = 51;
+		assertFalse(RandomPool.belowPrime(bytes, 0));
+		bytes[16] = 0;
+		bytes[1] = 1;
+		assertFalse(RandomPool.belowPrime(bytes, 0));
+		
+		// only the lowest bit of the first byte counts
+		bytes[0] = (byte) 0xfe;
+		assertTrue(RandomPool.belowPrime(bytes, 0));
+	}
+	
+	@Test
+	public void testDraws() {
+		RandomPool pool = new RandomPool(64);
+		try {
+			// draw well past the capacity, so some draws find the pool empty
+			Set<BigInteger> elements = new HashSet<BigInteger>();
+			Set<BigInteger> challenges = new HashSet<BigInteger>();
+			for (int i = 0; i < 1000; i++) {
+				BigInteger element = pool.fieldElement();
+				assertTrue(element.signum() >= 0 && element.compareTo(Polynomial.PRIME) < 0);
+				elements.add(element);
+				
+				byte[] challenge = pool.challenge();
+				assertEquals(RandomPool.CHALLENGE_SIZE, challenge.length);
+				challenges.add(new BigInteger(1, challenge));
+			}
+			assertEquals(1000, elements.size());
+			assertEquals(1000, challenges.size());
+		} finally {
+			pool.close();
+		}
+		
+		// a closed pool still hands out fresh values
+		assertFalse(pool.fieldElement().equals(pool.fieldElement()));
+	}
+	
+	@Test
+	public void testRandomElement() {
+		FieldElement element = new FieldElement();
+		Set<BigInteger> seen = new HashSet<BigInteger>();
+		for (int i = 0; i < 1000; i++) {
+			BigInteger value = RandomPool.randomElement(element).toBigInteger();
+			assertTrue(value.compareTo(Polynomial.PRIME) < 0);
+			seen.add(value);
+		}
+		assertEquals(1000, seen.size());
+		
+		// the high bits are actually used
+		boolean high = false;
+		for (BigInteger value : seen) {
+			high |= value.bitLength() > 120;
+		}
+		assertTrue(high);
+	}
+	
+	@Test
+	public void testConcurrentDraws() throws Exception {
+		final RandomPool pool = new RandomPool(256);
+		int threads = 4;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<List<BigInteger>>> results = new ArrayList<Future<List<BigInteger>>>();
+			for (int t = 0; t < threads; t++) {
+				results.add(executor.submit(new Callable<List<BigInteger>>() {
+					public List<BigInteger> call() {
+						List<BigInteger> drawn = new ArrayList<BigInteger>();
+						for (int i = 0; i < 2000; i++) {
+							drawn.add(pool.fieldElement());
+						}
+						return drawn;
+					}
+				}));
+			}
+			
+			// no element is handed to two threads
+			Set<BigInteger> all = new HashSet<BigInteger>();
+			for (Future<List<BigInteger>> result : results) {
+				all.addAll(result.get());
+			}
+			assertEquals(threads * 2000, all.size());
+		} finally {
+			executor.shutdown();
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,425 @@
+package edu.mit.anonauth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Makes a door's revocations durable without rewriting the whole door.
+ *
+ * The door is kept on disk as a snapshot in the ProtocolCodec format plus an
+ * append-only journal of the revocations made since. Each revocation is a
+ * fixed 12-byte record; concurrent revocations are committed together with a
+ * single fsync. On open, the snapshot is loaded and the journal replayed
+ * through ProtocolDoor.revokeAll(), stopping at the first torn record. Calling
+ * compact() folds the journal into a new snapshot.
+ *
+ * Journal format:
+ *   2 bytes   magic "AJ"
+ *   1 byte    version
+ *
+ *   Each record:
+ *     4 bytes   k, the door's degree after the revocation
+ *     4 bytes   user ID
+ *     4 bytes   CRC-32 of the previous 8 bytes
+ *
+ * All revocations must go through the journal; revoking on the door
+ * directly would not be recorded.
+ *
+ * The snapshot holds the door's polynomials in the clear. Both files are
+ * created owner-only where the file system allows (see SecretFiles);
+ * otherwise keep them in a directory no one else can read.
+ */
+public class RevocationJournal implements Closeable {
+
+	private static final short MAGIC = 0x414a;	// "AJ"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 3;
+	private static final int RECORD_SIZE = 12;
+
+	private static final Logger log = Logger.getLogger(RevocationJournal.class.getName());
+
+	private final ProtocolDoor door;
+	private final Path snapshotPath;
+	private final FileChannel journal;
+
+	/**
+	 * Records appended but not yet written, guarded by this. Swapped with
+	 * writing by the committing thread.
+	 */
+	private ByteBuffer pending = ByteBuffer.allocate(64 * RECORD_SIZE);
+	private ByteBuffer writing = ByteBuffer.allocate(64 * RECORD_SIZE);
+
+	/**
+	 * Sequence numbers of the last appended and the last durable record,
+	 * guarded by this. These count records across the journal's lifetime,
+	 * not door degrees.
+	 */
+	private long appended;
+	private long durable;
+	private boolean committing;
+
+	/**
+	 * Set when a commit fails. The journal can no longer guarantee that its
+	 * records are contiguous, so it refuses further revocations.
+	 */
+	private IOException failure;
+
+	private final CRC32 crc = new CRC32();
+
+	private RevocationJournal(ProtocolDoor door, Path snapshotPath, FileChannel journal) {
+		this.door = door;
+		this.snapshotPath = snapshotPath;
+		this.journal = journal;
+	}
+
+	/**
+	 * Start journaling a new door, writing its initial snapshot and an empty
+	 * journal. Existing files are replaced.
+	 */
+	public static RevocationJournal create(ProtocolDoor door, Path snapshot, Path journal) throws IOException {
+		writeSnapshot(door, snapshot);
+		FileChannel channel = SecretFiles.open(journal, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		writeHeader(channel);
+		return new RevocationJournal(door, snapshot, channel);
+	}
+
+	/**
+	 * Recover a door from its snapshot and journal. A torn or corrupt record
+	 * at the end of the journal, left by a crash during a write, is
+	 * discarded along with anything after it.
+	 */
+	public static RevocationJournal open(Path snapshot, Path journal) throws IOException {
+		ProtocolDoor door = ProtocolCodec.readDoor(ByteBuffer.wrap(Files.readAllBytes(snapshot)));
+
+		FileChannel channel = SecretFiles.open(journal, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			long end = replay(door, channel);
+			channel.truncate(end);
+			channel.position(end);
+			if (end == 0) {
+				writeHeader(channel);
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new RevocationJournal(door, snapshot, channel);
+	}
+
+	/**
+	 * Apply the journal's valid records to the door.
+	 * @return the length of the valid prefix of the journal
+	 */
+	private static long replay(ProtocolDoor door, FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, 0);
+		header.flip();
+		if (header.remaining() < HEADER_SIZE) {
+			return 0;
+		}
+		if (header.getShort() != MAGIC || (header.get() & 0xff) != VERSION) {
+			throw new IOException("Not a revocation journal, or unsupported version");
+		}
+
+		// collect the revocations the snapshot is missing and apply them in
+		// one step, so the door's public points are only rebuilt once
+		List<Integer> users = new ArrayList<Integer>();
+		int current = door.currentEpoch().polyDegree;
+
+		CRC32 crc = new CRC32();
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		long position = HEADER_SIZE;
+		while (true) {
+			record.clear();
+			readFully(channel, record, position);
+			record.flip();
+			if (record.remaining() < RECORD_SIZE) {
+				break;
+			}
+
+			crc.reset();
+			crc.update(record.array(), 0, 8);
+			int degree = record.getInt();
+			int user = record.getInt();
+			if ((int) crc.getValue() != record.getInt()) {
+				break;
+			}
+
+			if (degree == current + 1) {
+				users.add(user);
+				current++;
+			} else if (degree > current + 1) {
+				// a gap means the records after it cannot be trusted
+				break;
+			}
+			// otherwise the snapshot already includes this revocation
+
+			position = position + RECORD_SIZE;
+		}
+
+		door.revokeAll(users);
+		return position;
+	}
+
+	public ProtocolDoor door() {
+		return door;
+	}
+
+	/**
+	 * Revoke a user, returning once the revocation is durable. Revocations
+	 * made concurrently from several threads share one fsync.
+	 */
+	public void revoke(int user) throws IOException {
+		long sequence;
+		synchronized (this) {
+			if (!journal.isOpen()) {
+				throw new IOException("Journal is closed");
+			}
+			checkFailure();
+			int degree = door.currentEpoch().polyDegree;
+			door.revoke(user);
+			if (door.currentEpoch().polyDegree == degree) {
+				// already revoked; replay skips repeats, so nothing to record
+				return;
+			}
+			append(degree + 1, user);
+			sequence = appended;
+		}
+		awaitDurable(sequence);
+	}
+
+	/**
+	 * Revoke several users with ProtocolDoor.revokeAll(), returning once the
+	 * revocations are durable.
+	 * @return the number of users newly revoked
+	 */
+	public int revokeAll(Collection<Integer> users) throws IOException {
+		long sequence;
+		int added;
+		synchronized (this) {
+			if (!journal.isOpen()) {
+				throw new IOException("Journal is closed");
+			}
+			checkFailure();
+			int degree = door.currentEpoch().polyDegree;
+			added = door.revokeAll(users);
+
+			// the new IDs are at the end of the blacklist, in order
+			List<BigInteger> blacklist = door.currentEpoch().blacklist;
+			for (int i = 0; i < added; i++) {
+				append(degree + i + 1, blacklist.get(blacklist.size() - added + i).intValue());
+			}
+			sequence = appended;
+		}
+		awaitDurable(sequence);
+		return added;
+	}
+
+	private void append(int degree, int user) {
+		if (pending.remaining() < RECORD_SIZE) {
+			ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+
+		int start = pending.position();
+		pending.putInt(degree);
+		pending.putInt(user);
+		crc.reset();
+		crc.update(pending.array(), start, 8);
+		pending.putInt((int) crc.getValue());
+		appended++;
+	}
+
+	/**
+	 * Wait until the given record has been forced to disk. Whichever waiting
+	 * thread finds no commit in progress writes out every pending record
+	 * and forces the file; the others wait for it.
+	 */
+	private void awaitDurable(long sequence) throws IOException {
+		while (true) {
+			ByteBuffer batch;
+			long batchEnd;
+			synchronized (this) {
+				while (durable < sequence && committing) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while waiting for commit", e);
+					}
+				}
+				if (durable >= sequence) {
+					return;
+				}
+				checkFailure();
+
+				committing = true;
+				batch = pending;
+				pending = writing;
+				pending.clear();
+				writing = batch;
+				batchEnd = appended;
+			}
+
+			IOException error = null;
+			try {
+				batch.flip();
+				while (batch.hasRemaining()) {
+					journal.write(batch);
+				}
+				journal.force(false);
+			} catch (IOException e) {
+				error = e;
+			} finally {
+				synchronized (this) {
+					committing = false;
+					if (error == null) {
+						durable = batchEnd;
+					} else {
+						failure = error;
+					}
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a new snapshot of the door and empty the journal. Revocations
+	 * wait while the snapshot is written.
+	 */
+	public synchronized void compact() throws IOException {
+		// make sure no records are buffered that the truncation would lose
+		awaitDurableLocked();
+
+		writeSnapshot(door, snapshotPath);
+		journal.truncate(HEADER_SIZE);
+		journal.position(HEADER_SIZE);
+		journal.force(true);
+	}
+
+	private void awaitDurableLocked() throws IOException {
+		long sequence = appended;
+		while (committing) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for commit", e);
+			}
+		}
+		checkFailure();
+		if (durable < sequence) {
+			pending.flip();
+			while (pending.hasRemaining()) {
+				journal.write(pending);
+			}
+			pending.clear();
+			journal.force(false);
+			durable = sequence;
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("An earlier journal write failed", failure);
+		}
+	}
+
+	/**
+	 * Compact the journal periodically on the given executor.
+	 * @return the scheduled task, which can be cancelled
+	 */
+	public ScheduledFuture<?> scheduleCompaction(ScheduledExecutorService executor, long period, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				// keep journaling and compacting; the next attempt may succeed
+				try {
+					compact();
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Compaction failed", e);
+				} catch (RuntimeException e) {
+					log.log(Level.WARNING, "Compaction failed", e);
+				}
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Size of the journal file in bytes.
+	 */
+	public long journalSize() throws IOException {
+		return journal.size();
+	}
+
+	public synchronized void close() throws IOException {
+		if (journal.isOpen()) {
+			awaitDurableLocked();
+			journal.close();
+		}
+	}
+
+	private static void writeSnapshot(ProtocolDoor door, Path snapshot) throws IOException {
+		Path temp = SecretFiles.createTemp(snapshot);
+		boolean moved = false;
+		try {
+			FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+			try {
+				ByteBuffer encoded = ProtocolCodec.encodeDoor(door);
+				while (encoded.hasRemaining()) {
+					channel.write(encoded);
+				}
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+			Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		} finally {
+			if (!moved) {
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+
+	private static void writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putShort(MAGIC);
+		header.put((byte) VERSION);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		channel.force(true);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				return;
+			}
+			position = position + n;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RevocationJournalTest {
+	
+	private Path dir;
+	private Path snapshot;
+	private Path journal;
+	
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("anonauth");
+		snapshot = dir.resolve("door.snapshot");
+		journal = dir.resolve("door.journal");
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		for (Path p : Files.newDirectoryStream(dir)) {
+			Files.delete(p);
+		}
+		Files.delete(dir);
+	}
+	
+	@Test
+	public void testRecovery() throws IOException {
+		int r = 10;
+		ProtocolDoor door = new ProtocolDoor(r);
+		ProtocolCard cardA = new ProtocolCard(door.privatePoints(5001));
+		ProtocolCard cardB = new ProtocolCard(door.privatePoints(5002));
+		
+		RevocationJournal j1 = RevocationJournal.create(door, snapshot, journal);
+		long snapshotSize = Files.size(snapshot);
+		j1.revoke(5002);
+		j1.revoke(5003);
+		j1.close();
+		
+		// the revocations only cost journal records
+		assertEquals(snapshotSize, Files.size(snapshot));
+		assertEquals(3 + 2 * 12, Files.size(journal));
+		
+		RevocationJournal j2 = RevocationJournal.open(snapshot, journal);
+		ProtocolDoor recovered = j2.door();
+		assertArrayEquals(door.getBroadcast(), recovered.getBroadcast());
+		assertTrue(exchange(recovered, cardA));
+		assertFalse(exchange(recovered, cardB));
+		j2.close();
+	}
+	
+	@Test
+	public void testTornRecord() throws IOException {
+		ProtocolDoor door = new ProtocolDoor(10);
+		RevocationJournal j1 = RevocationJournal.create(door, snapshot, journal);
+		j1.revoke(5001);
+		j1.revoke(5002);
+		j1.close();
+		
+		// simulate a crash halfway through writing a third record
+		FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 3, 0, 0 }));
+		channel.close();
+		
+		RevocationJournal j2 = RevocationJournal.open(snapshot, journal);
+		assertEquals(2, j2.door().currentEpoch().polyDegree);
+		assertEquals(3 + 2 * 12, Files.size(journal));
+		j2.revoke(5003);
+		j2.close();
+		
+		RevocationJournal j3 = RevocationJournal.open(snapshot, journal);
+		assertEquals(3, j3.door().currentEpoch().polyDegree);
+		j3.close();
+	}
+	
+	@Test
+	public void testRevokeTwice() throws IOException {
+		ProtocolDoor door = new ProtocolDoor(10);
+		RevocationJournal j1 = RevocationJournal.create(door, snapshot, journal);
+		j1.revoke(5001);
+		j1.revoke(5001);
+		j1.close();
+		assertEquals(1, door.currentEpoch().polyDegree);
+		assertEquals(3 + 12, Files.size(journal));
+		
+		RevocationJournal j2 = RevocationJournal.open(snapshot, journal);
+		assertEquals(1, j2.door().currentEpoch().polyDegree);
+		j2.revoke(5009);
+		j2.close();
+		
+		// the revocation after the repeat must survive another recovery
+		RevocationJournal j3 = RevocationJournal.open(snapshot, journal);
+		assertEquals(Arrays.asList(BigInteger.valueOf(5001), BigInteger.valueOf(5009)),
+				j3.door().currentEpoch().blacklist);
+		j3.close();
+	}
+	
+	@Test
+	public void testOwnerOnly() throws IOException {
+		Assume.assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+		RevocationJournal j1 = RevocationJournal.create(new ProtocolDoor(5), snapshot, journal);
+		j1.revoke(5001);
+		j1.compact();
+		j1.close();
+		
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(snapshot)));
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(journal)));
+		
+		// no temporary files are left behind
+		int files = 0;
+		for (Path p : Files.newDirectoryStream(dir)) {
+			files++;
+		}
+		assertEquals(2, files);
+	}
+	
+	@Test
+	public void testRevokeAll() throws IOException {
+		ProtocolDoor door = new ProtocolDoor(10);
+		ProtocolCard card = new ProtocolCard(door.privatePoints(5000));
+		RevocationJournal j1 = RevocationJournal.create(door, snapshot, journal);
+		j1.revoke(5001);
+		assertEquals(3, j1.revokeAll(Arrays.asList(5002, 5003, 5001, 5004)));
+		j1.close();
+		assertEquals(3 + 4 * 12, Files.size(journal));
+		
+		RevocationJournal j2 = RevocationJournal.open(snapshot, journal);
+		assertEquals(4, j2.door().currentEpoch().polyDegree);
+		assertArrayEquals(door.getBroadcast(), j2.door().getBroadcast());
+		assertTrue(exchange(j2.door(), card));
+		j2.close();
+	}
+	
+	@Test
+	public void testCompaction() throws IOException {
+		ProtocolDoor door = new ProtocolDoor(10);
+		RevocationJournal j1 = RevocationJournal.create(door, snapshot, journal);
+		j1.revoke(5001);
+		j1.revoke(5002);
+		j1.compact();
+		assertEquals(3, j1.journalSize());
+		j1.revoke(5003);
+		j1.close();
+		
+		RevocationJournal j2 = RevocationJournal.open(snapshot, journal);
+		assertArrayEquals(door.getBroadcast(), j2.door().getBroadcast());
+		j2.close();
+	}
+	
+	@Test
+	public void testCompactionFailure() throws Exception {
+		final AtomicBoolean broken = new AtomicBoolean();
+		final CountDownLatch attempts = new CountDownLatch(3);
+		ProtocolDoor door = new ProtocolDoor(10) {
+			private static final long serialVersionUID = 1L;
+			
+			Epoch currentEpoch() {
+				if (broken.get()) {
+					attempts.countDown();
+					throw new IllegalStateException("Broken door");
+				}
+				return super.currentEpoch();
+			}
+		};
+		RevocationJournal j1 = RevocationJournal.create(door, snapshot, journal);
+		broken.set(true);
+		
+		// a failed compaction must not cancel the ones after it
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		ScheduledFuture<?> task = j1.scheduleCompaction(executor, 1, TimeUnit.MILLISECONDS);
+		assertTrue(attempts.await(10, TimeUnit.SECONDS));
+		assertFalse(task.isDone());
+		task.cancel(false);
+		executor.shutdown();
+		j1.close();
+	}
+	
+	@Test
+	public void testConcurrentRevocations() throws Exception {
+		int r = 40;
+		ProtocolDoor door = new ProtocolDoor(SecretStore.fromSeed(r, SecretStore.randomSeed()));
+		final RevocationJournal j1 = RevocationJournal.create(door, snapshot, journal);
+		
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int i = 1; i <= r; i++) {
+			final int user = 5000 + i;
+			results.add(pool.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					j1.revoke(user);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> result : results) {
+			result.get();
+		}
+		pool.shutdown();
+		j1.close();
+		
+		RevocationJournal j2 = RevocationJournal.open(snapshot, journal);
+		assertEquals(r, j2.door().currentEpoch().polyDegree);
+		assertArrayEquals(door.getBroadcast(), j2.door().getBroadcast());
+		j2.close();
+	}
+	
+	private boolean exchange(ProtocolDoor door, ProtocolCard card) {
+		try {
+			return door.checkResponse(card.authenticate(door.getBroadcast()));
+		} catch (ArithmeticException e) {
+			return false;
+		}
+	}
+}
@@ -1,9 +1,14 @@
 package edu.mit.anonauth;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.crypto.Mac;
@@ -16,19 +21,61 @@ public abstract class SecretBox implements Serializable {
 	protected static String HASH_DIGEST = "SHA-256";
 	protected static String HMAC_DIGEST = "HmacSHA256";
 	
+	/**
+	 * Length in bytes of the HMAC output.
+	 */
+	public static final int HMAC_LENGTH = 32;
+	
+	/**
+	 * The encoded secret, its hash and the HMAC key built from it, derived
+	 * on first use. A SecretBox's polynomial never changes, so these are
+	 * never invalidated; they are rebuilt after deserialization.
+	 */
+	private transient volatile byte[] secretBytes;
+	private transient volatile byte[] secretHash;
+	private transient volatile SecretKeySpec signingKey;
+	
 	protected static class CoefficientSecretBox extends SecretBox {
 		
 		private static final long serialVersionUID = 1L;
 		
 		protected List<BigInteger> coefficients;
 		
+		/**
+		 * The coefficients as field elements, rebuilt after deserialization.
+		 */
+		private transient FieldElement[] elements;
+		
 		public CoefficientSecretBox(List<BigInteger> coefficients) {
 			this.coefficients = coefficients;
+			this.elements = Polynomial.toElements(coefficients);
+		}
+		
+		CoefficientSecretBox(FieldElement[] elements) {
+			this.elements = elements;
+			this.coefficients = new ArrayList<BigInteger>(elements.length);
+			for (FieldElement e : elements) {
+				coefficients.add(e.toBigInteger());
+			}
+		}
+		
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			elements = Polynomial.toElements(coefficients);
 		}
 		
 		public Point sample(BigInteger x) {
-			BigInteger y = Polynomial.samplePolynomial(coefficients, x);
-			return new Point(x, y);
+			FieldElement y = new FieldElement();
+			sample(new FieldElement(x), y);
+			return new Point(x, y.toBigInteger());
+		}
+		
+		void sample(FieldElement x, FieldElement y) {
+			Polynomial.samplePolynomial(elements, x, y);
+		}
+		
+		void sample(FieldElement[] xs, FieldElement[] ys) {
+			Polynomial.samplePolynomial(elements, xs, ys);
 		}
 		
 		public List<BigInteger> getCoefficients() {
@@ -42,13 +89,45 @@ public abstract class SecretBox implements Serializable {
 		
 		protected List<Point> points;
 		
+		/**
+		 * The y-coordinates of the points as field elements, and the weights
+		 * for their x-coordinates; rebuilt after deserialization.
+		 */
+		private transient FieldElement[] ys;
+		private transient Interpolator interpolator;
+		
 		public PointSecretBox(List<Point> points) {
 			this.points = points;
+			loadElements();
+		}
+		
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			loadElements();
+		}
+		
+		private void loadElements() {
+			FieldElement[] xs = new FieldElement[points.size()];
+			ys = new FieldElement[points.size()];
+			for (int i = 0; i < xs.length; i++) {
+				xs[i] = new FieldElement(points.get(i).x);
+				ys[i] = new FieldElement(points.get(i).y);
+			}
+			interpolator = new Interpolator(xs);
 		}
 		
 		public Point sample(BigInteger x) {
-			BigInteger y = Polynomial.interpolate(x, points);
-			return new Point(x, y);
+			FieldElement y = new FieldElement();
+			sample(new FieldElement(x), y);
+			return new Point(x, y.toBigInteger());
+		}
+		
+		void sample(FieldElement x, FieldElement y) {
+			interpolator.interpolate(x, ys, y);
+		}
+		
+		void secret(FieldElement y) {
+			interpolator.interpolateAtZero(ys, y);
 		}
 		
 		public List<BigInteger> getCoefficients() {
@@ -83,12 +162,97 @@ public abstract class SecretBox implements Serializable {
 	 */
 	abstract Point sample(BigInteger x);
 	
+	/**
+	 * Sample the polynomial using field arithmetic, without going through
+	 * BigInteger. Subclasses backed by field elements override this; the
+	 * default converts to and from sample(BigInteger).
+	 * @param x the x-coefficient at which to sample
+	 * @param y the element which receives the sampled value
+	 */
+	void sample(FieldElement x, FieldElement y) {
+		y.set(sample(x.toBigInteger()).y);
+	}
+	
+	/**
+	 * Sample the polynomial at each of the given x-coordinates, storing the
+	 * results in the corresponding elements of ys.
+	 */
+	void sample(FieldElement[] xs, FieldElement[] ys) {
+		for (int i = 0; i < xs.length; i++) {
+			sample(xs[i], ys[i]);
+		}
+	}
+	
+	/**
+	 * Sample several points from the polynomial at once.
+	 * @param xs the x-coefficients at which to sample
+	 * @return the sampled Points, in the same order as xs
+	 */
+	public List<Point> sample(List<BigInteger> xs) {
+		FieldElement[] xElements = Polynomial.toElements(xs);
+		FieldElement[] yElements = new FieldElement[xElements.length];
+		for (int i = 0; i < yElements.length; i++) {
+			yElements[i] = new FieldElement();
+		}
+		sample(xElements, yElements);
+		
+		List<Point> points = new ArrayList<Point>(xs.size());
+		for (int i = 0; i < yElements.length; i++) {
+			points.add(new Point(xs.get(i), yElements[i].toBigInteger()));
+		}
+		return points;
+	}
+	
+	/**
+	 * Sample every SecretBox in a list at the same x-coordinate, e.g. to
+	 * issue a user's private points.
+	 * @param boxes the SecretBoxes to sample
+	 * @param x the x-coefficient at which to sample
+	 * @return one Point per SecretBox, in the same order as boxes
+	 */
+	public static List<Point> sampleAll(List<SecretBox> boxes, BigInteger x) {
+		FieldElement xElement = new FieldElement(x);
+		FieldElement y = new FieldElement();
+		
+		List<Point> points = new ArrayList<Point>(boxes.size());
+		for (SecretBox box : boxes) {
+			box.sample(xElement, y);
+			points.add(new Point(x, y.toBigInteger()));
+		}
+		return points;
+	}
+	
 	/**
 	 * Get the SecretBox's secret.
 	 * @return
 	 */
 	public BigInteger secret() {
-		return sample(BigInteger.ZERO).y;
+		FieldElement y = new FieldElement();
+		secret(y);
+		return y.toBigInteger();
+	}
+	
+	/**
+	 * Store the SecretBox's secret, the polynomial's value at zero, in y.
+	 */
+	void secret(FieldElement y) {
+		sample(new FieldElement(), y);
+	}
+	
+	/**
+	 * Get the secret encoded as by BigInteger.toByteArray(), which is what
+	 * the hash and the HMAC key are computed over. Derived once and cached;
+	 * callers must not modify the returned array.
+	 */
+	byte[] secretBytes() {
+		byte[] bytes = secretBytes;
+		if (bytes == null) {
+			FieldElement y = new FieldElement();
+			secret(y);
+			bytes = y.toByteArray();
+			secretBytes = bytes;
+		}
+		return bytes;
 	}
 	
 	/**
@@ -96,14 +260,24 @@ public abstract class SecretBox implements Serializable {
 	 * @return
 	 */
 	public byte[] secretHash() {
-		MessageDigest md;
-		try {
-			md = MessageDigest.getInstance(HASH_DIGEST);
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			throw new RuntimeException("???");
+		return secretHashBytes().clone();
+	}
+	
+	/**
+	 * Get the cached hash of the secret; callers must not modify the
+	 * returned array.
+	 */
+	byte[] secretHashBytes() {
+		byte[] hash = secretHash;
+		if (hash == null) {
+			byte[] bytes = secretBytes();
+			Metrics metrics = Metrics.installed();
+			long start = metrics.start();
+			hash = DIGESTS.get().digest(bytes);
+			secretHash = hash;
+			metrics.stop(Metrics.Phase.HASH, start);
 		}
-		return md.digest(secret().toByteArray()); 
+		return hash;
 	}
 	
 	/**
@@ -112,18 +286,144 @@ public abstract class SecretBox implements Serializable {
 	 * @return
 	 */
 	public byte[] hmac(BigInteger challenge) {
-		// http://docs.aws.amazon.com/AWSSimpleQueueService/latest/SQSDeveloperGuide/AuthJavaSampleHMACSignature.html
+		byte[] out = new byte[HMAC_LENGTH];
+		hmac(challenge.toByteArray(), out, 0);
+		return out;
+	}
+	
+	/**
+	 * Calculate an HMAC using the secret and a given challenge, writing the
+	 * HMAC_LENGTH bytes of output into out at the given offset. Uses this
+	 * thread's Mac instance and allocates nothing once the key is cached.
+	 * @param challenge the challenge, encoded as by BigInteger.toByteArray()
+	 * @param out array to write the HMAC into
+	 * @param off index in out at which to place the HMAC
+	 */
+	public void hmac(byte[] challenge, byte[] out, int off) {
+		Metrics metrics = Metrics.installed();
+		long start = metrics.start();
+		KeyedMac keyed = keyedMac();
+		try {
+			keyed.mac.update(challenge);
+			keyed.mac.doFinal(out, off);
+			metrics.stop(Metrics.Phase.HMAC, start);
+		} catch (GeneralSecurityException e) {
+			keyed.key = null;
+			throw new IllegalStateException("Unable to compute " + HMAC_DIGEST, e);
+		}
+	}
+	
+	/**
+	 * Calculate an HMAC using the secret and a challenge read from a buffer,
+	 * putting the HMAC_LENGTH bytes of output into out. The challenge is
+	 * every remaining byte of the buffer, read as an unsigned big-endian
+	 * integer, e.g. the fixed-width field of a broadcast; the result is the
+	 * same as hmac(BigInteger) on that integer. Both buffers' positions are
+	 * advanced.
+	 */
+	public void hmac(ByteBuffer challenge, ByteBuffer out) {
+		if (out.remaining() < HMAC_LENGTH) {
+			throw new IllegalArgumentException("Output buffer has less than " + HMAC_LENGTH + " bytes remaining");
+		}
+		
+		Metrics metrics = Metrics.installed();
+		long start = metrics.start();
+		KeyedMac keyed = keyedMac();
 		try {
-			SecretKeySpec signingKey = new SecretKeySpec(secret().toByteArray(), HMAC_DIGEST);
-			Mac mac = Mac.getInstance(HMAC_DIGEST);
-			mac.init(signingKey);
-			return mac.doFinal(challenge.toByteArray());
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new RuntimeException("???");
+			// match BigInteger.toByteArray(): no leading zeroes, except a
+			// single one for zero itself or to keep the sign bit clear
+			while (challenge.remaining() > 1 && challenge.get(challenge.position()) == 0) {
+				challenge.get();
+			}
+			if (!challenge.hasRemaining() || (challenge.get(challenge.position()) & 0x80) != 0) {
+				keyed.mac.update((byte) 0);
+			}
+			keyed.mac.update(challenge);
+			
+			if (out.hasArray()) {
+				keyed.mac.doFinal(out.array(), out.arrayOffset() + out.position());
+				out.position(out.position() + HMAC_LENGTH);
+			} else {
+				keyed.mac.doFinal(keyed.output, 0);
+				out.put(keyed.output);
+			}
+			metrics.stop(Metrics.Phase.HMAC, start);
+		} catch (GeneralSecurityException e) {
+			keyed.key = null;
+			throw new IllegalStateException("Unable to compute " + HMAC_DIGEST, e);
 		}
 	}
 	
+	/**
+	 * Get this thread's Mac, initialized with this SecretBox's key.
+	 */
+	private KeyedMac keyedMac() {
+		// http://docs.aws.amazon.com/AWSSimpleQueueService/latest/SQSDeveloperGuide/AuthJavaSampleHMACSignature.html
+		SecretKeySpec key = signingKey;
+		if (key == null) {
+			key = new SecretKeySpec(secretBytes(), HMAC_DIGEST);
+			signingKey = key;
+		}
+		
+		KeyedMac keyed = MACS.get();
+		if (keyed.key != key) {
+			try {
+				keyed.mac.init(key);
+			} catch (GeneralSecurityException e) {
+				keyed.key = null;
+				throw new IllegalStateException("Unable to compute " + HMAC_DIGEST, e);
+			}
+			keyed.key = key;
+		}
+		return keyed;
+	}
+	
+	/**
+	 * A thread's Mac instance, together with the key it was last initialized
+	 * with, so that repeated HMACs under the same secret skip Mac.init().
+	 */
+	private static class KeyedMac {
+		final Mac mac;
+		SecretKeySpec key;
+		
+		/**
+		 * Scratch space for output bound for a buffer with no array.
+		 */
+		final byte[] output = new byte[HMAC_LENGTH];
+		
+		KeyedMac(Mac mac) {
+			this.mac = mac;
+		}
+	}
+	
+	private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(HASH_DIGEST);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(HASH_DIGEST + " is not available", e);
+			}
+		}
+	};
+	
+	private static final ThreadLocal<KeyedMac> MACS = new ThreadLocal<KeyedMac>() {
+		protected KeyedMac initialValue() {
+			try {
+				return new KeyedMac(Mac.getInstance(HMAC_DIGEST));
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(HMAC_DIGEST + " is not available", e);
+			}
+		}
+	};
+	
+	/**
+	 * Create a SecretBox from field-element coefficients, constant term first.
+	 * The array is used directly and must not be modified afterwards.
+	 */
+	static SecretBox fromElements(FieldElement[] coefficients) {
+		return new CoefficientSecretBox(coefficients);
+	}
+	
 	// hacks to enable hard-coding of SecretBoxes
 	abstract List<BigInteger> getCoefficients();
 	public static SecretBox fromCoefficients(List<BigInteger> coefficients) {
@@ -44,6 +44,38 @@ public class SecretBoxTest extends SecretBox {
 		assertTrue(Arrays.equals(a.hmac(c), b.hmac(c)));
 	}
 	
+	@Test
+	public void testBatchSample() {
+		SecretBox a = randomSecretBox(8);
+		List<BigInteger> xs = new ArrayList<BigInteger>();
+		for (int i = 1; i <= 20; i++) {
+			xs.add(BigInteger.valueOf(i * 1000));
+		}
+		
+		List<Point> batch = a.sample(xs);
+		assertEquals(xs.size(), batch.size());
+		for (int i = 0; i < xs.size(); i++) {
+			Point p = a.sample(xs.get(i));
+			assertEquals(p.x, batch.get(i).x);
+			assertEquals(p.y, batch.get(i).y);
+		}
+	}
+	
+	@Test
+	public void testSampleAll() {
+		BigInteger x = BigInteger.valueOf(5001);
+		List<SecretBox> boxes = new ArrayList<SecretBox>();
+		for (int k = 1; k <= 6; k++) {
+			boxes.add(randomSecretBox(k));
+		}
+		
+		List<Point> points = sampleAll(boxes, x);
+		assertEquals(boxes.size(), points.size());
+		for (int i = 0; i < boxes.size(); i++) {
+			assertEquals(boxes.get(i).sample(x).y, points.get(i).y);
+		}
+	}
+	
 	@Test
 	public void testSecretHashLength() {
 		SecretBox b = randomSecretBox(5);
@@ -56,6 +88,29 @@ public class SecretBoxTest extends SecretBox {
 		assertEquals(32, b.hmac(BigInteger.ZERO).length);
 	}
 	
+	@Test
+	public void testHmacIntoBuffer() {
+		SecretBox a = randomSecretBox(5);
+		SecretBox b = randomSecretBox(5);
+		BigInteger c = BigInteger.valueOf(123456789);
+		
+		byte[] out = new byte[3 + 2 * HMAC_LENGTH];
+		a.hmac(c.toByteArray(), out, 3);
+		b.hmac(c.toByteArray(), out, 3 + HMAC_LENGTH);
+		a.hmac(c.toByteArray(), out, 3);
+		
+		assertArrayEquals(a.hmac(c), Arrays.copyOfRange(out, 3, 3 + HMAC_LENGTH));
+		assertArrayEquals(b.hmac(c), Arrays.copyOfRange(out, 3 + HMAC_LENGTH, out.length));
+	}
+	
+	@Test
+	public void testSecretHashIsCopied() {
+		SecretBox b = randomSecretBox(5);
+		byte[] hash = b.secretHash();
+		hash[0]++;
+		assertFalse(Arrays.equals(hash, b.secretHash()));
+	}
+	
 	@Test
 	public void testSerialization() throws IOException, ClassNotFoundException {
 		SecretBox b1 = randomSecretBox(5);
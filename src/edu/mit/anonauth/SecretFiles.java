@@ -0,0 +1,53 @@
+package edu.mit.anonauth;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Creates the files which hold a door's secrets, such as snapshots and
+ * mapped stores. Every coefficient is written in the clear, so where the
+ * file system has POSIX permissions the files are created readable and
+ * writable by their owner only (rw-------), whatever the umask. Elsewhere
+ * they get the file system's defaults, and must be kept in a directory only
+ * the door's owner can read.
+ */
+final class SecretFiles {
+
+	private SecretFiles() { }
+
+	/**
+	 * Create a new, empty file next to target, to be written and then moved
+	 * over it. The name is random and the file is created exclusively, so a
+	 * link planted in the directory is never followed.
+	 */
+	static Path createTemp(Path target) throws IOException {
+		Path dir = target.toAbsolutePath().getParent();
+		return Files.createTempFile(dir, target.getFileName() + ".", ".tmp", attributes(dir));
+	}
+
+	/**
+	 * Open a file as FileChannel.open() does, creating it owner-only if
+	 * CREATE is among the options and it does not exist.
+	 */
+	static FileChannel open(Path path, OpenOption... options) throws IOException {
+		Set<OpenOption> set = new HashSet<OpenOption>(Arrays.asList(options));
+		return FileChannel.open(path, set, attributes(path.toAbsolutePath().getParent()));
+	}
+
+	private static FileAttribute<?>[] attributes(Path dir) {
+		if (!dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			return new FileAttribute<?>[0];
+		}
+		Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rw-------");
+		return new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(ownerOnly) };
+	}
+}
@@ -0,0 +1,348 @@
+package edu.mit.anonauth;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The sequence of secret polynomials behind a door: one SecretBox for each
+ * degree from 0 to r.
+ */
+public abstract class SecretStore implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Length in bytes of the seeds generated by randomSeed().
+	 */
+	public static final int SEED_LENGTH = 32;
+
+	/**
+	 * Default number of materialized polynomials a seeded store keeps.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 4;
+
+	/**
+	 * Every polynomial is generated up front from SecureRandom and held in
+	 * memory, which takes O(r^2) space.
+	 */
+	protected static class ListSecretStore extends SecretStore {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final List<SecretBox> secrets;
+
+		public ListSecretStore(List<SecretBox> secrets) {
+			this.secrets = secrets;
+		}
+
+		public int maxPolyDegree() {
+			return secrets.size() - 1;
+		}
+
+		public SecretBox get(int degree) {
+			return secrets.get(degree);
+		}
+
+		public List<Point> sampleAll(BigInteger x) {
+			return SecretBox.sampleAll(secrets, x);
+		}
+
+		public List<List<Point>> sampleAll(List<BigInteger> xs) {
+			FieldElement[] xElements = Polynomial.toElements(xs);
+			FieldElement[] ys = newElements(xs.size());
+			List<List<Point>> points = newPointLists(xs.size(), maxPolyDegree() + 1);
+			for (SecretBox box : secrets) {
+				box.sample(xElements, ys);
+				addPoints(points, xs, ys);
+			}
+			return points;
+		}
+	}
+
+	/**
+	 * Every coefficient is derived on demand from a master seed, as
+	 * HMAC-SHA256(seed, degree || index) reduced mod PRIME. Only the most
+	 * recently used polynomials are kept, so memory use and serialized size
+	 * do not depend on r.
+	 */
+	protected static class SeededSecretStore extends SecretStore {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int maxPolyDegree;
+		private final byte[] seed;
+		private final int cacheSize;
+
+		private transient Map<Integer, SecretBox> cache;
+		private transient ThreadLocal<Mac> macs;
+
+		public SeededSecretStore(int maxPolyDegree, byte[] seed, int cacheSize) {
+			if (cacheSize < 1) {
+				throw new IllegalArgumentException("Cache size must be positive");
+			}
+			this.maxPolyDegree = maxPolyDegree;
+			this.seed = seed.clone();
+			this.cacheSize = cacheSize;
+			init();
+		}
+
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			init();
+		}
+
+		private void init() {
+			cache = new LinkedHashMap<Integer, SecretBox>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(Map.Entry<Integer, SecretBox> eldest) {
+					return size() > cacheSize;
+				}
+			};
+			final SecretKeySpec key = new SecretKeySpec(seed, SecretBox.HMAC_DIGEST);
+			macs = new ThreadLocal<Mac>() {
+				protected Mac initialValue() {
+					try {
+						Mac mac = Mac.getInstance(SecretBox.HMAC_DIGEST);
+						mac.init(key);
+						return mac;
+					} catch (GeneralSecurityException e) {
+						throw new IllegalStateException("Unable to key " + SecretBox.HMAC_DIGEST, e);
+					}
+				}
+			};
+		}
+
+		public int maxPolyDegree() {
+			return maxPolyDegree;
+		}
+
+		byte[] seed() {
+			return seed.clone();
+		}
+
+		int cacheSize() {
+			return cacheSize;
+		}
+
+		public SecretBox get(int degree) {
+			checkDegree(degree);
+			synchronized (cache) {
+				SecretBox box = cache.get(degree);
+				if (box != null) {
+					return box;
+				}
+			}
+
+			// derive outside the lock; two threads may race to derive the same
+			// polynomial, but they will derive identical ones
+			FieldElement[] coefficients = new FieldElement[degree + 1];
+			for (int i = 0; i <= degree; i++) {
+				coefficients[i] = new FieldElement();
+				coefficient(degree, i, coefficients[i]);
+			}
+			SecretBox box = SecretBox.fromElements(coefficients);
+
+			synchronized (cache) {
+				cache.put(degree, box);
+			}
+			return box;
+		}
+
+		/**
+		 * Sample every polynomial at x. Cached polynomials are evaluated
+		 * directly; the rest are evaluated from their derived coefficients
+		 * without being materialized, so issuing cards does not evict the
+		 * polynomials the door is using.
+		 */
+		public List<Point> sampleAll(BigInteger x) {
+			FieldElement xElement = new FieldElement(x);
+			FieldElement y = new FieldElement();
+			FieldElement coefficient = new FieldElement();
+
+			List<Point> points = new ArrayList<Point>(maxPolyDegree + 1);
+			for (int degree = 0; degree <= maxPolyDegree; degree++) {
+				SecretBox box;
+				synchronized (cache) {
+					box = cache.get(degree);
+				}
+				if (box != null) {
+					box.sample(xElement, y);
+				} else {
+					// Horner's rule over coefficients derived on the fly
+					y.set(0);
+					for (int i = degree; i >= 0; i--) {
+						coefficient(degree, i, coefficient);
+						y.add(y.multiply(y, xElement), coefficient);
+					}
+				}
+				points.add(new Point(x, y.toBigInteger()));
+			}
+			return points;
+		}
+
+		/**
+		 * Sample every polynomial at each of xs. Each uncached polynomial's
+		 * coefficients are derived once for the whole batch and fed to
+		 * HornerLanes as they are derived.
+		 */
+		public List<List<Point>> sampleAll(List<BigInteger> xs) {
+			FieldElement[] xElements = Polynomial.toElements(xs);
+			FieldElement[] ys = newElements(xs.size());
+			FieldElement coefficient = new FieldElement();
+			HornerLanes lanes = new HornerLanes(xElements);
+
+			List<List<Point>> points = newPointLists(xs.size(), maxPolyDegree() + 1);
+			for (int degree = 0; degree <= maxPolyDegree; degree++) {
+				SecretBox box;
+				synchronized (cache) {
+					box = cache.get(degree);
+				}
+				if (box != null) {
+					box.sample(xElements, ys);
+				} else {
+					lanes.reset();
+					for (int i = degree; i >= 0; i--) {
+						coefficient(degree, i, coefficient);
+						lanes.step(coefficient);
+					}
+					lanes.store(ys);
+				}
+				addPoints(points, xs, ys);
+			}
+			return points;
+		}
+
+		/**
+		 * Derive the index-th coefficient of the polynomial of the given
+		 * degree into out.
+		 */
+		private void coefficient(int degree, int index, FieldElement out) {
+			Mac mac = macs.get();
+			byte[] message = {
+				(byte) (degree >>> 24), (byte) (degree >>> 16), (byte) (degree >>> 8), (byte) degree,
+				(byte) (index >>> 24), (byte) (index >>> 16), (byte) (index >>> 8), (byte) index,
+			};
+			byte[] digest = mac.doFinal(message);
+
+			// the 256-bit digest is hi * 2^128 + lo, and 2^128 = -51 (mod p)
+			FieldElement lo = new FieldElement().setBytes(digest, 16, 16);
+			out.setBytes(digest, 0, 16);
+			out.multiply(out, TWO_128_MOD_P);
+			out.add(out, lo);
+		}
+
+		private static final FieldElement TWO_128_MOD_P = new FieldElement(-51);
+	}
+
+	/**
+	 * Create a store of random polynomials, all generated immediately.
+	 * @param r the maximum degree, i.e. the number of revocations supported
+	 */
+	public static SecretStore random(int r) {
+		List<SecretBox> secrets = new ArrayList<SecretBox>();
+		for (int i = 0; i <= r; i++) {
+			secrets.add(SecretBox.randomSecretBox(i+1));
+		}
+		return new ListSecretStore(secrets);
+	}
+
+	/**
+	 * Create a store whose polynomials are derived from a seed as needed.
+	 * Anyone holding the seed can derive every polynomial, so it must be
+	 * protected like the door itself.
+	 * @param r the maximum degree, i.e. the number of revocations supported
+	 * @param seed the master seed; see randomSeed()
+	 */
+	public static SecretStore fromSeed(int r, byte[] seed) {
+		return fromSeed(r, seed, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Create a store whose polynomials are derived from a seed as needed,
+	 * keeping at most cacheSize of them materialized.
+	 */
+	public static SecretStore fromSeed(int r, byte[] seed, int cacheSize) {
+		return new SeededSecretStore(r, seed, cacheSize);
+	}
+
+	/**
+	 * Generate a new master seed for fromSeed().
+	 */
+	public static byte[] randomSeed() {
+		byte[] seed = new byte[SEED_LENGTH];
+		new SecureRandom().nextBytes(seed);
+		return seed;
+	}
+
+	/**
+	 * This is r, the highest degree in the store.
+	 */
+	public abstract int maxPolyDegree();
+
+	/**
+	 * Get the SecretBox for the polynomial of the given degree.
+	 */
+	public abstract SecretBox get(int degree);
+
+	/**
+	 * Sample every polynomial in the store at the same x-coordinate, e.g.
+	 * to issue a user's private points.
+	 * @return one Point per degree, from 0 to maxPolyDegree()
+	 */
+	public abstract List<Point> sampleAll(BigInteger x);
+
+	/**
+	 * Sample every polynomial in the store at each of several
+	 * x-coordinates, e.g. to issue a batch of users' private points. This
+	 * is equivalent to calling sampleAll(x) for each x, but evaluates each
+	 * polynomial across the whole batch at once.
+	 * @return for each x, one Point per degree
+	 */
+	public List<List<Point>> sampleAll(List<BigInteger> xs) {
+		List<List<Point>> points = new ArrayList<List<Point>>(xs.size());
+		for (BigInteger x : xs) {
+			points.add(sampleAll(x));
+		}
+		return points;
+	}
+
+	private static FieldElement[] newElements(int n) {
+		FieldElement[] elements = new FieldElement[n];
+		for (int i = 0; i < n; i++) {
+			elements[i] = new FieldElement();
+		}
+		return elements;
+	}
+
+	private static List<List<Point>> newPointLists(int n, int degrees) {
+		List<List<Point>> points = new ArrayList<List<Point>>(n);
+		for (int i = 0; i < n; i++) {
+			points.add(new ArrayList<Point>(degrees));
+		}
+		return points;
+	}
+
+	private static void addPoints(List<List<Point>> points, List<BigInteger> xs, FieldElement[] ys) {
+		for (int i = 0; i < ys.length; i++) {
+			points.get(i).add(new Point(xs.get(i), ys[i].toBigInteger()));
+		}
+	}
+
+	protected void checkDegree(int degree) {
+		if (degree < 0 || degree > maxPolyDegree()) {
+			throw new IndexOutOfBoundsException("Degree " + degree + " is outside [0, " + maxPolyDegree() + "]");
+		}
+	}
+}
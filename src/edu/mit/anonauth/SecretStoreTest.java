@@ -0,0 +1,137 @@
+package edu.mit.anonauth;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SecretStoreTest {
+	
+	@Test
+	public void testSeededIsDeterministic() {
+		byte[] seed = SecretStore.randomSeed();
+		SecretStore a = SecretStore.fromSeed(20, seed);
+		SecretStore b = SecretStore.fromSeed(20, seed);
+		SecretStore c = SecretStore.fromSeed(20, SecretStore.randomSeed());
+		
+		for (int degree = 0; degree <= 20; degree++) {
+			assertEquals(degree + 1, a.get(degree).getCoefficients().size());
+			assertEquals(a.get(degree).secret(), b.get(degree).secret());
+			assertNotEquals(a.get(degree).secret(), c.get(degree).secret());
+		}
+	}
+	
+	@Test
+	public void testSampleAllMatchesMaterialized() {
+		SecretStore store = SecretStore.fromSeed(12, SecretStore.randomSeed(), 2);
+		BigInteger x = BigInteger.valueOf(5001);
+		store.get(3);
+		store.get(7);
+		
+		List<Point> points = store.sampleAll(x);
+		assertEquals(13, points.size());
+		for (int degree = 0; degree <= 12; degree++) {
+			assertEquals(store.get(degree).sample(x).y, points.get(degree).y);
+		}
+	}
+	
+	@Test
+	public void testBatchSampleAll() {
+		List<BigInteger> xs = new ArrayList<BigInteger>();
+		for (int user = 5001; user <= 5040; user++) {
+			xs.add(BigInteger.valueOf(user));
+		}
+		
+		// a small cache, so some polynomials are cached and some derived
+		SecretStore seeded = SecretStore.fromSeed(12, SecretStore.randomSeed(), 2);
+		seeded.get(3);
+		for (SecretStore store : new SecretStore[] { seeded, SecretStore.random(12) }) {
+			List<List<Point>> batch = store.sampleAll(xs);
+			assertEquals(xs.size(), batch.size());
+			for (int i = 0; i < xs.size(); i++) {
+				assertEquals(store.sampleAll(xs.get(i)).toString(), batch.get(i).toString());
+			}
+		}
+		
+		ProtocolDoor door = new ProtocolDoor(seeded);
+		List<List<Point>> issued = door.privatePoints(Arrays.asList(5001, 5002));
+		assertEquals(door.privatePoints(5002).toString(), issued.get(1).toString());
+	}
+	
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testDegreeOutOfRange() {
+		SecretStore.fromSeed(5, SecretStore.randomSeed()).get(6);
+	}
+	
+	@Test
+	public void testLargeSeededDoor() throws IOException, ClassNotFoundException {
+		int r = 10000;
+		
+		ProtocolDoor door1 = new ProtocolDoor(SecretStore.fromSeed(r, SecretStore.randomSeed()));
+		door1.revoke(20002);
+		
+		byte[] enc = serialize(door1);
+		assertTrue(enc.length < 2048);
+		ProtocolDoor door2 = (ProtocolDoor) deserialize(enc);
+		assertArrayEquals(door1.getBroadcast(), door2.getBroadcast());
+	}
+	
+	@Test
+	public void testRevokedSeededDoorSize() throws IOException, ClassNotFoundException {
+		int r = 1000;
+		
+		ProtocolDoor door1 = new ProtocolDoor(SecretStore.fromSeed(r, SecretStore.randomSeed()));
+		List<Integer> users = new ArrayList<Integer>();
+		for (int i = 0; i < 200; i++) {
+			users.add(r + 1 + i);
+		}
+		door1.revokeAll(users);
+		ProtocolCard card = new ProtocolCard(door1.privatePoints(5001));
+		
+		// the blacklist is kept, but not the 200 public points
+		byte[] enc = serialize(door1);
+		assertTrue(enc.length < 48 * users.size());
+		ProtocolDoor door2 = (ProtocolDoor) deserialize(enc);
+		assertArrayEquals(door1.getBroadcast(), door2.getBroadcast());
+		assertTrue(door2.checkResponse(card.authenticate(door2.getBroadcast())));
+	}
+	
+	@Test
+	public void testSeededDoorExchange() {
+		int r = 20;
+		ProtocolDoor door = new ProtocolDoor(SecretStore.fromSeed(r, SecretStore.randomSeed()));
+		ProtocolCard cardA = new ProtocolCard(door.privatePoints(5001));
+		ProtocolCard cardB = new ProtocolCard(door.privatePoints(5002));
+		
+		door.revoke(5002);
+		assertTrue(door.checkResponse(cardA.authenticate(door.getBroadcast())));
+		try {
+			assertFalse(door.checkResponse(cardB.authenticate(door.getBroadcast())));
+		} catch (ArithmeticException e) {
+			// expected: the revoked card's point is now public
+		}
+	}
+	
+	private byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		ObjectOutputStream so = new ObjectOutputStream(bo);
+		so.writeObject(o);
+		so.flush();
+		return bo.toByteArray();
+	}
+	
+	private Object deserialize(byte[] enc) throws IOException, ClassNotFoundException {
+		ByteArrayInputStream bi = new ByteArrayInputStream(enc);
+		ObjectInputStream si = new ObjectInputStream(bi);
+		return si.readObject();
+	}
+}